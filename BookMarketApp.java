@@ -1,7 +1,38 @@
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.io.*;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -11,9 +42,25 @@ enum UserRole {
     ADMIN, CUSTOMER
 }
 
-// 회원 등급 정의
+// 회원 등급 정의 (등급별 최소 포인트)
 enum MembershipLevel {
-    NORMAL, SILVER, GOLD, PLATINUM;
+    NORMAL(0), SILVER(100), GOLD(300), PLATINUM(600);
+
+    private static final MembershipLevel[] LEVELS = values();
+
+    final int minPoints;
+
+    MembershipLevel(int minPoints) {
+        this.minPoints = minPoints;
+    }
+
+    // 포인트에 해당하는 등급 – 회원 등급과 순위표의 등급별 인원이 같은 기준을 쓴다
+    static MembershipLevel forPoints(int points) {
+        for (int i = LEVELS.length - 1; i > 0; i--) {
+            if (points >= LEVELS[i].minPoints) return LEVELS[i];
+        }
+        return NORMAL;
+    }
 }
 
 // 도서 리뷰 클래스 (Review 클래스로 변경)
@@ -25,14 +72,21 @@ class Review implements Serializable { // BookMarket 대신 Review로 클래스
     private Date reviewDate;
 
     public Review(String username, int rating, String reviewText) {
+        this(username, rating, reviewText, System.currentTimeMillis());
+    }
+
+    // 저장된 리뷰 복원용
+    Review(String username, int rating, String reviewText, long reviewTime) {
         this.username = username;
         this.rating = rating;
         this.reviewText = reviewText;
-        this.reviewDate = new Date();
+        this.reviewDate = new Date(reviewTime);
     }
 
     public String getUsername() { return username; }
     public int getRating() { return rating; }
+    public String getReviewText() { return reviewText; }
+    long getReviewTime() { return reviewDate.getTime(); }
 
     @Override
     public String toString() {
@@ -41,327 +95,5390 @@ class Review implements Serializable { // BookMarket 대신 Review로 클래스
     }
 }
 
+// NameDictionary – 반복되는 이름(장르, 출판사 등)을 int id 로 바꿔 한 번만 저장하는 사전
+// id 는 한 번 발급되면 바뀌지 않으며, 조회는 잠금 없이 배열에서 읽는다.
+final class NameDictionary {
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[16];
+    private int size;
+
+    int idOf(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : register(name);
+    }
+
+    // 등록하지 않고 조회만 (없으면 -1)
+    int find(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : -1;
+    }
+
+    private synchronized int register(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        String[] current = names;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+        }
+        current[size] = name;
+        names = current; // 이름을 채운 뒤 배열을 게시해야 id 를 받은 쪽이 항상 이름을 볼 수 있다
+        ids.put(name, size);
+        return size++;
+    }
+
+    String nameOf(int id) {
+        return names[id];
+    }
+
+    synchronized int size() {
+        return size;
+    }
+}
+
 // 도서 정보를 관리하는 클래스 (장르, 출판사, 리뷰 포함)
+// 제목/저자/가격/장르/출판사는 버전마다 불변이며, 수정 시 withDetails 로 새 버전을 만들어 Catalog 에 게시한다.
+// 재고와 리뷰는 버전과 무관한 상태이므로 같은 ISBN 의 모든 버전이 하나의 LiveState 를 공유한다.
+// 수백만 권을 메모리에 두는 경우를 위해 가격은 센트 단위 int, 장르/출판사는 사전 id 로 저장하고
+// 리뷰 목록은 첫 리뷰가 달릴 때 만든다.
 class Book implements Serializable {
-    private static final long serialVersionUID = 1L;
-    private String isbn;
-    private String title;
-    private String author;
-    private double price;
-    private int quantity;
-    private String genre;
-    private String publisher;
-    private List<Review> reviews; // Review 클래스 사용
+    private static final long serialVersionUID = 2L;
+    static final NameDictionary GENRES = new NameDictionary();
+    static final NameDictionary PUBLISHERS = new NameDictionary();
+
+    private final String isbn;
+    private final String title;
+    private final String author;
+    private final int priceCents;
+    private transient int genreId;     // 직렬화 시에는 이름으로 저장 (id 는 프로세스마다 다름)
+    private transient int publisherId;
+    private final LiveState live;
+
+    // 버전 간 공유되는 가변 상태 – 값 자체가 재고 수량이고, 리뷰 목록은 필요할 때 만든다
+    static final class LiveState extends AtomicInteger {
+        private static final long serialVersionUID = 2L;
+        private volatile List<Review> reviews; // Review 클래스 사용, 리뷰가 없으면 null
+        transient volatile Runnable pinOnChange; // 매핑 카탈로그에서 온 상태면 첫 변경 때 보관 요청
+
+        LiveState(int quantity) {
+            super(quantity);
+        }
+
+        LiveState(int quantity, List<Review> reviews) {
+            super(quantity);
+            if (!reviews.isEmpty()) {
+                this.reviews = new CopyOnWriteArrayList<>(reviews);
+            }
+        }
+
+        List<Review> reviews() {
+            List<Review> current = reviews;
+            return current != null ? current : Collections.emptyList();
+        }
+
+        void addReview(Review review) {
+            List<Review> current = reviews;
+            if (current == null) {
+                synchronized (this) {
+                    current = reviews;
+                    if (current == null) {
+                        current = new CopyOnWriteArrayList<>();
+                        reviews = current;
+                    }
+                }
+            }
+            current.add(review);
+        }
+
+        void changed() {
+            Runnable pin = pinOnChange;
+            if (pin != null) {
+                pinOnChange = null;
+                pin.run();
+            }
+        }
+    }
 
     public Book(String isbn, String title, String author, double price, int quantity, String genre, String publisher) {
+        this(isbn, title, author, toCents(price), GENRES.idOf(genre), PUBLISHERS.idOf(publisher), new LiveState(quantity));
+    }
+
+    private Book(String isbn, String title, String author, int priceCents, int genreId, int publisherId, LiveState live) {
         this.isbn     = isbn;
         this.title    = title;
         this.author   = author;
-        this.price    = price;
-        this.quantity = quantity;
-        this.genre    = genre;
-        this.publisher = publisher;
-        this.reviews  = new ArrayList<>();
+        this.priceCents = priceCents;
+        this.genreId  = genreId;
+        this.publisherId = publisherId;
+        this.live     = live;
     }
 
-    public String getIsbn()      { return isbn; }
-    public String getTitle()     { return title; }
-    public String getAuthor()    { return author; }
-    public double getPrice()     { return price; }
-    public int getQuantity()     { return quantity; }
-    public String getGenre()     { return genre; }
-    public String getPublisher() { return publisher; }
-
-    public void setTitle(String title)       { this.title = title; }
-    public void setAuthor(String author)     { this.author = author; }
-    public void setPrice(double price)       { this.price = price; }
-    public void setQuantity(int quantity)    { this.quantity = quantity; }
-    public void setGenre(String genre)       { this.genre = genre; }
-    public void setPublisher(String publisher){ this.publisher = publisher; }
+    // 저장소에서 읽은 도서를 기존 재고/리뷰 상태와 연결해 복원
+    static Book restore(String isbn, String title, String author, int priceCents, String genre, String publisher, LiveState live) {
+        return new Book(isbn, title, author, priceCents, GENRES.idOf(genre), PUBLISHERS.idOf(publisher), live);
+    }
 
-    public void addReview(Review review) { reviews.add(review); }
-    public List<Review> getReviews() { return reviews; }
+    // 같은 재고/리뷰를 공유하는 새 버전 생성
+    Book withDetails(String title, String author, double price, String genre, String publisher) {
+        return new Book(isbn, title, author, toCents(price), GENRES.idOf(genre), PUBLISHERS.idOf(publisher), live);
+    }
 
-    public double getAverageRating() {
-        if (reviews.isEmpty()) return 0.0;
-        int total = 0;
-        for (Review r : reviews) {
-            total += r.getRating();
-        }
-        return (double) total / reviews.size();
+    // 가격만 바꾼 새 버전 (일괄 가격 조정용)
+    Book withPriceCents(int priceCents) {
+        return new Book(isbn, title, author, priceCents, genreId, publisherId, live);
     }
 
-    @Override
-    public String toString() {
-        return String.format("[%s] %s | Author: %s | Price: $%.2f | Stock: %d | Genre: %s | Publisher: %s | Rating: %.2f (%d reviews)",
-                isbn, title, author, price, quantity, genre, publisher, getAverageRating(), reviews.size());
+    static int toCents(double price) {
+        return (int) Math.round(price * 100);
     }
-}
 
-// 사용자 정보를 관리하는 클래스 (회원 등급과 포인트 추가)
-class User implements Serializable {
-    private static final long serialVersionUID = 1L;
-    private String username;
-    private String password;
-    UserRole role;
-    private MembershipLevel membershipLevel;
-    private int loyaltyPoints;
+    public String getIsbn()      { return isbn; }
+    public String getTitle()     { return title; }
+    public String getAuthor()    { return author; }
+    public double getPrice()     { return priceCents / 100.0; }
+    int getPriceCents()          { return priceCents; }
+    public int getQuantity()     { return live.get(); }
+    public String getGenre()     { return GENRES.nameOf(genreId); }
+    public String getPublisher() { return PUBLISHERS.nameOf(publisherId); }
+    int getGenreId()             { return genreId; }
+    int getPublisherId()         { return publisherId; }
 
-    public User(String username, String password, UserRole role) {
-        this.username = username;
-        this.password = password;
-        this.role     = role;
-        this.membershipLevel = MembershipLevel.NORMAL;
-        this.loyaltyPoints = 0;
+    public void setQuantity(int quantity) {
+        live.changed();
+        live.set(quantity);
     }
 
-    public String getUsername() { return username; }
-    public UserRole getRole()   { return role; }
-    public MembershipLevel getMembershipLevel() { return membershipLevel; }
-    public int getLoyaltyPoints() { return loyaltyPoints; }
+    // 재고가 충분할 때만 원자적으로 차감
+    boolean tryTakeStock(int amount) {
+        while (true) {
+            int current = live.get();
+            if (current < amount) return false;
+            live.changed();
+            if (live.compareAndSet(current, current - amount)) return true;
+        }
+    }
 
-    public boolean checkPassword(String password) { return this.password.equals(password); }
-    public void setPassword(String newPassword) { this.password = newPassword; }
+    void returnStock(int amount) {
+        live.changed();
+        live.addAndGet(amount);
+    }
 
-    public void addLoyaltyPoints(int points) {
-        loyaltyPoints += points;
-        updateMembership();
+    public void addReview(Review review) {
+        live.changed();
+        live.addReview(review);
     }
 
-    // 간단한 기준에 따라 회원 등급 자동 업그레이드
-    private void updateMembership() {
-        if (loyaltyPoints >= 600) {
-            membershipLevel = MembershipLevel.PLATINUM;
-        } else if (loyaltyPoints >= 300) {
-            membershipLevel = MembershipLevel.GOLD;
-        } else if (loyaltyPoints >= 100) {
-            membershipLevel = MembershipLevel.SILVER;
-        } else {
-            membershipLevel = MembershipLevel.NORMAL;
+    public List<Review> getReviews() { return live.reviews(); }
+
+    public double getAverageRating() {
+        int total = 0;
+        int count = 0;
+        for (Review r : live.reviews()) {
+            total += r.getRating();
+            count++;
         }
+        return count == 0 ? 0.0 : (double) total / count;
     }
 
-    @Override
-    public String toString() {
-        return String.format("%s (%s) - Points: %d", username, membershipLevel, loyaltyPoints);
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeUTF(getGenre());
+        out.writeUTF(getPublisher());
     }
-}
-
-// 주문 정보를 관리하는 클래스 (취소 및 반품 처리 기능 추가)
-class Order implements Serializable {
-    private static final long serialVersionUID = 1L;
-    int orderId;  // 패키지 내부 접근용
-    Book book;
-    int orderQuantity;
-    private String username;
-    Date orderDate;
-    private boolean cancelled;
-    private boolean returned;
 
-    public Order(int orderId, String username, Book book, int orderQuantity) {
-        this.orderId = orderId;
-        this.username = username;
-        this.book = book;
-        this.orderQuantity = orderQuantity;
-        this.orderDate = new Date();
-        this.cancelled = false;
-        this.returned = false;
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        genreId = GENRES.idOf(in.readUTF());
+        publisherId = PUBLISHERS.idOf(in.readUTF());
     }
 
-    public double getTotalPrice() { return book.getPrice() * orderQuantity; }
-    public String getUsername() { return username; }
-    public boolean isCancelled() { return cancelled; }
-    public boolean isReturned() { return returned; }
-    public void setCancelled(boolean cancelled) { this.cancelled = cancelled; }
-    public void setReturned(boolean returned) { this.returned = returned; }
-
     @Override
     public String toString() {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        String status = cancelled ? " (취소됨)" : (returned ? " (반품됨)" : "");
-        return String.format("Order #%d: %s (Qty: %d) ordered by %s on %s | Total: $%.2f%s",
-                orderId, book.getTitle(), orderQuantity, username, sdf.format(orderDate), getTotalPrice(), status);
+        return String.format("[%s] %s | Author: %s | Price: $%.2f | Stock: %d | Genre: %s | Publisher: %s | Rating: %.2f (%d reviews)",
+                isbn, title, author, getPrice(), getQuantity(), getGenre(), getPublisher(), getAverageRating(), live.reviews().size());
     }
 }
 
-// 장바구니 관련 클래스
-class CartItem implements Serializable {
+// IsbnMap – ISBN -> Book 개방 주소법 해시 테이블 (키/값 병렬 배열, 선형 탐사)
+// HashMap 과 달리 항목마다 Node 객체를 만들지 않아 항목당 메모리가 배열 슬롯 두 개로 줄어든다.
+// 카탈로그 세그먼트로 쓰이며, 버전에 게시된 뒤에는 수정하지 않는다 (수정은 copy 본에서).
+final class IsbnMap implements Serializable {
     private static final long serialVersionUID = 1L;
-    private Book book;
-    private int quantity;
+    static final IsbnMap EMPTY = new IsbnMap(0);
 
-    public CartItem(Book book, int quantity) {
-        this.book = book;
-        this.quantity = quantity;
+    private String[] keys;
+    private Book[] values;
+    private int shift;     // 해시 상위 비트를 슬롯 번호로 사용 (세그먼트 선택에 쓰인 하위 비트와 겹치지 않게)
+    private int size;
+
+    IsbnMap(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
     }
 
-    public Book getBook() { return book; }
-    public int getQuantity() { return quantity; }
-    public void setQuantity(int quantity) { this.quantity = quantity; }
+    // 적재율 0.75 이하가 되는 2의 거듭제곱 크기
+    private static int tableSizeFor(int expectedSize) {
+        int needed = Math.max(2, (int) Math.ceil(expectedSize / 0.75));
+        return Integer.highestOneBit(needed - 1) << 1;
+    }
 
-    @Override
-    public String toString() {
-        return book.getTitle() + " (Qty: " + quantity + ")";
+    private void allocate(int capacity) {
+        keys = new String[capacity];
+        values = new Book[capacity];
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
     }
-}
 
-class ShoppingCart implements Serializable {
-    private static final long serialVersionUID = 1L;
-    private List<CartItem> items;
+    private int slotOf(Object key) {
+        return (key.hashCode() * 0x9E3779B9) >>> shift;
+    }
 
-    public ShoppingCart() { items = new ArrayList<>(); }
+    int size() { return size; }
 
-    public void addItem(Book book, int quantity) {
-        for (CartItem item : items) {
-            if (item.getBook().getIsbn().equals(book.getIsbn())) {
-                item.setQuantity(item.getQuantity() + quantity);
-                return;
-            }
+    Book get(Object key) {
+        int mask = keys.length - 1;
+        for (int slot = slotOf(key); ; slot = (slot + 1) & mask) {
+            String existing = keys[slot];
+            if (existing == null) return null;
+            if (existing.equals(key)) return values[slot];
         }
-        items.add(new CartItem(book, quantity));
     }
 
-    public boolean updateItem(String isbn, int quantity) {
-        for (CartItem item : items) {
-            if (item.getBook().getIsbn().equals(isbn)) {
-                item.setQuantity(quantity);
-                return true;
-            }
-        }
-        return false;
+    boolean containsKey(Object key) {
+        return get(key) != null;
     }
 
-    public boolean removeItem(String isbn) {
-        Iterator<CartItem> iter = items.iterator();
-        while (iter.hasNext()) {
-            CartItem item = iter.next();
-            if (item.getBook().getIsbn().equals(isbn)) {
-                iter.remove();
-                return true;
+    Book put(String key, Book value) {
+        if ((size + 1) * 4L > keys.length * 3L) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        for (int slot = slotOf(key); ; slot = (slot + 1) & mask) {
+            String existing = keys[slot];
+            if (existing == null) {
+                keys[slot] = key;
+                values[slot] = value;
+                size++;
+                return null;
+            }
+            if (existing.equals(key)) {
+                Book previous = values[slot];
+                values[slot] = value;
+                return previous;
             }
         }
-        return false;
     }
 
-    public void viewCart() {
-        if (items.isEmpty()) {
-            System.out.println("장바구니가 비어 있습니다.");
-            return;
+    // 삭제 후 뒤따르는 항목을 당겨 탐사 사슬이 끊기지 않게 한다 (backward shift)
+    Book remove(String key) {
+        int mask = keys.length - 1;
+        int slot = slotOf(key);
+        while (keys[slot] != null && !keys[slot].equals(key)) {
+            slot = (slot + 1) & mask;
         }
-        System.out.println("=== 장바구니 ===");
-        for (CartItem item : items) {
-            System.out.println(item);
+        if (keys[slot] == null) return null;
+        Book previous = values[slot];
+        size--;
+        int hole = slot;
+        for (int next = (slot + 1) & mask; keys[next] != null; next = (next + 1) & mask) {
+            int home = slotOf(keys[next]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
         }
-        System.out.printf("총 금액: $%.2f%n", getTotalPrice());
+        keys[hole] = null;
+        values[hole] = null;
+        return previous;
     }
 
-    public double getTotalPrice() {
-        double total = 0;
-        for (CartItem item : items) {
-            total += item.getBook().getPrice() * item.getQuantity();
+    // 수정용 사본 – 앞으로 추가될 수를 알면 미리 그만큼 키워 둔다
+    IsbnMap copy(int expectedAdditions) {
+        int capacity = tableSizeFor(size + expectedAdditions);
+        IsbnMap copy = new IsbnMap(0);
+        if (capacity == keys.length) {
+            copy.keys = keys.clone();
+            copy.values = values.clone();
+            copy.shift = shift;
+            copy.size = size;
+        } else {
+            copy.allocate(capacity);
+            copy.insertAll(this);
         }
-        return total;
+        return copy;
     }
 
-    public List<CartItem> getItems() { return items; }
-    public void clear() { items.clear(); }
-}
-
-// PaymentGateway – 결제 및 환불 시뮬레이션
-class PaymentGateway {
-    public static boolean processPayment(double amount) {
-        try {
-            System.out.println("결제 처리 중... 금액: $" + amount);
-            Thread.sleep(1000); // 지연 시뮬레이션
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    private void resize(int capacity) {
+        String[] oldKeys = keys;
+        Book[] oldValues = values;
+        allocate(capacity);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) put(oldKeys[i], oldValues[i]);
         }
-        System.out.println("결제 완료.");
-        return true;
     }
 
-    public static boolean processRefund(double amount) {
-        try {
-            System.out.println("환불 처리 중... 금액: $" + amount);
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    private void insertAll(IsbnMap other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != null) put(other.keys[i], other.values[i]);
         }
-        System.out.println("환불 완료.");
-        return true;
     }
-}
 
-// RecommendationEngine – 사용자의 구매 내역과 선호 장르 기반 추천
-class RecommendationEngine {
-    public static List<Book> getRecommendations(BookMarket market, User user) {
-        // 사용자가 이전에 주문한 도서의 장르를 수집
-        Set<String> likedGenres = new HashSet<>();
-        for (Order order : market.getOrders()) {
-            if(order.getUsername().equals(user.getUsername()) && !order.isCancelled() && !order.isReturned()){
-                likedGenres.add(order.book.getGenre());
+    Iterator<Map.Entry<String, Book>> iterator() {
+        return new Iterator<Map.Entry<String, Book>>() {
+            private int slot = advance(0);
+
+            private int advance(int from) {
+                while (from < keys.length && keys[from] == null) from++;
+                return from;
             }
-        }
-        List<Book> recommendations = new ArrayList<>();
-        for (Book book : market.getBooks().values()) {
-            if (likedGenres.contains(book.getGenre()) && book.getQuantity() > 0) {
-                recommendations.add(book);
+
+            @Override public boolean hasNext() { return slot < keys.length; }
+
+            @Override public Map.Entry<String, Book> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Map.Entry<String, Book> entry = new AbstractMap.SimpleImmutableEntry<>(keys[slot], values[slot]);
+                slot = advance(slot + 1);
+                return entry;
             }
-        }
-        recommendations.sort((b1, b2) -> Double.compare(b2.getAverageRating(), b1.getAverageRating()));
-        return recommendations;
+        };
     }
 }
 
-// NotificationManager – 알림 전송 시뮬레이션
-class NotificationManager {
-    public static void sendNotification(String username, String message) {
-        System.out.println("알림 [To: " + username + "]: " + message);
+// CatalogVersion – 특정 시점의 불변 카탈로그 (ISBN -> Book)
+// ISBN 해시로 나눈 세그먼트 배열로 구성되며, 다음 버전은 변경된 세그먼트만 복사하고 나머지는 공유한다.
+// 매핑 카탈로그 위에 올린 경우 세그먼트는 파일 대비 변경분만 담고(삭제는 REMOVED 표시), 나머지는 파일에서 읽는다.
+final class CatalogVersion extends AbstractMap<String, Book> implements Serializable {
+    private static final long serialVersionUID = 1L;
+    static final int SEGMENT_COUNT = 1024;
+    private static final Book REMOVED = new Book("", "", "", 0, 0, "", ""); // 파일에 있는 도서의 삭제 표시
+
+    private final long version;
+    private final IsbnMap[] segments; // 게시 이후에는 절대 수정하지 않음
+    private final int size;
+    private final transient MappedCatalog base; // 없으면 null
+
+    private CatalogVersion(long version, IsbnMap[] segments, int size, MappedCatalog base) {
+        this.version = version;
+        this.segments = segments;
+        this.size = size;
+        this.base = base;
     }
-}
 
-// BookMarket 클래스 – 비즈니스 로직 및 데이터 영속성, 추가 기능 다수 포함
-class BookMarket implements Serializable {
-    private static final long serialVersionUID = 1L;
-    private static final Logger logger = Logger.getLogger(BookMarket.class.getName());
+    static CatalogVersion empty() {
+        return mapped(null);
+    }
 
-    private Map<String, Book> books;         // ISBN -> Book
-    private Map<String, User> users;         // username -> User
-    private List<Order> orders;              // 모든 주문 내역
-    private int currentOrderIdCounter;
-    private Map<String, ShoppingCart> carts; // username -> ShoppingCart
-    private Map<String, List<String>> wishLists; // username -> [도서 ISBN 목록]
+    static CatalogVersion mapped(MappedCatalog base) {
+        IsbnMap[] segments = new IsbnMap[SEGMENT_COUNT];
+        Arrays.fill(segments, IsbnMap.EMPTY);
+        return new CatalogVersion(0, segments, base == null ? 0 : base.size(), base);
+    }
 
-    public BookMarket() {
-        books = new HashMap<>();
-        users = new HashMap<>();
-        orders = new ArrayList<>();
-        currentOrderIdCounter = 1;
-        carts = new HashMap<>();
-        wishLists = new HashMap<>();
+    private static int segmentOf(Object isbn) {
+        int hash = isbn.hashCode();
+        return (hash ^ (hash >>> 16)) & (SEGMENT_COUNT - 1);
     }
 
-    // Getter – RecommendationEngine 사용을 위함
-    public Map<String, Book> getBooks() { return books; }
-    public List<Order> getOrders() { return orders; }
+    long getVersion() { return version; }
+    MappedCatalog getBase() { return base; }
 
-    // 사용자 등록
-    public boolean registerUser(String username, String password, UserRole role) {
-        if (users.containsKey(username)) {
-            System.out.println("이미 존재하는 사용자입니다.");
-            return false;
-        }
-        users.put(username, new User(username, password, role));
-        System.out.println("사용자 등록 완료: " + username);
-        logger.log(Level.INFO, "신규 사용자 등록: {0}", username);
-        return true;
+    @Override public int size() { return size; }
+    @Override public Book get(Object isbn) { return isbn == null ? null : lookup(segments, base, isbn); }
+    @Override public boolean containsKey(Object isbn) { return get(isbn) != null; }
+
+    private static Book lookup(IsbnMap[] segments, MappedCatalog base, Object isbn) {
+        Book book = segments[segmentOf(isbn)].get(isbn);
+        if (book != null) return book == REMOVED ? null : book;
+        return base == null || !(isbn instanceof String) ? null : base.get((String) isbn);
     }
 
-    // 로그인
-    public User loginUser(String username, String password) {
-        if (!users.containsKey(username)) {
-            System.out.println("존재하지 않는 사용자입니다.");
-            return null;
+    // 파일 로딩 이후 바뀐 도서 (ISBN -> 현재 도서, 삭제됐으면 null) – 매핑 카탈로그가 없으면 전체
+    Map<String, Book> changedSinceBase() {
+        if (base == null) return this;
+        Map<String, Book> changed = new LinkedHashMap<>();
+        for (IsbnMap segment : segments) {
+            for (Iterator<Map.Entry<String, Book>> it = segment.iterator(); it.hasNext(); ) {
+                Map.Entry<String, Book> entry = it.next();
+                changed.put(entry.getKey(), entry.getValue() == REMOVED ? null : entry.getValue());
+            }
+        }
+        for (String isbn : base.changedIsbns()) {
+            if (!changed.containsKey(isbn)) changed.put(isbn, base.get(isbn));
+        }
+        return changed;
+    }
+
+    @Override
+    public Set<Entry<String, Book>> entrySet() {
+        return new AbstractSet<Entry<String, Book>>() {
+            @Override public int size() { return size; }
+            @Override public Iterator<Entry<String, Book>> iterator() {
+                return new Iterator<Entry<String, Book>>() {
+                    private int segment = 0;
+                    private Iterator<Entry<String, Book>> current = Collections.emptyIterator();
+                    private final Iterator<Book> stored = base == null ? Collections.emptyIterator() : base.scan();
+                    private Entry<String, Book> next;
+
+                    @Override public boolean hasNext() {
+                        while (next == null) {
+                            if (current.hasNext()) {
+                                Entry<String, Book> entry = current.next();
+                                if (entry.getValue() != REMOVED) next = entry;
+                            } else if (segment < SEGMENT_COUNT) {
+                                current = segments[segment++].iterator();
+                            } else if (stored.hasNext()) {
+                                Book book = stored.next(); // 변경분에 있는 도서는 이미 반환했음
+                                if (!segments[segmentOf(book.getIsbn())].containsKey(book.getIsbn())) {
+                                    next = new SimpleImmutableEntry<>(book.getIsbn(), book);
+                                }
+                            } else {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+
+                    @Override public Entry<String, Book> next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        Entry<String, Book> entry = next;
+                        next = null;
+                        return entry;
+                    }
+                };
+            }
+        };
+    }
+
+    // 스냅샷은 읽기 전용
+    @Override public Book put(String isbn, Book book) { throw new UnsupportedOperationException("읽기 전용 카탈로그 버전"); }
+    @Override public Book remove(Object isbn) { throw new UnsupportedOperationException("읽기 전용 카탈로그 버전"); }
+
+    Builder toBuilder() { return new Builder(this); }
+
+    // 다음 버전 작성기 – 처음 수정하는 세그먼트만 복사 (copy-on-write)
+    static final class Builder {
+        private final CatalogVersion base;
+        private final IsbnMap[] segments;
+        private final boolean[] copied = new boolean[SEGMENT_COUNT];
+        private int size;
+        private int expectedPerSegment; // 대량 적재 시 세그먼트 사본을 미리 키워 둘 크기
+
+        private Builder(CatalogVersion base) {
+            this.base = base;
+            this.segments = base.segments.clone();
+            this.size = base.size;
+        }
+
+        Book get(String isbn) { return lookup(segments, base.base, isbn); }
+
+        // 이번 버전에서 추가할 도서 수를 알려 주면 세그먼트를 한 번에 알맞은 크기로 복사한다
+        Builder expect(int additions) {
+            expectedPerSegment = additions / SEGMENT_COUNT + 1;
+            return this;
+        }
+
+        private IsbnMap writable(String isbn) {
+            int segment = segmentOf(isbn);
+            if (!copied[segment]) {
+                segments[segment] = segments[segment].copy(Math.max(1, expectedPerSegment));
+                copied[segment] = true;
+            }
+            return segments[segment];
+        }
+
+        Book put(Book book) {
+            Book previous = get(book.getIsbn());
+            writable(book.getIsbn()).put(book.getIsbn(), book);
+            if (previous == null) size++;
+            return previous;
+        }
+
+        Book remove(String isbn) {
+            Book previous = get(isbn);
+            if (previous == null) return null;
+            size--;
+            if (base.base != null && base.base.contains(isbn)) {
+                writable(isbn).put(isbn, REMOVED);
+            } else {
+                writable(isbn).remove(isbn);
+            }
+            return previous;
+        }
+
+        CatalogVersion build() {
+            return new CatalogVersion(base.version + 1, segments, size, base.base);
+        }
+    }
+}
+
+// Catalog – 다중 버전(MVCC) 도서 카탈로그
+// 읽기 측은 current() 로 불변 스냅샷을 잠금 없이 얻고, 쓰기 측은 잠금 아래에서 다음 버전을 만든 뒤
+// 참조 하나를 원자적으로 교체해 게시한다. 더 이상 읽는 쪽이 없는 이전 버전은 GC 가 회수한다.
+class Catalog implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final AtomicReference<CatalogVersion> current;
+
+    Catalog() {
+        this(null);
+    }
+
+    // 매핑 카탈로그 파일 위에서 시작 (변경분만 메모리에 유지)
+    Catalog(MappedCatalog base) {
+        current = new AtomicReference<>(CatalogVersion.mapped(base));
+    }
+
+    CatalogVersion current() { return current.get(); }
+
+    // 여러 변경을 하나의 버전으로 묶어 게시
+    synchronized CatalogVersion update(Consumer<CatalogVersion.Builder> changes) {
+        CatalogVersion.Builder builder = current.get().toBuilder();
+        changes.accept(builder);
+        CatalogVersion next = builder.build();
+        current.set(next);
+        return next;
+    }
+
+    // 신규 도서 추가 (이미 있으면 false)
+    synchronized boolean add(Book book) {
+        if (current.get().containsKey(book.getIsbn())) return false;
+        update(builder -> builder.put(book));
+        return true;
+    }
+
+    // 기존 도서를 새 버전으로 교체 (이전 버전 반환, 없으면 null 이고 변경 없음)
+    synchronized Book replace(Book book) {
+        Book previous = current.get().get(book.getIsbn());
+        if (previous != null) {
+            update(builder -> builder.put(book));
+        }
+        return previous;
+    }
+
+    synchronized Book remove(String isbn) {
+        Book previous = current.get().get(isbn);
+        if (previous != null) {
+            update(builder -> builder.remove(isbn));
+        }
+        return previous;
+    }
+}
+
+// BulkUpdate – 조건에 맞는 도서 전체의 가격/재고를 한 번에 바꾸는 일괄 작업
+// 카탈로그 스냅샷을 fork-join 으로 나눠 변경 내용을 계산하고, 가격 등 도서 정보는 하나의 카탈로그 버전으로 게시한다.
+// 따라서 읽기 측은 세일이 일부만 적용된 카탈로그를 볼 수 없다. 재고는 버전 간 공유 상태라 게시 직후 도서별로 반영된다.
+class BulkUpdate {
+    private static final int SPLIT_THRESHOLD = 4096;
+    private static final int PROGRESS_STEP_PERCENT = 10;
+
+    // 도서 한 권의 변경 – 새 버전(정보가 그대로면 before 와 같은 객체)과 재고 증가분
+    static final class Change {
+        final Book before;
+        final Book after;
+        final int restock;
+
+        Change(Book before, Book after, int restock) {
+            this.before = before;
+            this.after = after;
+            this.restock = restock;
+        }
+
+        @Override
+        public String toString() {
+            String text = "[" + before.getIsbn() + "] " + before.getTitle();
+            if (after != before) {
+                text += String.format(" $%.2f -> $%.2f", before.getPrice(), after.getPrice());
+            }
+            if (restock != 0) {
+                text += " 재고 +" + restock;
+            }
+            return text;
+        }
+    }
+
+    // 변경 규칙 – 바꿀 것이 없으면 null
+    interface Transformation {
+        Change apply(Book book);
+    }
+
+    // 진행률 보고 – 10% 단위로 작업 쓰레드에서 호출
+    interface ProgressListener {
+        void onProgress(long scanned, long total);
+    }
+
+    // 가격을 percent 만큼 조정 (-20 이면 20% 할인, 센트 단위 반올림)
+    static Transformation reprice(int percent) {
+        if (percent <= -100) throw new IllegalArgumentException("가격 조정률은 -100% 보다 커야 합니다: " + percent);
+        return book -> {
+            long cents = Math.round(book.getPriceCents() * (100L + percent) / 100.0);
+            if (cents > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("조정 후 가격이 표현 가능한 범위를 넘습니다: [" + book.getIsbn() + "] "
+                        + book.getTitle() + " " + percent + "%");
+            }
+            return cents == book.getPriceCents() ? null : new Change(book, book.withPriceCents((int) cents), 0);
+        };
+    }
+
+    // 장르/출판사 조건 (빈칸이면 전체) – 사전 id 로 비교
+    static Predicate<Book> matching(String genre, String publisher) {
+        int genreId = genre.isEmpty() ? -1 : Book.GENRES.find(genre);
+        int publisherId = publisher.isEmpty() ? -1 : Book.PUBLISHERS.find(publisher);
+        if ((!genre.isEmpty() && genreId < 0) || (!publisher.isEmpty() && publisherId < 0)) {
+            return book -> false;
+        }
+        return book -> (genreId < 0 || book.getGenreId() == genreId) && (publisherId < 0 || book.getPublisherId() == publisherId);
+    }
+
+    static Transformation restock(int units) {
+        if (units <= 0) throw new IllegalArgumentException("재입고 수량은 1 이상이어야 합니다: " + units);
+        return book -> new Change(book, book, units);
+    }
+
+    // 작업 결과 – 되돌리기에 필요한 변경 목록을 함께 보관
+    static final class Result {
+        final String name;
+        final boolean dryRun;
+        final long scanned;
+        final long elapsedNanos;
+        List<Change> changes;  // 게시 후에는 실제로 반영된 변경
+        long catalogVersion;   // 게시된 버전 (모의 실행이면 0)
+        int conflicts;         // 계산 후 게시 전에 다른 수정이 먼저 반영돼 다시 계산한 도서 수
+        boolean rolledBack;
+
+        Result(String name, boolean dryRun, long scanned, List<Change> changes, long elapsedNanos) {
+            this.name = name;
+            this.dryRun = dryRun;
+            this.scanned = scanned;
+            this.changes = changes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s%s: 검사 %d권, 변경 %d권, 재계산 %d권, %.1fms%s%s", dryRun ? "[모의 실행] " : "", name,
+                    scanned, changes.size(), conflicts, elapsedNanos / 1e6,
+                    catalogVersion > 0 ? " (카탈로그 버전 " + catalogVersion + ")" : "", rolledBack ? " [되돌림]" : "");
+        }
+    }
+
+    private final String name;
+    private final Predicate<Book> filter;
+    private final Transformation transformation;
+    private final ProgressListener progress;
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicInteger reportedPercent = new AtomicInteger(-1);
+    private long total;
+
+    BulkUpdate(String name, Predicate<Book> filter, Transformation transformation, ProgressListener progress) {
+        this.name = name;
+        this.filter = filter;
+        this.transformation = transformation;
+        this.progress = progress;
+    }
+
+    String getName() { return name; }
+
+    // 조건에 맞는 도서 한 권의 변경 계산 (게시 직전 충돌 재계산에도 사용)
+    Change changeFor(Book book) {
+        return book != null && filter.test(book) ? transformation.apply(book) : null;
+    }
+
+    // 스냅샷 전체의 변경 계산 – 카탈로그는 건드리지 않는다
+    Result compute(Map<String, Book> snapshot, boolean dryRun) {
+        long begin = System.nanoTime();
+        Book[] books = snapshot.values().toArray(new Book[0]);
+        total = books.length;
+        List<Change> changes = ForkJoinPool.commonPool().invoke(new ScanTask(books, 0, books.length));
+        return new Result(name, dryRun, books.length, changes, System.nanoTime() - begin);
+    }
+
+    private void scanned(int count) {
+        long done = scanned.addAndGet(count);
+        if (progress == null || total == 0) return; // 빈 카탈로그는 진행률을 보고하지 않음
+        int percent = (int) (done * 100 / total) / PROGRESS_STEP_PERCENT * PROGRESS_STEP_PERCENT;
+        int reported = reportedPercent.get();
+        if (percent > reported && reportedPercent.compareAndSet(reported, percent)) {
+            progress.onProgress(done, total);
+        }
+    }
+
+    private final class ScanTask extends RecursiveTask<List<Change>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Book[] books;
+        private final int from, to;
+
+        ScanTask(Book[] books, int from, int to) {
+            this.books = books;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Change> compute() {
+            if (to - from <= SPLIT_THRESHOLD) {
+                List<Change> changes = new ArrayList<>();
+                for (int i = from; i < to; i++) {
+                    Change change = changeFor(books[i]);
+                    if (change != null) changes.add(change);
+                }
+                scanned(to - from);
+                return changes;
+            }
+            int mid = (from + to) >>> 1;
+            ScanTask left = new ScanTask(books, from, mid);
+            left.fork();
+            List<Change> right = new ScanTask(books, mid, to).compute();
+            List<Change> changes = left.join();
+            changes.addAll(right);
+            return changes;
+        }
+    }
+}
+
+// MappedCatalog – 메모리 매핑된 읽기 전용 카탈로그 파일 (지연 로딩)
+// 파일 구성: [헤더][도서 레코드...][ISBN 해시 테이블(레코드 오프셋)]. 열 때는 헤더만 읽으므로 비용이 도서 수와
+// 무관하고, 도서는 처음 조회될 때 레코드에서 만들어져 크기 제한 LRU 캐시에 보관된다.
+// 재고/리뷰(LiveState)는 캐시에서 밀려나도 잃지 않도록, 쓰이는 동안은 ISBN 별로 하나만 존재하게 하고
+// 한 번이라도 바뀐 것은 강한 참조로 계속 보관한다.
+final class MappedCatalog {
+    private static final int MAGIC = 0x424B4D43; // "BKMC"
+    private static final int HEADER_BYTES = 16;  // magic, 도서 수, 해시 슬롯 수, 해시 테이블 위치
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final int tableSlots;
+    private final int tableOffset;
+    private final int cacheCapacity;
+    private final Map<String, Book> cache;       // 접근 순서 LRU – this 로 동기화
+    private final ConcurrentHashMap<String, LiveStateRef> liveStates = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Book.LiveState> collected = new ReferenceQueue<>();
+    private final ConcurrentHashMap<String, Book.LiveState> pinned = new ConcurrentHashMap<>(); // 변경된 재고/리뷰
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // 더 이상 쓰이지 않는 LiveState 를 맵에서 지우기 위한 약한 참조
+    private static final class LiveStateRef extends WeakReference<Book.LiveState> {
+        final String isbn;
+
+        LiveStateRef(String isbn, Book.LiveState state, ReferenceQueue<Book.LiveState> queue) {
+            super(state, queue);
+            this.isbn = isbn;
+        }
+    }
+
+    private MappedCatalog(Path path, MappedByteBuffer buffer, int cacheCapacity) {
+        this.path = path;
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("카탈로그 파일 형식이 아닙니다: " + path);
+        }
+        this.count = buffer.getInt(4);
+        this.tableSlots = buffer.getInt(8);
+        this.tableOffset = buffer.getInt(12);
+        this.cacheCapacity = cacheCapacity;
+        this.cache = new LinkedHashMap<String, Book>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Book> eldest) {
+                return size() > cacheCapacity;
+            }
+        };
+    }
+
+    static MappedCatalog open(Path path, int cacheCapacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new MappedCatalog(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), cacheCapacity);
+        }
+    }
+
+    // 같은 파일을 별도의 캐시/재고 상태로 다시 연다 (읽기 복제본용)
+    MappedCatalog reopen() throws IOException {
+        return open(path, cacheCapacity);
+    }
+
+    // 카탈로그 파일 작성 – 레코드를 순서대로 쓴 뒤 ISBN 해시 테이블과 헤더를 채운다
+    static void write(Path path, Collection<Book> books) throws IOException {
+        int slots = Integer.highestOneBit(Math.max(books.size(), 1) * 2 - 1) << 1;
+        int[] table = new int[slots];
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(0);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(file.getChannel()), 1 << 16));
+            out.write(new byte[HEADER_BYTES]);
+            ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+            DataOutputStream recordOut = new DataOutputStream(record);
+            for (Book book : books) {
+                record.reset();
+                writeString(recordOut, book.getIsbn());
+                writeString(recordOut, book.getTitle());
+                writeString(recordOut, book.getAuthor());
+                recordOut.writeInt(book.getPriceCents());
+                recordOut.writeInt(book.getQuantity());
+                writeString(recordOut, book.getGenre());
+                writeString(recordOut, book.getPublisher());
+                List<Review> reviews = book.getReviews();
+                recordOut.writeInt(reviews.size());
+                for (Review review : reviews) {
+                    writeString(recordOut, review.getUsername());
+                    recordOut.writeInt(review.getRating());
+                    writeString(recordOut, review.getReviewText());
+                    recordOut.writeLong(review.getReviewTime());
+                }
+                int offset = out.size();
+                int slot = slotOf(book.getIsbn(), slots);
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & (slots - 1);
+                }
+                table[slot] = offset;
+                out.writeInt(record.size());
+                record.writeTo(out);
+            }
+            int tableOffset = out.size();
+            for (int offset : table) {
+                out.writeInt(offset);
+            }
+            out.flush();
+            file.seek(0);
+            file.writeInt(MAGIC);
+            file.writeInt(books.size());
+            file.writeInt(slots);
+            file.writeInt(tableOffset);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static int slotOf(String isbn, int slots) {
+        int hash = isbn.hashCode();
+        return (hash ^ (hash >>> 16)) & (slots - 1);
+    }
+
+    Path getPath() { return path; }
+    int size()     { return count; }
+
+    // ISBN -> 레코드 위치 (없으면 -1)
+    private int find(String isbn) {
+        for (int slot = slotOf(isbn, tableSlots); ; slot = (slot + 1) & (tableSlots - 1)) {
+            int offset = buffer.getInt(tableOffset + slot * 4);
+            if (offset == 0) return -1;
+            if (readString(offset + 4).equals(isbn)) return offset;
+        }
+    }
+
+    boolean contains(String isbn) {
+        return find(isbn) >= 0;
+    }
+
+    // 단건 조회 – 캐시에 없으면 레코드에서 만들어 캐시에 넣는다
+    Book get(String isbn) {
+        synchronized (this) {
+            Book cached = cache.get(isbn);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+        }
+        misses.incrementAndGet();
+        int offset = find(isbn);
+        if (offset < 0) return null;
+        Book book = materialize(offset);
+        synchronized (this) {
+            cache.put(isbn, book);
+        }
+        return book;
+    }
+
+    // 전체 순회 – 목록/검색처럼 한 번 훑고 끝나는 읽기가 캐시를 밀어내지 않도록 캐시를 거치지 않는다
+    Iterator<Book> scan() {
+        return new Iterator<Book>() {
+            private int offset = HEADER_BYTES;
+
+            @Override public boolean hasNext() { return offset < tableOffset; }
+
+            @Override public Book next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Book book = materialize(offset);
+                offset += 4 + buffer.getInt(offset);
+                return book;
+            }
+        };
+    }
+
+    // 파일에 저장된 리뷰 수 (복제본 초기화 시 이후에 추가된 리뷰만 보내기 위함)
+    int storedReviewCount(String isbn) {
+        int offset = find(isbn);
+        if (offset < 0) return 0;
+        int position = offset + 4;
+        for (int i = 0; i < 3; i++) position = skipString(position); // isbn, title, author
+        position += 4 + 4;                                              // priceCents, quantity
+        for (int i = 0; i < 2; i++) position = skipString(position); // genre, publisher
+        return buffer.getInt(position);
+    }
+
+    // 파일 로딩 이후 재고나 리뷰가 바뀐 도서의 ISBN
+    Set<String> changedIsbns() {
+        return Collections.unmodifiableSet(pinned.keySet());
+    }
+
+    private Book materialize(int offset) {
+        int position = offset + 4;
+        String isbn = readString(position);      position = skipString(position);
+        String title = readString(position);     position = skipString(position);
+        String author = readString(position);    position = skipString(position);
+        int priceCents = buffer.getInt(position);    position += 4;
+        int quantity = buffer.getInt(position);      position += 4;
+        String genre = readString(position);     position = skipString(position);
+        String publisher = readString(position); position = skipString(position);
+        int reviewStart = position;
+        return Book.restore(isbn, title, author, priceCents, genre, publisher,
+                liveState(isbn, () -> {
+                    Book.LiveState state = new Book.LiveState(quantity, readReviews(reviewStart));
+                    state.pinOnChange = () -> pinned.putIfAbsent(isbn, state);
+                    return state;
+                }));
+    }
+
+    // ISBN 별로 쓰이는 LiveState 를 하나로 유지 – 바뀐 적이 있으면 보관분, 아직 쓰이는 중이면 그것을 반환
+    private Book.LiveState liveState(String isbn, Supplier<Book.LiveState> loader) {
+        Book.LiveState state = pinned.get(isbn);
+        if (state != null) return state;
+        for (Reference<? extends Book.LiveState> ref; (ref = collected.poll()) != null; ) {
+            liveStates.remove(((LiveStateRef) ref).isbn, ref);
+        }
+        LiveStateRef ref = liveStates.compute(isbn, (key, existing) ->
+                existing != null && existing.get() != null ? existing : new LiveStateRef(key, loader.get(), collected));
+        state = ref.get();
+        return state != null ? state : liveState(isbn, loader); // 방금 수거된 경우 다시 시도
+    }
+
+    private List<Review> readReviews(int position) {
+        int reviewCount = buffer.getInt(position);
+        position += 4;
+        List<Review> reviews = new ArrayList<>(reviewCount);
+        for (int i = 0; i < reviewCount; i++) {
+            String username = readString(position); position = skipString(position);
+            int rating = buffer.getInt(position);     position += 4;
+            String text = readString(position);     position = skipString(position);
+            long time = buffer.getLong(position);     position += 8;
+            reviews.add(new Review(username, rating, text, time));
+        }
+        return reviews;
+    }
+
+    private String readString(int position) {
+        byte[] bytes = new byte[buffer.getInt(position)];
+        buffer.get(position + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int skipString(int position) {
+        return position + 4 + buffer.getInt(position);
+    }
+
+    synchronized int getCachedCount() { return cache.size(); }
+    int getPinnedCount()              { return pinned.size(); }
+    long getCacheHits()               { return hits.get(); }
+    long getCacheMisses()             { return misses.get(); }
+
+    @Override
+    public String toString() {
+        long lookups = hits.get() + misses.get();
+        return String.format("%s (도서 %d, 캐시 %d, 변경 보관 %d, 캐시 적중률 %.1f%%)", path, count, getCachedCount(),
+                getPinnedCount(), lookups == 0 ? 0.0 : hits.get() * 100.0 / lookups);
+    }
+}
+
+// 사용자 정보를 관리하는 클래스 (회원 등급과 포인트 추가)
+class User implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private String username;
+    private String password;
+    UserRole role;
+    private MembershipLevel membershipLevel;
+    private int loyaltyPoints;
+
+    public User(String username, String password, UserRole role) {
+        this.username = username;
+        this.password = password;
+        this.role     = role;
+        this.membershipLevel = MembershipLevel.NORMAL;
+        this.loyaltyPoints = 0;
+    }
+
+    public String getUsername() { return username; }
+    public UserRole getRole()   { return role; }
+    public MembershipLevel getMembershipLevel() { return membershipLevel; }
+    public int getLoyaltyPoints() { return loyaltyPoints; }
+
+    public boolean checkPassword(String password) { return this.password.equals(password); }
+    public void setPassword(String newPassword) { this.password = newPassword; }
+
+    public void addLoyaltyPoints(int points) {
+        loyaltyPoints += points;
+        updateMembership();
+    }
+
+    // 복제/복원 시 포인트를 그대로 설정
+    void setLoyaltyPoints(int points) {
+        loyaltyPoints = points;
+        updateMembership();
+    }
+
+    // 간단한 기준에 따라 회원 등급 자동 업그레이드
+    private void updateMembership() {
+        membershipLevel = MembershipLevel.forPoints(loyaltyPoints);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s) - Points: %d", username, membershipLevel, loyaltyPoints);
+    }
+}
+
+// 주문 정보를 관리하는 클래스 (취소 및 반품 처리 기능 추가)
+// 주문 데이터는 OrderLog 의 컬럼에 저장되며, Order 는 필요할 때만 생성되는 읽기 전용 뷰이다.
+class Order implements Serializable {
+    private static final long serialVersionUID = 1L;
+    int orderId;  // 패키지 내부 접근용
+    Book book;
+    int orderQuantity;
+    private String username;
+    Date orderDate;
+    private int priceCents; // 주문 시점의 단가 (센트)
+    private boolean cancelled;
+    private boolean returned;
+
+    public Order(int orderId, String username, Book book, int orderQuantity) {
+        this(orderId, username, book, orderQuantity, book.getPriceCents(),
+                System.currentTimeMillis(), OrderLog.STATUS_COMPLETED);
+    }
+
+    Order(int orderId, String username, Book book, int orderQuantity, int priceCents, long orderTime, byte status) {
+        this.orderId = orderId;
+        this.username = username;
+        this.book = book;
+        this.orderQuantity = orderQuantity;
+        this.priceCents = priceCents;
+        this.orderDate = new Date(orderTime);
+        this.cancelled = status == OrderLog.STATUS_CANCELLED;
+        this.returned = status == OrderLog.STATUS_RETURNED;
+    }
+
+    public double getTotalPrice() { return (double) priceCents * orderQuantity / 100; }
+    public String getUsername() { return username; }
+    public boolean isCancelled() { return cancelled; }
+    public boolean isReturned() { return returned; }
+
+    @Override
+    public String toString() {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        String status = cancelled ? " (취소됨)" : (returned ? " (반품됨)" : "");
+        return String.format("Order #%d: %s (Qty: %d) ordered by %s on %s | Total: $%.2f%s",
+                orderId, book.getTitle(), orderQuantity, username, sdf.format(orderDate), getTotalPrice(), status);
+    }
+}
+
+// 주문 로그 – 주문을 객체 대신 원시 타입 컬럼으로 저장하는 열 지향 저장소
+// 사용자명과 도서는 사전(dictionary)을 통해 정수 인덱스로 저장하고, Order 객체는 조회 시에만 생성한다.
+// 쓰기는 한 스레드(BookMarket)만 수행하며, 읽기 측은 volatile size 를 먼저 읽어 그 범위의 행만 접근한다.
+class OrderLog implements Serializable {
+    private static final long serialVersionUID = 1L;
+    static final byte STATUS_COMPLETED = 0;
+    static final byte STATUS_CANCELLED = 1;
+    static final byte STATUS_RETURNED  = 2;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // 주문 컬럼 (행 번호 = 추가된 순서)
+    private int[]  orderIds    = new int[INITIAL_CAPACITY];
+    private int[]  bookIndexes = new int[INITIAL_CAPACITY];
+    private int[]  userIndexes = new int[INITIAL_CAPACITY];
+    private int[]  quantities  = new int[INITIAL_CAPACITY];
+    private long[] orderTimes  = new long[INITIAL_CAPACITY]; // epoch millis
+    private int[]  priceCents  = new int[INITIAL_CAPACITY];  // 주문 시점 단가 (센트)
+    private byte[] statuses    = new byte[INITIAL_CAPACITY];
+    private volatile int size;
+
+    // 사용자명 사전: username <-> 사용자 인덱스
+    private final Map<String, Integer> userDictionary = new ConcurrentHashMap<>();
+    private String[] usernames = new String[64];
+    private volatile int userCount;
+
+    // 도서 사전: ISBN <-> 도서 인덱스 (카탈로그에서 삭제된 도서도 주문 조회를 위해 유지)
+    private final Map<String, Integer> bookDictionary = new ConcurrentHashMap<>();
+    private Book[] books = new Book[64];
+    private volatile int bookCount;
+
+    // 주문 한 건을 컬럼 끝에 추가하고 행 번호를 반환
+    int append(int orderId, String username, Book book, int quantity, int unitPriceCents, long orderTime) {
+        int row = size;
+        if (row == orderIds.length) {
+            grow(row * 2);
+        }
+        orderIds[row]    = orderId;
+        bookIndexes[row] = internBook(book);
+        userIndexes[row] = internUser(username);
+        quantities[row]  = quantity;
+        orderTimes[row]  = orderTime;
+        priceCents[row]  = unitPriceCents;
+        statuses[row]    = STATUS_COMPLETED;
+        size = row + 1;
+        return row;
+    }
+
+    private void grow(int capacity) {
+        orderIds    = Arrays.copyOf(orderIds, capacity);
+        bookIndexes = Arrays.copyOf(bookIndexes, capacity);
+        userIndexes = Arrays.copyOf(userIndexes, capacity);
+        quantities  = Arrays.copyOf(quantities, capacity);
+        orderTimes  = Arrays.copyOf(orderTimes, capacity);
+        priceCents  = Arrays.copyOf(priceCents, capacity);
+        statuses    = Arrays.copyOf(statuses, capacity);
+    }
+
+    private int internUser(String username) {
+        Integer index = userDictionary.get(username);
+        if (index != null) return index;
+        int newIndex = userCount;
+        if (newIndex == usernames.length) {
+            usernames = Arrays.copyOf(usernames, newIndex * 2);
+        }
+        usernames[newIndex] = username;
+        userCount = newIndex + 1;
+        userDictionary.put(username, newIndex);
+        return newIndex;
+    }
+
+    private int internBook(Book book) {
+        Integer index = bookDictionary.get(book.getIsbn());
+        if (index != null) {
+            books[index] = book;
+            return index;
+        }
+        int newIndex = bookCount;
+        if (newIndex == books.length) {
+            books = Arrays.copyOf(books, newIndex * 2);
+        }
+        books[newIndex] = book;
+        bookCount = newIndex + 1;
+        bookDictionary.put(book.getIsbn(), newIndex);
+        return newIndex;
+    }
+
+    // 컬럼 접근자 – 보고서 코드에서 for 루프로 직접 스캔하기 위함
+    int size()                 { return size; }
+    int orderId(int row)       { return orderIds[row]; }
+    int bookIndex(int row)     { return bookIndexes[row]; }
+    int userIndex(int row)     { return userIndexes[row]; }
+    int quantity(int row)      { return quantities[row]; }
+    long orderTime(int row)    { return orderTimes[row]; }
+    int priceCents(int row)    { return priceCents[row]; }
+    byte status(int row)       { return statuses[row]; }
+    boolean isCompleted(int row) { return statuses[row] == STATUS_COMPLETED; }
+    long totalCents(int row)   { return (long) priceCents[row] * quantities[row]; }
+
+    void setStatus(int row, byte status) { statuses[row] = status; }
+
+    int userCount()             { return userCount; }
+    String username(int index)  { return usernames[index]; }
+    int bookCount()             { return bookCount; }
+    Book book(int index)        { return books[index]; }
+
+    int userIndexOf(String username) {
+        Integer index = userDictionary.get(username);
+        return index == null ? -1 : index;
+    }
+
+    int bookIndexOf(String isbn) {
+        Integer index = bookDictionary.get(isbn);
+        return index == null ? -1 : index;
+    }
+
+    // 도서가 새 버전으로 교체되면 사전이 최신 버전을 가리키도록 갱신
+    void refreshBook(Book book) {
+        Integer index = bookDictionary.get(book.getIsbn());
+        if (index != null) {
+            books[index] = book;
+        }
+    }
+
+    // 주문번호로 행 찾기 – 주문번호는 추가 순서대로 증가하므로 이진 탐색
+    int findRow(int orderId) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int id = orderIds[mid];
+            if (id < orderId) {
+                low = mid + 1;
+            } else if (id > orderId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // 필요할 때만 Order 객체로 변환
+    Order materialize(int row) {
+        return new Order(orderIds[row], usernames[userIndexes[row]], books[bookIndexes[row]],
+                quantities[row], priceCents[row], orderTimes[row], statuses[row]);
+    }
+
+    // 기존 List<Order> 사용처를 위한 읽기 전용 뷰 (접근 시점에 Order 생성)
+    List<Order> asList() {
+        return new AbstractList<Order>() {
+            @Override public Order get(int row) {
+                if (row < 0 || row >= size) throw new IndexOutOfBoundsException("row: " + row);
+                return materialize(row);
+            }
+            @Override public int size() { return size; }
+        };
+    }
+}
+
+// 판매 큐브 – 일(day) 단위 버킷 × 도서로 사전 집계한 매출 롤업 (OLAP 스타일)
+// 도서 인덱스는 OrderLog 사전을 공유하며, 장르/출판사/ISBN 은 조회 시점에 도서 속성으로 결합한다.
+// 주문/취소/반품 시 해당 일자 버킷만 증분 갱신하므로, 조회는 주문 전체가 아닌 버킷만 합산한다.
+class SalesCube {
+    enum Dimension { DAY, MONTH, GENRE, PUBLISHER, ISBN }
+
+    private static final int PARALLEL_BUCKET_THRESHOLD = 32; // 이 이상의 버킷은 병렬 합산
+    private static final int BUILD_CHUNK_SIZE = 64 * 1024;   // 초기 구축 시 병렬 작업 단위(행 수)
+
+    private final OrderLog orderLog;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final ConcurrentSkipListMap<Long, DayBucket> buckets = new ConcurrentSkipListMap<>(); // epochDay -> 버킷
+
+    SalesCube(OrderLog orderLog) {
+        this.orderLog = orderLog;
+    }
+
+    // 조회 결과 한 행 (그룹 키, 매출, 판매량)
+    static final class Row {
+        private final String key;
+        private final String label;
+        private final long revenueCents;
+        private final long units;
+
+        Row(String key, String label, long revenueCents, long units) {
+            this.key = key;
+            this.label = label;
+            this.revenueCents = revenueCents;
+            this.units = units;
+        }
+
+        String getKey()        { return key; }
+        String getLabel()      { return label; }
+        long getRevenueCents() { return revenueCents; }
+        double getRevenue()    { return revenueCents / 100.0; }
+        long getUnits()        { return units; }
+
+        Row merge(Row other) {
+            return new Row(key, label, revenueCents + other.revenueCents, units + other.units);
+        }
+    }
+
+    // 하루치 버킷 – 도서 인덱스 -> (매출 센트, 판매량) 개방 주소법 해시
+    static final class DayBucket {
+        private final long epochDay;
+        private int[] bookIndexes = new int[16];
+        private long[] revenueCents = new long[16];
+        private long[] units = new long[16];
+        private boolean[] used = new boolean[16];
+        private int cells;
+
+        DayBucket(long epochDay) {
+            this.epochDay = epochDay;
+        }
+
+        long getEpochDay() { return epochDay; }
+
+        synchronized void add(int bookIndex, long cents, long quantity) {
+            if ((cells + 1) * 4 > used.length * 3) {
+                rehash(used.length * 2);
+            }
+            int slot = findSlot(bookIndexes, used, bookIndex);
+            if (!used[slot]) {
+                used[slot] = true;
+                bookIndexes[slot] = bookIndex;
+                cells++;
+            }
+            revenueCents[slot] += cents;
+            units[slot] += quantity;
+        }
+
+        private static int findSlot(int[] keys, boolean[] used, int key) {
+            int mask = keys.length - 1;
+            int hash = key * 0x9E3779B9;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (used[slot] && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void rehash(int capacity) {
+            int[] oldKeys = bookIndexes;
+            long[] oldRevenue = revenueCents;
+            long[] oldUnits = units;
+            boolean[] oldUsed = used;
+            bookIndexes = new int[capacity];
+            revenueCents = new long[capacity];
+            units = new long[capacity];
+            used = new boolean[capacity];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    int slot = findSlot(bookIndexes, used, oldKeys[i]);
+                    used[slot] = true;
+                    bookIndexes[slot] = oldKeys[i];
+                    revenueCents[slot] = oldRevenue[i];
+                    units[slot] = oldUnits[i];
+                }
+            }
+        }
+
+        // 허용된 도서만 합산 -> [매출, 판매량]
+        synchronized void accumulateTotal(boolean[] allowed, long[] acc) {
+            for (int i = 0; i < used.length; i++) {
+                if (used[i] && (allowed == null || allowed[bookIndexes[i]])) {
+                    acc[0] += revenueCents[i];
+                    acc[1] += units[i];
+                }
+            }
+        }
+
+        // 허용된 도서를 도서 인덱스별 배열에 합산 -> acc[0]=매출, acc[1]=판매량
+        synchronized void accumulateByBook(boolean[] allowed, long[][] acc) {
+            for (int i = 0; i < used.length; i++) {
+                int bookIndex = bookIndexes[i];
+                if (used[i] && bookIndex < acc[0].length && (allowed == null || allowed[bookIndex])) {
+                    acc[0][bookIndex] += revenueCents[i];
+                    acc[1][bookIndex] += units[i];
+                }
+            }
+        }
+
+        synchronized void mergeFrom(DayBucket other) {
+            for (int i = 0; i < other.used.length; i++) {
+                if (other.used[i]) {
+                    add(other.bookIndexes[i], other.revenueCents[i], other.units[i]);
+                }
+            }
+        }
+    }
+
+    // 주문 이력으로부터 큐브 구축 – 행 범위를 청크로 나눠 병렬 스트림으로 부분 집계 후 병합
+    static SalesCube build(OrderLog orderLog) {
+        SalesCube cube = new SalesCube(orderLog);
+        int size = orderLog.size();
+        int chunks = (size + BUILD_CHUNK_SIZE - 1) / BUILD_CHUNK_SIZE;
+        Map<Long, DayBucket> built = IntStream.range(0, chunks).parallel()
+                .mapToObj(chunk -> {
+                    Map<Long, DayBucket> partial = new HashMap<>();
+                    int end = Math.min(size, (chunk + 1) * BUILD_CHUNK_SIZE);
+                    for (int row = chunk * BUILD_CHUNK_SIZE; row < end; row++) {
+                        if (orderLog.isCompleted(row)) {
+                            long day = cube.epochDayOf(orderLog.orderTime(row));
+                            partial.computeIfAbsent(day, DayBucket::new)
+                                    .add(orderLog.bookIndex(row), orderLog.totalCents(row), orderLog.quantity(row));
+                        }
+                    }
+                    return partial;
+                })
+                .reduce(new HashMap<>(), (left, right) -> {
+                    Map<Long, DayBucket> merged = new HashMap<>(left);
+                    right.forEach((day, bucket) -> {
+                        DayBucket existing = merged.putIfAbsent(day, bucket);
+                        if (existing != null) {
+                            DayBucket combined = new DayBucket(day);
+                            combined.mergeFrom(existing);
+                            combined.mergeFrom(bucket);
+                            merged.put(day, combined);
+                        }
+                    });
+                    return merged;
+                });
+        cube.buckets.putAll(built);
+        return cube;
+    }
+
+    long epochDayOf(long epochMillis) {
+        return Instant.ofEpochMilli(epochMillis).atZone(zone).toLocalDate().toEpochDay();
+    }
+
+    // 주문 발생 – 주문일 버킷에 가산
+    void recordOrder(int row) {
+        bucketFor(orderLog.orderTime(row))
+                .add(orderLog.bookIndex(row), orderLog.totalCents(row), orderLog.quantity(row));
+    }
+
+    // 취소/반품 – 원래 주문일 버킷에서 차감
+    void recordReversal(int row) {
+        bucketFor(orderLog.orderTime(row))
+                .add(orderLog.bookIndex(row), -orderLog.totalCents(row), -orderLog.quantity(row));
+    }
+
+    private DayBucket bucketFor(long epochMillis) {
+        return buckets.computeIfAbsent(epochDayOf(epochMillis), DayBucket::new);
+    }
+
+    LocalDate firstDay() { return buckets.isEmpty() ? null : LocalDate.ofEpochDay(buckets.firstKey()); }
+    LocalDate lastDay()  { return buckets.isEmpty() ? null : LocalDate.ofEpochDay(buckets.lastKey()); }
+    int bucketCount()    { return buckets.size(); }
+
+    // 기간 × 그룹 기준 × (선택) 장르/출판사 필터 × Top-N 매출 조회
+    // topN > 0 이면 매출 내림차순 상위 N 개, 아니면 그룹 키 오름차순 전체를 반환
+    List<Row> query(LocalDate from, LocalDate to, Dimension groupBy, String genre, String publisher, int topN) {
+        Collection<DayBucket> range = buckets.subMap(from.toEpochDay(), true, to.toEpochDay(), true).values();
+        Stream<DayBucket> stream = range.size() >= PARALLEL_BUCKET_THRESHOLD ? range.parallelStream() : range.stream();
+        int bookCount = orderLog.bookCount();
+        boolean[] allowed = bookFilter(bookCount, genre, publisher);
+
+        Map<String, Row> grouped = new HashMap<>();
+        if (groupBy == Dimension.DAY || groupBy == Dimension.MONTH) {
+            List<Row> perDay = stream.map(bucket -> {
+                long[] total = new long[2];
+                bucket.accumulateTotal(allowed, total);
+                String day = LocalDate.ofEpochDay(bucket.getEpochDay()).toString();
+                String key = groupBy == Dimension.MONTH ? day.substring(0, 7) : day;
+                return new Row(key, key, total[0], total[1]);
+            }).collect(Collectors.toList());
+            for (Row row : perDay) {
+                if (row.getUnits() != 0 || row.getRevenueCents() != 0) {
+                    grouped.merge(row.getKey(), row, Row::merge);
+                }
+            }
+        } else {
+            long[][] byBook = stream.collect(() -> new long[2][bookCount],
+                    (acc, bucket) -> bucket.accumulateByBook(allowed, acc),
+                    (left, right) -> {
+                        for (int i = 0; i < bookCount; i++) {
+                            left[0][i] += right[0][i];
+                            left[1][i] += right[1][i];
+                        }
+                    });
+            for (int i = 0; i < bookCount; i++) {
+                if (byBook[0][i] == 0 && byBook[1][i] == 0) continue;
+                Book book = orderLog.book(i);
+                String key;
+                String label;
+                if (groupBy == Dimension.GENRE) {
+                    key = label = book.getGenre();
+                } else if (groupBy == Dimension.PUBLISHER) {
+                    key = label = book.getPublisher();
+                } else {
+                    key = book.getIsbn();
+                    label = book.getTitle() + " [" + book.getIsbn() + "]";
+                }
+                grouped.merge(key, new Row(key, label, byBook[0][i], byBook[1][i]), Row::merge);
+            }
+        }
+
+        List<Row> rows = new ArrayList<>(grouped.values());
+        if (topN > 0) {
+            rows.sort((a, b) -> Long.compare(b.getRevenueCents(), a.getRevenueCents()));
+            return rows.size() > topN ? new ArrayList<>(rows.subList(0, topN)) : rows;
+        }
+        rows.sort(Comparator.comparing(Row::getKey));
+        return rows;
+    }
+
+    // 장르/출판사 조건에 맞는 도서 인덱스 표시 (조건이 없으면 null)
+    private boolean[] bookFilter(int bookCount, String genre, String publisher) {
+        boolean filterGenre = genre != null && !genre.isEmpty();
+        boolean filterPublisher = publisher != null && !publisher.isEmpty();
+        if (!filterGenre && !filterPublisher) return null;
+        boolean[] allowed = new boolean[bookCount];
+        for (int i = 0; i < bookCount; i++) {
+            Book book = orderLog.book(i);
+            allowed[i] = (!filterGenre || genre.equals(book.getGenre()))
+                    && (!filterPublisher || publisher.equals(book.getPublisher()));
+        }
+        return allowed;
+    }
+}
+
+// 장바구니 관련 클래스
+class CartItem implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private Book book;
+    private int quantity;
+    private int reserved;                         // 이 항목을 위해 확보해 둔 재고 수량
+    private transient TimingWheel.Timeout expiry; // 확보 만료 작업 (없으면 null)
+
+    public CartItem(Book book, int quantity) {
+        this.book = book;
+        this.quantity = quantity;
+    }
+
+    public Book getBook() { return book; }
+    public int getQuantity() { return quantity; }
+    public void setQuantity(int quantity) { this.quantity = quantity; }
+    int getReserved() { return reserved; }
+    void setReserved(int reserved) { this.reserved = reserved; }
+    TimingWheel.Timeout getExpiry() { return expiry; }
+    void setExpiry(TimingWheel.Timeout expiry) { this.expiry = expiry; }
+
+    @Override
+    public String toString() {
+        String status = reserved >= quantity ? "" : reserved == 0 ? " [재고 미확보]" : " [" + reserved + "권만 확보]";
+        return book.getTitle() + " (Qty: " + quantity + ")" + status;
+    }
+}
+
+class ShoppingCart implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private List<CartItem> items;
+
+    public ShoppingCart() { items = new ArrayList<>(); }
+
+    public CartItem addItem(Book book, int quantity) {
+        for (CartItem item : items) {
+            if (item.getBook().getIsbn().equals(book.getIsbn())) {
+                item.setQuantity(item.getQuantity() + quantity);
+                return item;
+            }
+        }
+        CartItem item = new CartItem(book, quantity);
+        items.add(item);
+        return item;
+    }
+
+    CartItem getItem(String isbn) {
+        for (CartItem item : items) {
+            if (item.getBook().getIsbn().equals(isbn)) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    public boolean updateItem(String isbn, int quantity) {
+        for (CartItem item : items) {
+            if (item.getBook().getIsbn().equals(isbn)) {
+                item.setQuantity(quantity);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean removeItem(String isbn) {
+        Iterator<CartItem> iter = items.iterator();
+        while (iter.hasNext()) {
+            CartItem item = iter.next();
+            if (item.getBook().getIsbn().equals(isbn)) {
+                iter.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void viewCart() {
+        if (items.isEmpty()) {
+            System.out.println("장바구니가 비어 있습니다.");
+            return;
+        }
+        System.out.println("=== 장바구니 ===");
+        for (CartItem item : items) {
+            System.out.println(item);
+        }
+        System.out.printf("총 금액: $%.2f%n", getTotalPrice());
+    }
+
+    public double getTotalPrice() {
+        double total = 0;
+        for (CartItem item : items) {
+            total += item.getBook().getPrice() * item.getQuantity();
+        }
+        return total;
+    }
+
+    public List<CartItem> getItems() { return items; }
+    public void clear() { items.clear(); }
+}
+
+// PaymentGateway – 결제 및 환불 시뮬레이션
+class PaymentGateway {
+    private static volatile long simulatedLatencyMillis = 1000;
+
+    // 벤치마크 등에서 지연 시뮬레이션 시간을 조정
+    static void setSimulatedLatency(long millis) { simulatedLatencyMillis = millis; }
+
+    public static boolean processPayment(double amount) {
+        try {
+            System.out.println("결제 처리 중... 금액: $" + amount);
+            Thread.sleep(simulatedLatencyMillis); // 지연 시뮬레이션
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        System.out.println("결제 완료.");
+        return true;
+    }
+
+    public static boolean processRefund(double amount) {
+        try {
+            System.out.println("환불 처리 중... 금액: $" + amount);
+            Thread.sleep(simulatedLatencyMillis);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        System.out.println("환불 완료.");
+        return true;
+    }
+}
+
+// 결제 대행사 – 호출 한 번에 여러 항목을 처리하고, 실패하면 IOException (일부 항목은 이미 반영되었을 수 있다)
+interface PaymentProcessor {
+    void submit(String batchId, List<PaymentSettlement.Entry> entries) throws IOException;
+}
+
+// 결제 대행사 스텁 – 호출마다 지연을 주고, 일정 확률로 반영 전 실패나 반영 후 응답 유실을 일으킨다
+// 이미 반영된 멱등 키의 항목은 다시 반영하지 않으며, 초당 호출 한도를 넘는 호출은 거절한다.
+class StubPaymentProcessor implements PaymentProcessor {
+    private final long latencyMillis;
+    private final double failureRate;       // 반영 전에 실패할 확률
+    private final double lostResponseRate;  // 반영은 되었지만 응답을 받지 못할 확률
+    private final int callsPerSecond;       // 0 이면 한도 없음
+    private final Random random;
+    private final Set<String> appliedKeys = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> balances = new ConcurrentHashMap<>(); // 사용자별 순 매입액 (센트)
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private long rateWindowStart;
+    private int rateWindowCalls;
+
+    StubPaymentProcessor(long latencyMillis, double failureRate, double lostResponseRate, int callsPerSecond, long seed) {
+        this.latencyMillis = latencyMillis;
+        this.failureRate = failureRate;
+        this.lostResponseRate = lostResponseRate;
+        this.callsPerSecond = callsPerSecond;
+        this.random = new Random(seed);
+    }
+
+    @Override
+    public void submit(String batchId, List<PaymentSettlement.Entry> entries) throws IOException {
+        calls.incrementAndGet();
+        if (!admit()) {
+            rejected.incrementAndGet();
+            throw new IOException("호출 한도 초과: " + batchId);
+        }
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("결제 대행사 호출 중단: " + batchId);
+        }
+        double roll;
+        synchronized (random) {
+            roll = random.nextDouble();
+        }
+        if (roll < failureRate) {
+            failures.incrementAndGet();
+            throw new IOException("결제 대행사 일시 오류: " + batchId);
+        }
+        for (PaymentSettlement.Entry entry : entries) {
+            if (!appliedKeys.add(entry.idempotencyKeys.get(0))) {
+                duplicates.incrementAndGet(); // 항목은 통째로 반영되므로 첫 키만 확인
+                continue;
+            }
+            appliedKeys.addAll(entry.idempotencyKeys);
+            balances.merge(entry.username, entry.netCents, Long::sum);
+        }
+        if (roll < failureRate + lostResponseRate) {
+            failures.incrementAndGet();
+            throw new IOException("결제 대행사 응답 유실: " + batchId);
+        }
+    }
+
+    private synchronized boolean admit() {
+        if (callsPerSecond <= 0) return true;
+        long now = System.currentTimeMillis();
+        if (now - rateWindowStart >= 1000) {
+            rateWindowStart = now;
+            rateWindowCalls = 0;
+        }
+        return ++rateWindowCalls <= callsPerSecond;
+    }
+
+    long getBalance(String username) { return balances.getOrDefault(username, 0L); }
+    long getCalls()      { return calls.get(); }
+    long getFailures()   { return failures.get(); }
+    long getRejected()   { return rejected.get(); }
+    long getDuplicates() { return duplicates.get(); }
+}
+
+// 일괄 정산 – 주문 시점에는 승인만 즉시 하고, 매입(capture)과 환불은 시간/건수 창에 모아 대행사에 한 번에 보낸다
+// 창 안에서 아직 보내지 않은 매입의 주문이 반품되면 매입 자체를 취소하고, 나머지는 사용자별로 매입과 환불을 상계한
+// 순액만 보낸다. 항목에는 주문번호로 만든 멱등 키가 붙으므로, 실패하거나 응답을 받지 못한 묶음을 같은 항목으로
+// 다시 보내도 대행사에서는 한 번만 반영된다.
+class PaymentSettlement {
+    private static final Logger logger = Logger.getLogger(PaymentSettlement.class.getName());
+
+    // 대행사로 보내는 사용자별 순액 항목 (양수: 매입, 음수: 환불)
+    static final class Entry {
+        final String username;
+        final long netCents;
+        final List<String> idempotencyKeys; // "capture-<주문번호>", "refund-<주문번호>"
+
+        Entry(String username, long netCents, List<String> idempotencyKeys) {
+            this.username = username;
+            this.netCents = netCents;
+            this.idempotencyKeys = idempotencyKeys;
+        }
+    }
+
+    // 정산 대기 중인 매입/환불 한 건
+    private static final class Operation {
+        final int orderId;
+        final String username;
+        final long cents;
+        final boolean refund;
+        final long queuedNanos = System.nanoTime();
+        boolean voided; // 보내기 전에 반품되어 매입이 취소됨
+
+        Operation(int orderId, String username, long cents, boolean refund) {
+            this.orderId = orderId;
+            this.username = username;
+            this.cents = cents;
+            this.refund = refund;
+        }
+    }
+
+    // 모든 재시도에 실패해 다음 창에서 같은 항목으로 다시 보낼 묶음
+    private static final class Batch {
+        final String id;
+        final List<Entry> entries;
+        final List<Operation> operations;
+
+        Batch(String id, List<Entry> entries, List<Operation> operations) {
+            this.id = id;
+            this.entries = entries;
+            this.operations = operations;
+        }
+    }
+
+    private final PaymentProcessor processor;
+    private final long windowMillis;
+    private final int batchSize;
+    private volatile int maxAttempts = 4;
+    private volatile long retryBackoffMillis = 50;             // 재시도마다 두 배
+    private volatile long authorizationLimitCents = 1_000_000; // 사용자별 미정산 매입 한도
+
+    private List<Operation> pending = new ArrayList<>();
+    private final Map<Integer, Operation> pendingCaptures = new HashMap<>(); // 아직 보내지 않은 매입 (반품 시 취소 대상)
+    private final Map<String, Long> exposure = new HashMap<>();             // 사용자별 정산 전 매입 합계
+    private final Deque<Batch> stalled = new ArrayDeque<>();
+    private long batchSequence;
+    private volatile boolean inFlight;
+    private volatile long lastFlushNanos = System.nanoTime();
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    // 지표
+    private long captures;
+    private long refunds;
+    private long voided;
+    private long settledOperations;
+    private long nettedUsers;   // 순액이 0 이라 보내지 않은 사용자 항목
+    private long calls;
+    private long failedCalls;
+    private long totalSettleNanos;
+    private long maxSettleNanos;
+
+    PaymentSettlement(PaymentProcessor processor, long windowMillis, int batchSize) {
+        this.processor = processor;
+        this.windowMillis = windowMillis;
+        this.batchSize = batchSize;
+        flusher = new Thread(this::flushLoop, "payment-settlement");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // 즉시 승인 – 정산 전 매입이 사용자 한도를 넘지 않으면 통과 (대행사 호출 없음)
+    // 승인한 금액은 바로 한도에 잡아 두므로 같은 사용자의 동시 주문이 함께 한도를 넘지 못한다.
+    // 승인 후 주문이 기록되지 않으면 releaseAuthorization 으로 되돌려야 한다.
+    synchronized boolean authorize(String username, long cents) {
+        if (cents <= 0) return false;
+        long outstanding = exposure.getOrDefault(username, 0L);
+        if (outstanding + cents > authorizationLimitCents) {
+            System.out.printf("결제 승인 거절: 정산 대기 금액 $%.2f 가 한도를 넘습니다.%n", (outstanding + cents) / 100.0);
+            return false;
+        }
+        exposure.merge(username, cents, Long::sum);
+        System.out.printf("결제 승인 완료: $%.2f (매입은 일괄 정산)%n", cents / 100.0);
+        return true;
+    }
+
+    // 승인했지만 매입으로 이어지지 않은 금액을 한도에서 뺀다
+    synchronized void releaseAuthorization(String username, long cents) {
+        exposure.merge(username, -cents, Long::sum);
+    }
+
+    // 승인된 주문의 매입을 다음 창에 예약 (한도는 승인 때 이미 잡혀 있음)
+    synchronized void capture(int orderId, String username, long cents) {
+        Operation operation = new Operation(orderId, username, cents, false);
+        enqueue(operation);
+        pendingCaptures.put(orderId, operation);
+        captures++;
+    }
+
+    // 환불 예약 – 아직 보내지 않은 매입이면 매입을 취소하고 대행사에는 아무것도 보내지 않는다
+    synchronized void refund(int orderId, String username, long cents) {
+        Operation capture = pendingCaptures.remove(orderId);
+        if (capture != null) {
+            capture.voided = true;
+            exposure.merge(username, -capture.cents, Long::sum);
+            voided++;
+            return;
+        }
+        enqueue(new Operation(orderId, username, cents, true));
+        refunds++;
+    }
+
+    private void enqueue(Operation operation) {
+        pending.add(operation);
+        if (pending.size() >= batchSize) {
+            LockSupport.unpark(flusher);
+        }
+    }
+
+    private void flushLoop() {
+        long windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        while (running) {
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (pending.size() >= batchSize) {
+                    waitNanos = 0;
+                } else if (!pending.isEmpty()) {
+                    waitNanos = pending.get(0).queuedNanos + windowNanos - now; // 가장 오래된 건이 창을 채우면
+                } else if (!stalled.isEmpty()) {
+                    waitNanos = lastFlushNanos + windowNanos - now; // 밀린 묶음은 창마다 다시 시도
+                } else {
+                    waitNanos = windowNanos;
+                }
+            }
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(waitNanos);
+            } else {
+                flush();
+            }
+        }
+    }
+
+    // 밀린 묶음을 먼저 다시 보내고, 대기 중인 매입/환불을 사용자별 순액 항목으로 묶어 한 번에 보낸다
+    private void flush() {
+        List<Operation> operations;
+        synchronized (this) {
+            operations = pending;
+            pending = new ArrayList<>();
+            pendingCaptures.clear(); // 보내기 시작한 매입은 더 이상 취소할 수 없다 (이후 반품은 환불로)
+            inFlight = true;
+        }
+        try {
+            while (true) {
+                Batch retry;
+                synchronized (this) {
+                    retry = stalled.peekFirst();
+                }
+                if (retry == null || !send(retry)) break;
+                synchronized (this) {
+                    stalled.pollFirst();
+                }
+            }
+            Map<String, List<Operation>> byUser = new LinkedHashMap<>();
+            for (Operation operation : operations) {
+                if (!operation.voided) {
+                    byUser.computeIfAbsent(operation.username, name -> new ArrayList<>()).add(operation);
+                }
+            }
+            List<Entry> entries = new ArrayList<>();
+            List<Operation> sent = new ArrayList<>();
+            long netted = 0;
+            for (Map.Entry<String, List<Operation>> user : byUser.entrySet()) {
+                long net = 0;
+                List<String> keys = new ArrayList<>();
+                for (Operation operation : user.getValue()) {
+                    net += operation.refund ? -operation.cents : operation.cents;
+                    keys.add((operation.refund ? "refund-" : "capture-") + operation.orderId);
+                }
+                if (net == 0) {
+                    netted++; // 매입과 환불이 상쇄되어 보낼 금액이 없다
+                    settled(user.getValue());
+                } else {
+                    entries.add(new Entry(user.getKey(), net, keys));
+                    sent.addAll(user.getValue());
+                }
+            }
+            synchronized (this) {
+                nettedUsers += netted;
+            }
+            if (!entries.isEmpty()) {
+                Batch batch;
+                synchronized (this) {
+                    batch = new Batch("batch-" + (++batchSequence), entries, sent);
+                }
+                boolean blocked;
+                synchronized (this) {
+                    blocked = !stalled.isEmpty(); // 앞선 묶음이 아직 실패 중이면 순서를 지켜 뒤에 줄 세운다
+                    if (blocked) stalled.addLast(batch);
+                }
+                if (!blocked && !send(batch)) {
+                    synchronized (this) {
+                        stalled.addLast(batch);
+                    }
+                }
+            }
+        } finally {
+            lastFlushNanos = System.nanoTime();
+            inFlight = false;
+        }
+    }
+
+    // 같은 묶음을 지수 백오프로 재시도 – 모두 실패하면 false
+    private boolean send(Batch batch) {
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            try {
+                synchronized (this) {
+                    calls++;
+                }
+                processor.submit(batch.id, batch.entries);
+                settled(batch.operations);
+                return true;
+            } catch (IOException e) {
+                synchronized (this) {
+                    failedCalls++;
+                }
+                logger.log(Level.WARNING, "정산 묶음 전송 실패 (" + batch.id + ", " + attempt + "/" + maxAttempts + "회): "
+                        + e.getMessage());
+                if (attempt < maxAttempts) {
+                    try {
+                        Thread.sleep(retryBackoffMillis << (attempt - 1));
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private synchronized void settled(List<Operation> operations) {
+        long now = System.nanoTime();
+        for (Operation operation : operations) {
+            if (!operation.refund) {
+                exposure.merge(operation.username, -operation.cents, Long::sum);
+            }
+            long elapsed = now - operation.queuedNanos;
+            totalSettleNanos += elapsed;
+            maxSettleNanos = Math.max(maxSettleNanos, elapsed);
+            settledOperations++;
+        }
+    }
+
+    // 대기/재시도 중인 정산이 모두 끝날 때까지 대기 (시간 안에 끝나면 true)
+    boolean awaitSettled(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (this) {
+                if (pending.isEmpty() && stalled.isEmpty() && !inFlight) return true;
+            }
+            LockSupport.unpark(flusher);
+            Thread.sleep(5);
+        }
+        return false;
+    }
+
+    // 정산 쓰레드를 멈추고 남은 매입/환불을 마지막으로 한 번 더 보낸다 (그래도 실패한 묶음은 로그로 남긴다)
+    void close() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(flusher);
+        flusher.join();
+        flush();
+        synchronized (this) {
+            if (!stalled.isEmpty()) {
+                logger.severe("보내지 못한 정산 묶음 " + stalled.size() + "개가 남았습니다.");
+            }
+        }
+    }
+
+    void setMaxAttempts(int maxAttempts) { this.maxAttempts = maxAttempts; }
+    void setRetryBackoffMillis(long retryBackoffMillis) { this.retryBackoffMillis = retryBackoffMillis; }
+    void setAuthorizationLimitCents(long limitCents) { this.authorizationLimitCents = limitCents; }
+
+    synchronized long getCalls()             { return calls; }
+    synchronized long getFailedCalls()       { return failedCalls; }
+    synchronized long getCaptures()          { return captures; }
+    synchronized long getRefunds()           { return refunds; }
+    synchronized long getVoided()            { return voided; }
+    synchronized long getSettledOperations() { return settledOperations; }
+    synchronized long getMaxSettleNanos()    { return maxSettleNanos; }
+    synchronized int getStalledBatches()     { return stalled.size(); }
+
+    synchronized double getAverageSettleMillis() {
+        return settledOperations == 0 ? 0 : totalSettleNanos / 1e6 / settledOperations;
+    }
+
+    // 건별 호출이었다면 매입/환불마다 한 번씩 불렀을 것 – 그 대비 줄인 호출 수
+    synchronized long getCallsSaved() {
+        return captures + refunds + voided - calls;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("매입 %d건, 환불 %d건 (매입 전 취소 %d건), 대행사 호출 %d회 (실패 %d회, 절약 %d회), "
+                        + "상계로 생략한 사용자 항목 %d건, 대기 %d건, 밀린 묶음 %d개, 정산까지 평균 %.0fms / 최대 %dms",
+                captures, refunds, voided, calls, failedCalls, captures + refunds + voided - calls, nettedUsers,
+                pending.size(), stalled.size(), getAverageSettleMillis(), maxSettleNanos / 1_000_000);
+    }
+}
+
+// RecommendationEngine – 사용자의 구매 내역과 선호 장르 기반 추천
+class RecommendationEngine {
+    public static List<Book> getRecommendations(BookMarket market, User user) {
+        // 사용자가 이전에 주문한 도서의 장르를 수집
+        Set<String> likedGenres = new HashSet<>();
+        OrderLog log = market.getOrderLog();
+        int userIndex = log.userIndexOf(user.getUsername());
+        int size = log.size();
+        for (int row = 0; userIndex >= 0 && row < size; row++) {
+            if (log.userIndex(row) == userIndex && log.isCompleted(row)) {
+                likedGenres.add(log.book(log.bookIndex(row)).getGenre());
+            }
+        }
+        List<Book> recommendations = new ArrayList<>();
+        for (Book book : market.getBooks().values()) {
+            if (likedGenres.contains(book.getGenre()) && book.getQuantity() > 0) {
+                recommendations.add(book);
+            }
+        }
+        recommendations.sort((b1, b2) -> Double.compare(b2.getAverageRating(), b1.getAverageRating()));
+        return recommendations;
+    }
+}
+
+// 변경 데이터 캡처(CDC) 레코드 – BookMarket 에서 일어난 변경 한 건
+// 객체 참조 대신 값만 담으므로 다른 쓰레드나 (직렬화를 통해) 다른 프로세스의 복제본에 그대로 전달할 수 있다.
+class MarketChange implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    enum Type { BOOK_UPSERTED, BOOK_REMOVED, STOCK_CHANGED, REVIEW_ADDED, USER_UPSERTED, ORDER_PLACED, ORDER_STATUS_CHANGED }
+
+    final Type type;
+    final long timestamp;   // 변경 발생 시각 (epoch millis)
+    long sequence;          // 발행 시 BookMarket 이 부여하는 일련번호
+
+    String isbn;
+    String title;
+    String author;
+    double price;
+    int quantity;
+    String genre;
+    String publisher;
+    String username;
+    UserRole role;
+    int loyaltyPoints;
+    int rating;
+    String reviewText;
+    int orderId;
+    int priceCents;
+    long orderTime;
+    byte status;
+
+    private MarketChange(Type type) {
+        this.type = type;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    static MarketChange bookUpserted(Book book) {
+        MarketChange change = new MarketChange(Type.BOOK_UPSERTED);
+        change.isbn = book.getIsbn();
+        change.title = book.getTitle();
+        change.author = book.getAuthor();
+        change.price = book.getPrice();
+        change.quantity = book.getQuantity();
+        change.genre = book.getGenre();
+        change.publisher = book.getPublisher();
+        return change;
+    }
+
+    static MarketChange bookRemoved(String isbn) {
+        MarketChange change = new MarketChange(Type.BOOK_REMOVED);
+        change.isbn = isbn;
+        return change;
+    }
+
+    static MarketChange stockChanged(Book book) {
+        MarketChange change = new MarketChange(Type.STOCK_CHANGED);
+        change.isbn = book.getIsbn();
+        change.quantity = book.getQuantity();
+        return change;
+    }
+
+    static MarketChange reviewAdded(String isbn, Review review) {
+        MarketChange change = new MarketChange(Type.REVIEW_ADDED);
+        change.isbn = isbn;
+        change.username = review.getUsername();
+        change.rating = review.getRating();
+        change.reviewText = review.getReviewText();
+        return change;
+    }
+
+    static MarketChange userUpserted(User user) {
+        MarketChange change = new MarketChange(Type.USER_UPSERTED);
+        change.username = user.getUsername();
+        change.role = user.getRole();
+        change.loyaltyPoints = user.getLoyaltyPoints();
+        return change;
+    }
+
+    static MarketChange orderPlaced(OrderLog log, int row) {
+        MarketChange change = new MarketChange(Type.ORDER_PLACED);
+        change.orderId = log.orderId(row);
+        change.isbn = log.book(log.bookIndex(row)).getIsbn();
+        change.username = log.username(log.userIndex(row));
+        change.quantity = log.quantity(row);
+        change.priceCents = log.priceCents(row);
+        change.orderTime = log.orderTime(row);
+        change.status = log.status(row);
+        return change;
+    }
+
+    static MarketChange orderStatusChanged(int orderId, byte status) {
+        MarketChange change = new MarketChange(Type.ORDER_STATUS_CHANGED);
+        change.orderId = orderId;
+        change.status = status;
+        return change;
+    }
+}
+
+// CDC 구독자
+interface MarketChangeListener {
+    void onChange(MarketChange change);
+}
+
+// ReadReplica – CDC 스트림을 전용 쓰레드에서 비동기로 적용하는 읽기 전용 복제본
+// 변경 적용과 보고서 실행이 같은 큐/쓰레드를 쓰므로, 보고서는 주문 쓰기와 경합 없이 일관된 상태를 읽는다.
+class ReadReplica implements MarketChangeListener {
+    private static final Logger logger = Logger.getLogger(ReadReplica.class.getName());
+
+    private final BookMarket replica = BookMarket.createReplica();
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>(); // MarketChange 또는 Runnable
+    private final Thread applier;
+    private volatile long lastReceivedSequence;
+    private volatile long lastAppliedSequence;
+    private volatile long lastApplyDelayMillis;
+
+    ReadReplica() {
+        applier = new Thread(this::applyLoop, "read-replica");
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    @Override
+    public void onChange(MarketChange change) {
+        lastReceivedSequence = change.sequence;
+        queue.add(change);
+    }
+
+    private void applyLoop() {
+        while (true) {
+            try {
+                Object item = queue.take();
+                if (item instanceof MarketChange) {
+                    MarketChange change = (MarketChange) item;
+                    replica.applyChange(change);
+                    lastAppliedSequence = change.sequence;
+                    lastApplyDelayMillis = System.currentTimeMillis() - change.timestamp;
+                } else {
+                    ((Runnable) item).run();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "복제본 처리 오류", e);
+            }
+        }
+    }
+
+    // 복제본 상태를 읽는 작업을 적용 쓰레드에서 실행하고 끝날 때까지 대기
+    // (호출 이전에 발행된 변경은 모두 반영된 뒤 실행된다)
+    void run(Consumer<BookMarket> task) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        queue.add((Runnable) () -> {
+            try {
+                task.accept(replica);
+                done.complete(null);
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+            }
+        });
+        done.join();
+    }
+
+    // 복제 지연 지표
+    long getLagChanges() { return Math.max(0, lastReceivedSequence - lastAppliedSequence); }
+
+    long getLagMillis() {
+        for (Object item : queue) {
+            if (item instanceof MarketChange) {
+                return System.currentTimeMillis() - ((MarketChange) item).timestamp;
+            }
+        }
+        return 0;
+    }
+
+    long getLastApplyDelayMillis() { return lastApplyDelayMillis; }
+    long getLastAppliedSequence()  { return lastAppliedSequence; }
+}
+
+// 증분 체크포인트 – 바뀐 도서/사용자/장바구니/위시리스트와 지난 체크포인트 이후의 주문 구간만 델타 파일로 기록
+// 전체를 멈추고 훑는 대신 CDC 구독(도서/사용자/주문 상태)과 장바구니/위시리스트 경로가 바뀐 키만 표시해 두고,
+// 전용 쓰레드가 주기마다(또는 표시가 일정량 쌓이면) 표시 집합을 통째로 교체해 가져간 뒤 그 키의 현재 값을 기록한다.
+// 값은 교체 이후에 읽으므로 그 뒤의 변경이 섞일 수 있지만(퍼지 체크포인트), 그런 키는 새 집합에 다시 표시되어
+// 다음 델타에도 기록된다. 도서 재고 표시는 CDC 로 비동기 도착하므로 주문 행과 장바구니를 기록할 때 그 도서의
+// 현재 재고를 함께 담아, 주문/확보 수량과 재고가 어긋나 같은 재고를 두 번 팔게 되는 일은 없도록 한다.
+// 다만 취소/반품의 재고 복원도 비동기라서 마지막 델타 직전의 취소는 재고가 덜 복원된 채 남을 수 있고(다음 델타에서
+// 바로잡힘), 기준 스냅샷에 델타를 적용한 결과는 한 시점의 정확한 상태가 아니라 마지막 체크포인트 무렵의 상태다.
+// 델타 크기의 합이 기준 스냅샷만큼 쌓이면(복구 시 읽을 양이 기준의 두 배를 넘지 않도록) 살아 있는 상태 대신
+// 파일끼리 병합해 새 기준 스냅샷을 만든다.
+class Checkpointer implements MarketChangeListener {
+    private static final Logger logger = Logger.getLogger(Checkpointer.class.getName());
+    private static final String BASE_PREFIX = "base-";
+    private static final String DELTA_PREFIX = "delta-";
+    private static final String SUFFIX = ".ckpt";
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    // 변경된 키 집합 – 체크포인트가 집합째 교체해 가져가며, 교체와 겹친 표시는 새 집합에도 남긴다
+    static final class DirtySet<K> {
+        private final AtomicReference<Set<K>> current = new AtomicReference<>(ConcurrentHashMap.newKeySet());
+
+        void mark(K key) {
+            Set<K> set;
+            do {
+                set = current.get();
+                set.add(key);
+            } while (current.get() != set);
+        }
+
+        Set<K> drain() {
+            return current.getAndSet(ConcurrentHashMap.newKeySet());
+        }
+
+        int size() { return current.get().size(); }
+    }
+
+    // 체크포인트 한 번에 기록할 대상 – 표시 집합과 주문 구간 [orderFrom, orderTo)
+    static final class Changes {
+        final boolean full;            // 기준 스냅샷이면 표시와 무관하게 모든 키
+        final Set<String> books;
+        final Set<String> users;
+        final Set<String> carts;
+        final Set<String> wishLists;
+        final Set<Integer> orderIds;   // 상태가 바뀐 주문번호
+        final int orderFrom;
+        final int orderTo;
+        long maxLockNanos;             // 장바구니 복사 중 가장 길었던 잠금 시간
+
+        Changes(boolean full, Set<String> books, Set<String> users, Set<String> carts, Set<String> wishLists,
+                Set<Integer> orderIds, int orderFrom, int orderTo) {
+            this.full = full;
+            this.books = books;
+            this.users = users;
+            this.carts = carts;
+            this.wishLists = wishLists;
+            this.orderIds = orderIds;
+            this.orderFrom = orderFrom;
+            this.orderTo = orderTo;
+        }
+
+        void lockHeld(long nanos) {
+            maxLockNanos = Math.max(maxLockNanos, nanos);
+        }
+    }
+
+    // 체크포인트 파일 내용 – 기준 스냅샷(전체)과 델타(변경분)가 같은 형식을 쓴다
+    static final class Image implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        long number;
+        boolean base;
+        long createdAt = System.currentTimeMillis();
+        final Map<String, Book> books = new HashMap<>();          // 값이 null 이면 삭제된 도서
+        final Map<String, Book> retiredBooks = new HashMap<>();   // 카탈로그에서 빠졌지만 주문이 참조하는 도서
+        final Map<String, User> users = new HashMap<>();
+        final Map<String, ShoppingCart> carts = new HashMap<>();
+        final Map<String, List<String>> wishLists = new HashMap<>();
+        final Map<Integer, Byte> statusChanges = new HashMap<>(); // 주문 구간 이전 주문의 상태 변경 (주문번호 -> 상태)
+        int nextOrderId;
+
+        // 주문 구간 [orderFrom, orderFrom + orderCount) – OrderLog 와 같은 열 지향 배열
+        int orderFrom;
+        int orderCount;
+        int[] orderIds = new int[16];
+        String[] orderUsers = new String[16];
+        String[] orderIsbns = new String[16];
+        int[] quantities = new int[16];
+        long[] orderTimes = new long[16];
+        int[] priceCents = new int[16];
+        byte[] statuses = new byte[16];
+
+        Image(long number, boolean base) {
+            this.number = number;
+            this.base = base;
+        }
+
+        void addOrder(int orderId, String username, String isbn, int quantity, long orderTime, int unitPriceCents, byte status) {
+            ensureOrderCapacity(orderCount + 1);
+            orderIds[orderCount] = orderId;
+            orderUsers[orderCount] = username;
+            orderIsbns[orderCount] = isbn;
+            quantities[orderCount] = quantity;
+            orderTimes[orderCount] = orderTime;
+            priceCents[orderCount] = unitPriceCents;
+            statuses[orderCount] = status;
+            orderCount++;
+        }
+
+        private void ensureOrderCapacity(int capacity) {
+            if (capacity > orderIds.length) {
+                resizeOrders(Math.max(capacity, orderIds.length * 2));
+            }
+        }
+
+        private void resizeOrders(int capacity) {
+            orderIds = Arrays.copyOf(orderIds, capacity);
+            orderUsers = Arrays.copyOf(orderUsers, capacity);
+            orderIsbns = Arrays.copyOf(orderIsbns, capacity);
+            quantities = Arrays.copyOf(quantities, capacity);
+            orderTimes = Arrays.copyOf(orderTimes, capacity);
+            priceCents = Arrays.copyOf(priceCents, capacity);
+            statuses = Arrays.copyOf(statuses, capacity);
+        }
+
+        // 주문번호는 추가 순서대로 증가하므로 이진 탐색
+        private int findOrder(int orderId) {
+            int low = 0;
+            int high = orderCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (orderIds[mid] < orderId) {
+                    low = mid + 1;
+                } else if (orderIds[mid] > orderId) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        // 바로 다음 델타를 이 이미지에 적용 (번호나 주문 구간이 이어지지 않으면 예외)
+        void apply(Image delta) throws IOException {
+            if (delta.number != number + 1 || delta.orderFrom != orderFrom + orderCount) {
+                throw new IOException(String.format("체크포인트 %d 다음에 델타 %d(주문 %d부터)를 이어 붙일 수 없습니다.",
+                        number, delta.number, delta.orderFrom));
+            }
+            for (Map.Entry<String, Book> entry : delta.books.entrySet()) {
+                if (entry.getValue() != null) {
+                    books.put(entry.getKey(), entry.getValue());
+                    retiredBooks.remove(entry.getKey());
+                } else {
+                    books.remove(entry.getKey());
+                }
+            }
+            delta.retiredBooks.forEach((isbn, book) -> {
+                if (!books.containsKey(isbn)) retiredBooks.put(isbn, book);
+            });
+            users.putAll(delta.users);
+            carts.putAll(delta.carts);
+            wishLists.putAll(delta.wishLists);
+            delta.statusChanges.forEach((orderId, status) -> {
+                int row = findOrder(orderId);
+                if (row >= 0) statuses[row] = status;
+            });
+            ensureOrderCapacity(orderCount + delta.orderCount);
+            System.arraycopy(delta.orderIds, 0, orderIds, orderCount, delta.orderCount);
+            System.arraycopy(delta.orderUsers, 0, orderUsers, orderCount, delta.orderCount);
+            System.arraycopy(delta.orderIsbns, 0, orderIsbns, orderCount, delta.orderCount);
+            System.arraycopy(delta.quantities, 0, quantities, orderCount, delta.orderCount);
+            System.arraycopy(delta.orderTimes, 0, orderTimes, orderCount, delta.orderCount);
+            System.arraycopy(delta.priceCents, 0, priceCents, orderCount, delta.orderCount);
+            System.arraycopy(delta.statuses, 0, statuses, orderCount, delta.orderCount);
+            orderCount += delta.orderCount;
+            nextOrderId = Math.max(nextOrderId, delta.nextOrderId);
+            number = delta.number;
+            createdAt = delta.createdAt;
+        }
+
+        int entityCount() {
+            return books.size() + users.size() + carts.size() + wishLists.size() + statusChanges.size() + orderCount;
+        }
+
+        // 주문 배열의 남는 용량은 기록하지 않는다
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            if (orderIds.length != orderCount) {
+                resizeOrders(orderCount);
+            }
+            out.defaultWriteObject();
+        }
+    }
+
+    private final BookMarket market;
+    private final Path directory;
+    private final long intervalMillis;
+    private volatile int maxPendingChanges = 50_000; // 표시가 이만큼 쌓이면 주기를 기다리지 않고 기록
+    private volatile int maxDeltas = 100;            // 델타 크기와 무관하게 이만큼 쌓이면 병합 (복구 시 파일 수 제한)
+
+    private final DirtySet<String> books = new DirtySet<>();
+    private final DirtySet<String> users = new DirtySet<>();
+    private final DirtySet<String> carts = new DirtySet<>();
+    private final DirtySet<String> wishLists = new DirtySet<>();
+    private final DirtySet<Integer> orderStatuses = new DirtySet<>();
+    private volatile int orderMark;    // 기록을 마친 주문 행 수
+    private long nextNumber;
+    private boolean baseWritten;
+    private int deltasSinceBase;
+    private long baseBytes;
+    private long deltaBytesSinceBase;
+    private Thread writer;
+    private volatile boolean running;
+
+    // 지표
+    private long checkpointCount;
+    private long compactionCount;
+    private long failureCount;
+    private long lastNanos;
+    private long maxNanos;
+    private long maxCutNanos;          // 표시 집합 교체와 주문 구간 확정에 걸린 최대 시간
+    private long maxLockNanos;         // 장바구니 복사 중 최대 잠금 시간 (쓰기 측이 기다릴 수 있는 유일한 구간)
+    private long maxCompactionNanos;
+    private long lastBytes;
+    private long totalBytes;
+    private int lastEntities;
+
+    Checkpointer(BookMarket market, Path directory, long intervalMillis) throws IOException {
+        this.market = market;
+        this.directory = directory;
+        this.intervalMillis = intervalMillis;
+        long last = 0;
+        for (String prefix : new String[]{BASE_PREFIX, DELTA_PREFIX}) {
+            TreeMap<Long, Path> files = list(directory, prefix);
+            if (!files.isEmpty()) last = Math.max(last, files.lastKey());
+        }
+        nextNumber = last + 1; // 이전 실행의 파일은 새 기준 스냅샷보다 번호가 작아 복구 대상에서 빠진다
+    }
+
+    // ------ 변경 표시 ------
+    @Override
+    public void onChange(MarketChange change) {
+        switch (change.type) {
+            case BOOK_UPSERTED:
+            case BOOK_REMOVED:
+            case STOCK_CHANGED:
+            case REVIEW_ADDED:
+                books.mark(change.isbn);
+                break;
+            case USER_UPSERTED:
+                users.mark(change.username);
+                break;
+            case ORDER_STATUS_CHANGED:
+                orderStatuses.mark(change.orderId);
+                break;
+            case ORDER_PLACED:
+                break; // 주문 행은 주문 구간으로, 재고/포인트는 함께 오는 STOCK_CHANGED/USER_UPSERTED 로 기록
+        }
+    }
+
+    void markCart(String username)     { carts.mark(username); }
+    void markWishList(String username) { wishLists.mark(username); }
+
+    int getPendingChanges() {
+        return books.size() + users.size() + carts.size() + wishLists.size() + orderStatuses.size()
+                + Math.max(0, market.getOrderLog().size() - orderMark);
+    }
+
+    // ------ 기록 ------
+    void start() {
+        running = true;
+        writer = new Thread(this::writeLoop, "checkpoint-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // 쓰레드를 멈추고 남은 변경을 마지막 델타로 기록
+    void stop() throws InterruptedException {
+        running = false;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+            writer.join();
+        }
+        checkpoint();
+    }
+
+    private void writeLoop() {
+        long due = System.nanoTime(); // 시작하자마자 기준 스냅샷
+        while (running) {
+            if (System.nanoTime() - due >= 0 || getPendingChanges() >= maxPendingChanges) {
+                checkpoint();
+                due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+            }
+            LockSupport.parkNanos(POLL_NANOS);
+        }
+    }
+
+    // 체크포인트 한 번 – 첫 번째는 기준 스냅샷, 이후는 델타 (실패하면 표시를 되돌려 다음에 다시 기록)
+    synchronized void checkpoint() {
+        long begin = System.nanoTime();
+        boolean full = !baseWritten;
+        Changes changes = new Changes(full, books.drain(), users.drain(), carts.drain(), wishLists.drain(),
+                orderStatuses.drain(), full ? 0 : orderMark, market.getOrderLog().size());
+        long cutNanos = System.nanoTime() - begin;
+        Image image = new Image(nextNumber, full);
+        image.orderFrom = changes.orderFrom;
+        long bytes;
+        try {
+            market.captureCheckpoint(image, changes);
+            bytes = write(image);
+        } catch (IOException | RuntimeException e) {
+            failureCount++;
+            logger.log(Level.SEVERE, "체크포인트 " + image.number + " 기록 실패", e);
+            changes.books.forEach(books::mark);
+            changes.users.forEach(users::mark);
+            changes.carts.forEach(carts::mark);
+            changes.wishLists.forEach(wishLists::mark);
+            changes.orderIds.forEach(orderStatuses::mark);
+            return;
+        }
+        nextNumber++;
+        orderMark = changes.orderTo;
+        if (full) {
+            baseWritten = true;
+            baseBytes = bytes;
+            deltasSinceBase = 0;
+            deltaBytesSinceBase = 0;
+            deleteBefore(image.number);
+        } else {
+            deltasSinceBase++;
+            deltaBytesSinceBase += bytes;
+        }
+        long elapsed = System.nanoTime() - begin;
+        checkpointCount++;
+        lastNanos = elapsed;
+        maxNanos = Math.max(maxNanos, elapsed);
+        maxCutNanos = Math.max(maxCutNanos, cutNanos);
+        maxLockNanos = Math.max(maxLockNanos, changes.maxLockNanos);
+        lastBytes = bytes;
+        totalBytes += bytes;
+        lastEntities = image.entityCount();
+        if (elapsed > TimeUnit.MILLISECONDS.toNanos(intervalMillis)) {
+            logger.warning(String.format("체크포인트 %d 기록이 주기보다 오래 걸렸습니다: %dms (%d건)",
+                    image.number, elapsed / 1_000_000, lastEntities));
+        }
+        if (deltaBytesSinceBase >= baseBytes || deltasSinceBase >= maxDeltas) {
+            compact();
+        }
+    }
+
+    // 기준 스냅샷 + 델타 파일을 병합해 새 기준 스냅샷으로 교체 (살아 있는 상태는 읽지 않는다)
+    private void compact() {
+        long begin = System.nanoTime();
+        try {
+            Image merged = load(directory);
+            if (merged == null) return;
+            merged.base = true;
+            baseBytes = write(merged);
+            deleteBefore(merged.number);
+            deltasSinceBase = 0;
+            deltaBytesSinceBase = 0;
+            compactionCount++;
+            maxCompactionNanos = Math.max(maxCompactionNanos, System.nanoTime() - begin);
+        } catch (IOException | RuntimeException e) {
+            failureCount++;
+            logger.log(Level.SEVERE, "체크포인트 병합 실패", e);
+        }
+    }
+
+    // 임시 파일에 쓰고 디스크에 내린 뒤 이름을 바꾸므로, 중간에 멈춰도 반쯤 쓴 파일은 복구 대상이 되지 않는다
+    private long write(Image image) throws IOException {
+        Path target = directory.resolve(fileName(image.base ? BASE_PREFIX : DELTA_PREFIX, image.number));
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeObject(image);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return Files.size(target);
+    }
+
+    // 새 기준 스냅샷보다 앞선 파일 (같은 번호의 델타 포함) 삭제
+    private void deleteBefore(long baseNumber) {
+        try {
+            for (Map.Entry<Long, Path> entry : list(directory, BASE_PREFIX).headMap(baseNumber, false).entrySet()) {
+                Files.deleteIfExists(entry.getValue());
+            }
+            for (Map.Entry<Long, Path> entry : list(directory, DELTA_PREFIX).headMap(baseNumber, true).entrySet()) {
+                Files.deleteIfExists(entry.getValue());
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "이전 체크포인트 파일 삭제 실패", e);
+        }
+    }
+
+    // ------ 복구 ------
+    // 가장 최근 기준 스냅샷에 그 뒤의 델타를 순서대로 적용한 이미지 (체크포인트가 없으면 null)
+    static Image load(Path directory) throws IOException {
+        TreeMap<Long, Path> bases = list(directory, BASE_PREFIX);
+        if (bases.isEmpty()) return null;
+        Map.Entry<Long, Path> base = bases.lastEntry();
+        Image image = read(base.getValue());
+        for (Path delta : list(directory, DELTA_PREFIX).tailMap(base.getKey(), false).values()) {
+            image.apply(read(delta));
+        }
+        return image;
+    }
+
+    private static Image read(Path path) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            return (Image) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("체크포인트 파일 형식 오류: " + path, e);
+        }
+    }
+
+    private static String fileName(String prefix, long number) {
+        return String.format("%s%08d%s", prefix, number, SUFFIX);
+    }
+
+    // 번호 -> 파일 (접두사/접미사가 맞지 않는 파일과 쓰다 만 임시 파일은 제외)
+    private static TreeMap<Long, Path> list(Path directory, String prefix) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        if (!Files.isDirectory(directory)) return files;
+        try (Stream<Path> paths = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                String name = path.getFileName().toString();
+                if (name.startsWith(prefix) && name.endsWith(SUFFIX)) {
+                    try {
+                        files.put(Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length())), path);
+                    } catch (NumberFormatException e) {
+                        // 다른 용도의 파일은 무시
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    void setMaxPendingChanges(int maxPendingChanges) { this.maxPendingChanges = maxPendingChanges; }
+    void setMaxDeltas(int maxDeltas) { this.maxDeltas = maxDeltas; }
+
+    Path getDirectory() { return directory; }
+    synchronized long getCheckpointCount()    { return checkpointCount; }
+    synchronized long getCompactionCount()    { return compactionCount; }
+    synchronized long getFailureCount()       { return failureCount; }
+    synchronized long getMaxNanos()           { return maxNanos; }
+    synchronized long getMaxCutNanos()        { return maxCutNanos; }
+    synchronized long getMaxLockNanos()       { return maxLockNanos; }
+    synchronized long getMaxCompactionNanos() { return maxCompactionNanos; }
+    synchronized long getTotalBytes()         { return totalBytes; }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("체크포인트 %d회 (최근 %dms/%d건/%,d바이트, 최대 %dms), 병합 %d회 (최대 %dms), "
+                        + "교체 최대 %dµs, 장바구니 잠금 최대 %dµs, 실패 %d회, 대기 변경 %d건",
+                checkpointCount, lastNanos / 1_000_000, lastEntities, lastBytes, maxNanos / 1_000_000,
+                compactionCount, maxCompactionNanos / 1_000_000, maxCutNanos / 1_000, maxLockNanos / 1_000,
+                failureCount, getPendingChanges());
+    }
+}
+
+// DomainEvent – 링 버퍼 슬롯에 미리 할당되어 재사용되는 도메인 이벤트
+// 생산자는 슬롯의 필드만 채워 게시하므로 이벤트마다 객체를 새로 만들지 않는다.
+final class DomainEvent {
+    enum Type { ORDER_PLACED, ORDER_CANCELLED, ORDER_RETURNED, BOOK_ADDED, BOOK_UPDATED, BOOK_REMOVED,
+                STOCK_CHANGED, REVIEW_ADDED, USER_CHANGED }
+
+    Type type;
+    int orderRow = -1;     // 주문 이벤트: OrderLog 행 번호
+    byte previousStatus;   // 취소/반품 이벤트: 변경 전 주문 상태
+    String isbn;
+    Book book;             // 도서 이벤트: 게시된 도서 버전
+    User user;
+    Review review;
+
+    void reset() {
+        type = null;
+        orderRow = -1;
+        previousStatus = OrderLog.STATUS_COMPLETED;
+        isbn = null;
+        book = null;
+        user = null;
+        review = null;
+    }
+}
+
+// DomainEventBus – 미리 할당된 링 버퍼 위의 다중 생산자/다중 소비자 이벤트 버스 (Disruptor 방식)
+// 소비자마다 자신의 시퀀스를 관리하며 쌓인 이벤트를 한 번에(batch) 처리하고,
+// 선행 소비자를 지정하면 그 소비자가 처리한 이벤트까지만 진행한다.
+// 링이 가득 차면 가장 느린 소비자가 따라올 때까지 생산자가 대기한다(backpressure).
+class DomainEventBus {
+    private static final Logger logger = Logger.getLogger(DomainEventBus.class.getName());
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+
+    interface Handler {
+        void onEvent(DomainEvent event, long sequence, boolean endOfBatch) throws Exception;
+    }
+
+    // 소비자 – 전용 쓰레드에서 배치 단위로 이벤트를 처리
+    final class Subscriber implements Runnable {
+        private final String name;
+        private final Handler handler;
+        private final Subscriber[] dependencies;
+        private final AtomicLong sequence = new AtomicLong(-1); // 처리를 마친 마지막 시퀀스
+        private volatile Thread thread;
+        private volatile boolean sleeping; // 기다릴 이벤트가 없어 park 중 – 게시/선행 소비자가 깨운다
+
+        private Subscriber(String name, Handler handler, Subscriber[] dependencies) {
+            this.name = name;
+            this.handler = handler;
+            this.dependencies = dependencies;
+        }
+
+        String getName()   { return name; }
+        long getSequence() { return sequence.get(); }
+
+        @Override
+        public void run() {
+            long next = sequence.get() + 1;
+            while (running) {
+                long available = waitFor(this, next);
+                if (available < next) continue;
+                for (long seq = next; seq <= available; seq++) {
+                    try {
+                        handler.onEvent(ring[(int) (seq & mask)], seq, seq == available);
+                    } catch (Exception e) {
+                        logger.log(Level.SEVERE, "이벤트 처리 오류 (" + name + ", seq " + seq + ")", e);
+                    }
+                }
+                sequence.set(available);
+                wakeSleepers(); // 이 소비자를 기다리는 후행 소비자와 awaitDrained 호출자
+                next = available + 1;
+            }
+        }
+    }
+
+    private final DomainEvent[] ring;
+    private final int mask;
+    private final int indexShift;
+    private final AtomicIntegerArray publishedRounds; // 슬롯별로 게시가 끝난 회차 (다중 생산자 게시 추적)
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Set<Thread> drainWaiters = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger sleepers = new AtomicInteger(); // park 중인 소비자 + awaitDrained 대기자
+    private volatile boolean running = true;
+
+    DomainEventBus(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("링 버퍼 크기는 2의 거듭제곱이어야 합니다: " + capacity);
+        }
+        ring = new DomainEvent[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new DomainEvent();
+        }
+        mask = capacity - 1;
+        indexShift = Integer.numberOfTrailingZeros(capacity);
+        publishedRounds = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            publishedRounds.set(i, -1);
+        }
+    }
+
+    // 소비자 등록 후 즉시 쓰레드 시작 (이벤트 게시 전에 모두 등록해야 한다)
+    Subscriber subscribe(String name, Handler handler, Subscriber... dependencies) {
+        Subscriber subscriber = new Subscriber(name, handler, dependencies);
+        subscriber.sequence.set(claimed.get());
+        subscribers.add(subscriber);
+        Thread thread = new Thread(subscriber, "event-" + name);
+        thread.setDaemon(true);
+        subscriber.thread = thread;
+        thread.start();
+        return subscriber;
+    }
+
+    // 이벤트 게시 – 슬롯을 확보하고 채운 뒤 게시 표시
+    void publish(DomainEvent.Type type, int orderRow, byte previousStatus, String isbn, Book book, User user, Review review) {
+        long seq = claimed.incrementAndGet();
+        long wrapPoint = seq - ring.length;
+        while (wrapPoint > minimumSubscriberSequence()) {
+            LockSupport.parkNanos(1000); // 링이 가득 참 – 가장 느린 소비자를 기다림
+        }
+        DomainEvent event = ring[(int) (seq & mask)];
+        event.reset();
+        event.type = type;
+        event.orderRow = orderRow;
+        event.previousStatus = previousStatus;
+        event.isbn = isbn;
+        event.book = book;
+        event.user = user;
+        event.review = review;
+        publishedRounds.set((int) (seq & mask), (int) (seq >>> indexShift));
+        wakeSleepers();
+    }
+
+    // 잠든 대기자가 있을 때만 깨운다 – 바쁠 때 게시 경로의 추가 비용은 카운터 읽기 한 번
+    private void wakeSleepers() {
+        if (sleepers.get() == 0) return;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.sleeping) {
+                subscriber.sleeping = false; // 한 번만 깨우면 충분 – 다음 게시들은 unpark 를 건너뛴다
+                LockSupport.unpark(subscriber.thread);
+            }
+        }
+        for (Thread waiter : drainWaiters) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    private boolean isPublished(long seq) {
+        return publishedRounds.get((int) (seq & mask)) == (int) (seq >>> indexShift);
+    }
+
+    // next 이후로 처리 가능한 가장 큰 시퀀스 (선행 소비자가 있으면 그들의 진행까지로 제한)
+    private long highestAvailable(long next, Subscriber[] dependencies) {
+        long limit = claimed.get();
+        for (Subscriber dependency : dependencies) {
+            limit = Math.min(limit, dependency.sequence.get());
+        }
+        long available = next - 1;
+        while (available < limit && isPublished(available + 1)) {
+            available++;
+        }
+        return available;
+    }
+
+    // 대기 전략: 잠깐 스핀 → 양보 → 시간 제한 없이 park. park 하기 전에 잠든다고 표시한 뒤 한 번 더 확인하고,
+    // 게시자와 선행 소비자는 표시된 소비자만 깨우므로 유휴 상태에서는 CPU 를 쓰지 않는다.
+    // (표시와 게시 모두 volatile 쓰기 후 상대 쪽을 읽으므로 어느 한 쪽은 반드시 상대를 본다)
+    private long waitFor(Subscriber self, long next) {
+        int tries = 0;
+        while (running) {
+            long available = highestAvailable(next, self.dependencies);
+            if (available >= next) return available;
+            if (tries < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+                Thread.yield();
+            } else {
+                self.sleeping = true;
+                sleepers.incrementAndGet();
+                if (running && highestAvailable(next, self.dependencies) < next) {
+                    LockSupport.park(this);
+                }
+                sleepers.decrementAndGet();
+                self.sleeping = false;
+            }
+            tries++;
+        }
+        return next - 1;
+    }
+
+    private long minimumSubscriberSequence() {
+        long minimum = claimed.get();
+        for (Subscriber subscriber : subscribers) {
+            minimum = Math.min(minimum, subscriber.sequence.get());
+        }
+        return minimum;
+    }
+
+    // 아직 모든 소비자가 처리하지 못한 이벤트 수
+    long getBacklog() {
+        return claimed.get() - minimumSubscriberSequence();
+    }
+
+    // 지금까지 게시된 이벤트를 모든 소비자가 처리할 때까지 대기
+    void awaitDrained() {
+        long target = claimed.get();
+        if (minimumSubscriberSequence() >= target) return;
+        Thread waiter = Thread.currentThread();
+        drainWaiters.add(waiter);
+        sleepers.incrementAndGet();
+        try {
+            while (running && minimumSubscriberSequence() < target) {
+                LockSupport.park(this); // 소비자가 진행할 때마다 깨워 준다
+            }
+        } finally {
+            sleepers.decrementAndGet();
+            drainWaiters.remove(waiter);
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        for (Subscriber subscriber : subscribers) {
+            LockSupport.unpark(subscriber.thread);
+        }
+        for (Thread waiter : drainWaiters) {
+            LockSupport.unpark(waiter);
+        }
+    }
+}
+
+// 플래시 세일 – 인기 도서 한 권에 몰리는 재고 예약을 큐에 모아 결합자(combiner) 한 명이 한 번에 처리
+// (flat combining). 요청은 도착 순서(FIFO)대로 재고를 배정받고, 재고 카운터는 배치당 한 번만 갱신된다.
+class FlashSale {
+    enum Outcome { RESERVED, SOLD_OUT, BUSY }
+
+    private static final long WAIT_PARK_NANOS = 100_000_000; // 결합자가 깨워 주므로 시간 제한은 안전 장치일 뿐
+
+    // 대기 중인 예약 요청 – 결합자가 outcome 을 채우고 요청자를 깨운다
+    private static final class Request {
+        final int quantity;
+        final Thread waiter = Thread.currentThread();
+        volatile Outcome outcome;
+
+        Request(int quantity) {
+            this.quantity = quantity;
+        }
+    }
+
+    private final String isbn;
+    private final Book book;
+    private final Queue<Request> queue = new ConcurrentLinkedQueue<>(); // 도착 순서 보장
+    private final int queueCapacity;
+    private final Semaphore slots;                   // 대기열 크기 제한 – 공정 모드로 입장 순서 보장
+    private final ReentrantLock combinerLock = new ReentrantLock();
+    private final long admissionTimeoutMillis;
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicLong soldOutRejects = new AtomicLong();
+    private final AtomicLong busyRejects = new AtomicLong();
+    private final AtomicLong combinePasses = new AtomicLong();
+    private final AtomicLong combinedRequests = new AtomicLong();
+
+    FlashSale(Book book, int queueCapacity, long admissionTimeoutMillis) {
+        this.isbn = book.getIsbn();
+        this.book = book;
+        this.queueCapacity = queueCapacity;
+        this.slots = new Semaphore(queueCapacity, true);
+        this.admissionTimeoutMillis = admissionTimeoutMillis;
+    }
+
+    String getIsbn() { return isbn; }
+
+    // 재고 예약 – 품절이면 큐에 들어가기 전에 바로 거절하고, 큐가 가득 차 대기 시간 안에 자리가 나지 않으면 BUSY
+    Outcome reserve(int quantity) throws InterruptedException {
+        if (book.getQuantity() < quantity) {
+            soldOutRejects.incrementAndGet();
+            return Outcome.SOLD_OUT;
+        }
+        if (!slots.tryAcquire(admissionTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            busyRejects.incrementAndGet();
+            return Outcome.BUSY;
+        }
+        if (book.getQuantity() < quantity) { // 입장을 기다리는 동안 품절됨
+            slots.release();
+            soldOutRejects.incrementAndGet();
+            return Outcome.SOLD_OUT;
+        }
+        Request request = new Request(quantity);
+        queue.offer(request);
+        while (request.outcome == null) {
+            if (combinerLock.tryLock()) {
+                try {
+                    combine();
+                } finally {
+                    combinerLock.unlock();
+                }
+                // 남은 요청이 있으면 맨 앞 요청자를 깨워 다음 결합자 역할을 넘긴다
+                Request next = queue.peek();
+                if (next != null) {
+                    LockSupport.unpark(next.waiter);
+                }
+            } else {
+                LockSupport.parkNanos(this, WAIT_PARK_NANOS);
+            }
+        }
+        return request.outcome;
+    }
+
+    // 결제 실패 등으로 예약을 되돌림
+    void release(int quantity) {
+        book.returnStock(quantity);
+        reserved.addAndGet(-quantity);
+    }
+
+    // 큐에 쌓인 요청을 한 번에 꺼내 FIFO 순서로 재고를 배정하고, 배정된 총량을 한 번에 차감
+    private void combine() {
+        List<Request> batch = new ArrayList<>();
+        for (Request request; (request = queue.poll()) != null; ) {
+            batch.add(request);
+        }
+        if (batch.isEmpty()) return;
+        boolean[] granted = new boolean[batch.size()];
+        int taken;
+        do {
+            // 주문 취소/관리자 재입고 등으로 재고가 바뀌었으면 다시 배정
+            int available = book.getQuantity();
+            taken = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                int quantity = batch.get(i).quantity;
+                granted[i] = quantity <= available - taken;
+                if (granted[i]) taken += quantity;
+            }
+        } while (taken > 0 && !book.tryTakeStock(taken));
+        reserved.addAndGet(taken);
+        combinePasses.incrementAndGet();
+        combinedRequests.addAndGet(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            Request request = batch.get(i);
+            if (!granted[i]) soldOutRejects.incrementAndGet();
+            request.outcome = granted[i] ? Outcome.RESERVED : Outcome.SOLD_OUT;
+            LockSupport.unpark(request.waiter);
+        }
+        slots.release(batch.size());
+    }
+
+    long getReserved()       { return reserved.get(); }
+    long getSoldOutRejects() { return soldOutRejects.get(); }
+    long getBusyRejects()    { return busyRejects.get(); }
+    int getQueueDepth()      { return queueCapacity - slots.availablePermits(); }
+
+    // 결합 한 번에 처리된 평균 요청 수
+    double getAverageBatchSize() {
+        long passes = combinePasses.get();
+        return passes == 0 ? 0 : (double) combinedRequests.get() / passes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ISBN: %s, 남은 재고: %d, 예약: %d, 품절 거절: %d, 혼잡 거절: %d, 대기열: %d, 평균 배치: %.1f",
+                isbn, book.getQuantity(), getReserved(), getSoldOutRejects(), getBusyRejects(),
+                getQueueDepth(), getAverageBatchSize());
+    }
+}
+
+// TimingWheel – 계층형 타이밍 휠 (만료 작업 관리)
+// 레벨마다 64칸이고 아래 레벨 한 바퀴가 위 레벨 한 칸이다. 등록/취소는 칸의 이중 연결 리스트에 붙이고 떼는 O(1),
+// 틱마다 현재 칸 하나만 처리하고 위 레벨 칸은 차례가 오면 아래 레벨로 내려보낸다(cascade).
+// 휠 전체 범위를 넘는 만료는 최상위 레벨에 두었다가 내려올 때 다시 배치한다. 만료 작업은 잠금 밖에서 실행한다.
+class TimingWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private static final long SPAN = 1L << (SLOT_BITS * LEVELS); // 휠 전체가 덮는 틱 수
+
+    // 등록된 만료 작업 – 칸의 연결 리스트 노드를 겸한다
+    final class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private Timeout prev, next;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        // 아직 실행되지 않았으면 해제하고 true
+        boolean cancel() {
+            synchronized (TimingWheel.this) {
+                if (prev == null) return false;
+                unlink(this);
+                pending--;
+                return true;
+            }
+        }
+    }
+
+    private final String name;
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final Timeout[][] wheels = new Timeout[LEVELS][SLOTS]; // 칸마다 머리 노드(빈 원형 리스트)
+    private long currentTick;   // 처리가 끝난 마지막 틱
+    private int pending;
+    private long expiredTotal;
+    private long maxTickNanos;  // 틱 한 번(만료 작업 실행 제외) 처리에 걸린 최대 시간
+    private Thread ticker;
+    private volatile boolean stopped;
+
+    TimingWheel(String name, long tickMillis) {
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        for (Timeout[] level : wheels) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Timeout head = new Timeout(null, 0);
+                head.prev = head.next = head;
+                level[slot] = head;
+            }
+        }
+    }
+
+    // delayMillis 뒤에 task 실행 (틱 단위로 올림, 첫 등록 때 틱 쓰레드 시작)
+    synchronized Timeout schedule(Runnable task, long delayMillis) {
+        long ticks = Math.max(1, (TimeUnit.MILLISECONDS.toNanos(delayMillis) + tickNanos - 1) / tickNanos);
+        Timeout timeout = new Timeout(task, currentTick + ticks);
+        place(timeout);
+        pending++;
+        if (ticker == null && !stopped) {
+            ticker = new Thread(this::tickLoop, name);
+            ticker.setDaemon(true);
+            ticker.start();
+        }
+        return timeout;
+    }
+
+    private void place(Timeout timeout) {
+        long delta = Math.min(timeout.deadlineTick - currentTick, SPAN - 1);
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        long slotTick = currentTick + delta; // 범위를 넘으면 최상위 레벨에서 한 바퀴 뒤에 다시 배치
+        Timeout head = wheels[level][(int) (slotTick >>> (SLOT_BITS * level)) & (SLOTS - 1)];
+        timeout.prev = head.prev;
+        timeout.next = head;
+        head.prev.next = timeout;
+        head.prev = timeout;
+    }
+
+    private static void unlink(Timeout timeout) {
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+    }
+
+    private void tickLoop() {
+        while (!stopped) {
+            LockSupport.parkNanos(tickNanos);
+            advance(System.nanoTime());
+        }
+    }
+
+    // 틱 쓰레드 종료 (남은 작업은 실행하지 않음)
+    synchronized void stop() {
+        stopped = true;
+        if (ticker != null) LockSupport.unpark(ticker);
+    }
+
+    // 지금 시각까지 밀린 틱을 처리하고 만료된 작업 실행
+    void advance(long nowNanos) {
+        long targetTick = (nowNanos - startNanos) / tickNanos;
+        List<Runnable> due = new ArrayList<>();
+        synchronized (this) {
+            while (currentTick < targetTick) {
+                long begin = System.nanoTime();
+                tick(due);
+                maxTickNanos = Math.max(maxTickNanos, System.nanoTime() - begin);
+            }
+        }
+        for (Runnable task : due) {
+            task.run();
+        }
+    }
+
+    private void tick(List<Runnable> due) {
+        currentTick++;
+        // 위 레벨 칸의 경계에 닿았으면 높은 레벨부터 차례로 아래로 내려보낸다
+        int level = 1;
+        while (level < LEVELS && (currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+            level++;
+        }
+        for (int l = level - 1; l >= 1; l--) {
+            Timeout head = wheels[l][(int) (currentTick >>> (SLOT_BITS * l)) & (SLOTS - 1)];
+            for (Timeout timeout = head.next; timeout != head; ) {
+                Timeout next = timeout.next;
+                unlink(timeout);
+                place(timeout);
+                timeout = next;
+            }
+        }
+        Timeout head = wheels[0][(int) currentTick & (SLOTS - 1)];
+        for (Timeout timeout = head.next; timeout != head; ) {
+            Timeout next = timeout.next;
+            unlink(timeout);
+            if (timeout.deadlineTick <= currentTick) {
+                pending--;
+                expiredTotal++;
+                due.add(timeout.task);
+            } else {
+                place(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    synchronized int getPending() { return pending; }
+    synchronized long getExpiredTotal() { return expiredTotal; }
+    synchronized long getMaxTickNanos() { return maxTickNanos; }
+}
+
+// CartReservations – 장바구니 재고 임시 확보의 만료 시간과 지표
+// 항목마다 타이밍 휠에 만료 작업 하나를 걸고, 담기/수량 변경 때마다 취소 후 다시 걸어 만료를 연장한다.
+class CartReservations {
+    static final long DEFAULT_TTL_MILLIS = 15 * 60_000;
+    private static final long TICK_MILLIS = 100;
+
+    private final TimingWheel wheel = new TimingWheel("cart-reservation-expiry", TICK_MILLIS);
+    private volatile long ttlMillis = DEFAULT_TTL_MILLIS;
+    private final AtomicLong held = new AtomicLong();       // 현재 재고를 확보 중인 항목 수
+    private final AtomicLong heldUnits = new AtomicLong();  // 현재 확보된 재고 수량
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();   // 장바구니에서 빼거나 수량을 줄여 반환
+    private final AtomicLong checkedOut = new AtomicLong(); // 주문으로 전환
+
+    long getTtlMillis() { return ttlMillis; }
+
+    void setTtlMillis(long ttlMillis) {
+        if (ttlMillis <= 0) throw new IllegalArgumentException("TTL 은 0보다 커야 합니다: " + ttlMillis);
+        this.ttlMillis = ttlMillis;
+    }
+
+    TimingWheel.Timeout arm(Runnable onExpire) {
+        return wheel.schedule(onExpire, ttlMillis);
+    }
+
+    void close() {
+        wheel.stop();
+    }
+
+    // 항목의 확보 수량이 before -> after 로 바뀐 것을 반영
+    void reserved(int before, int after) {
+        if (before == 0 && after > 0) {
+            held.incrementAndGet();
+            created.incrementAndGet();
+        }
+        heldUnits.addAndGet(after - before);
+    }
+
+    void expired(int units) { finish(units, expired); }
+    void released(int units) { finish(units, released); }
+    void checkedOut(int units) { finish(units, checkedOut); }
+
+    private void finish(int units, AtomicLong outcome) {
+        held.decrementAndGet();
+        heldUnits.addAndGet(-units);
+        outcome.incrementAndGet();
+    }
+
+    long getHeld() { return held.get(); }
+    long getHeldUnits() { return heldUnits.get(); }
+    long getExpired() { return expired.get(); }
+    TimingWheel getWheel() { return wheel; }
+
+    @Override
+    public String toString() {
+        return String.format("확보 중 %d건(%d권), 누적 생성 %d / 만료 %d / 반환 %d / 주문 전환 %d, TTL %ds, 최대 틱 처리 %.1fµs",
+                held.get(), heldUnits.get(), created.get(), expired.get(), released.get(), checkedOut.get(),
+                ttlMillis / 1000, wheel.getMaxTickNanos() / 1e3);
+    }
+}
+
+// RoaringBitmap – 압축 비트맵 (Roaring 방식)
+// 정수의 상위 16비트로 컨테이너를 나누고, 컨테이너는 원소가 4096개 이하면 정렬된 char 배열,
+// 그보다 많으면 65536비트 비트맵으로 저장한다. 교집합은 컨테이너 쌍마다 배열/비트맵 조합에 맞게 계산한다.
+// 동기화하지 않으므로 사용하는 쪽(FacetIndex)이 잠금으로 보호한다.
+class RoaringBitmap {
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    // 상위 16비트가 같은 원소들 – values 또는 bits 중 하나만 사용
+    private static final class Container {
+        char[] values;   // 배열 컨테이너 (정렬)
+        long[] bits;     // 비트맵 컨테이너
+        int cardinality;
+
+        Container() {
+            values = new char[4];
+        }
+
+        Container copy() {
+            Container copy = new Container();
+            copy.values = values == null ? null : Arrays.copyOf(values, Math.max(4, cardinality));
+            copy.bits = bits == null ? null : bits.clone();
+            copy.cardinality = cardinality;
+            return copy;
+        }
+
+        boolean contains(char low) {
+            return bits != null ? (bits[low >>> 6] & (1L << low)) != 0
+                                : Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+        }
+
+        boolean add(char low) {
+            if (bits != null) {
+                long before = bits[low >>> 6];
+                bits[low >>> 6] = before | (1L << low);
+                if (before == bits[low >>> 6]) return false;
+                cardinality++;
+                return true;
+            }
+            int index = Arrays.binarySearch(values, 0, cardinality, low);
+            if (index >= 0) return false;
+            if (cardinality == ARRAY_MAX) {
+                toBitmap();
+                return add(low);
+            }
+            index = -index - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, cardinality * 2));
+            }
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = low;
+            cardinality++;
+            return true;
+        }
+
+        boolean remove(char low) {
+            if (bits != null) {
+                long before = bits[low >>> 6];
+                bits[low >>> 6] = before & ~(1L << low);
+                if (before == bits[low >>> 6]) return false;
+                if (--cardinality <= ARRAY_MAX) toArray();
+                return true;
+            }
+            int index = Arrays.binarySearch(values, 0, cardinality, low);
+            if (index < 0) return false;
+            System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+            cardinality--;
+            return true;
+        }
+
+        private void toBitmap() {
+            bits = new long[BITMAP_WORDS];
+            for (int i = 0; i < cardinality; i++) {
+                bits[values[i] >>> 6] |= 1L << values[i];
+            }
+            values = null;
+        }
+
+        private void toArray() {
+            values = new char[Math.max(4, cardinality)];
+            int n = 0;
+            for (int word = 0; word < BITMAP_WORDS; word++) {
+                for (long w = bits[word]; w != 0; w &= w - 1) {
+                    values[n++] = (char) ((word << 6) + Long.numberOfTrailingZeros(w));
+                }
+            }
+            bits = null;
+        }
+
+        // 교집합 – 결과가 비면 null
+        static Container and(Container a, Container b) {
+            Container result = new Container();
+            if (a.bits != null && b.bits != null) {
+                long[] bits = new long[BITMAP_WORDS];
+                int cardinality = 0;
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    bits[i] = a.bits[i] & b.bits[i];
+                    cardinality += Long.bitCount(bits[i]);
+                }
+                result.bits = bits;
+                result.values = null;
+                result.cardinality = cardinality;
+                if (cardinality <= ARRAY_MAX) result.toArray();
+            } else if (a.bits != null || b.bits != null) {
+                Container array = a.bits != null ? b : a;
+                Container bitmap = a.bits != null ? a : b;
+                result.values = new char[Math.max(4, array.cardinality)];
+                for (int i = 0; i < array.cardinality; i++) {
+                    char v = array.values[i];
+                    if ((bitmap.bits[v >>> 6] & (1L << v)) != 0) result.values[result.cardinality++] = v;
+                }
+            } else {
+                result.values = new char[Math.max(4, Math.min(a.cardinality, b.cardinality))];
+                result.cardinality = intersect(a, b, result.values);
+            }
+            return result.cardinality == 0 ? null : result;
+        }
+
+        // 두 배열 컨테이너의 교집합 (out 이 null 이면 개수만) – 크기 차이가 크면 작은 쪽 원소를 큰 쪽에서
+        // 지수 탐색(galloping)으로 찾는다. 찾는 값이 정렬되어 있으므로 직전 위치부터 가까운 곳만 뒤진다.
+        private static final ThreadLocal<long[]> SCRATCH = ThreadLocal.withInitial(() -> new long[BITMAP_WORDS]);
+
+        private static int intersect(Container a, Container b, char[] out) {
+            Container small = a.cardinality <= b.cardinality ? a : b;
+            Container large = small == a ? b : a;
+            int count = 0;
+            if (small.cardinality * 4 < large.cardinality) {
+                int from = 0;
+                for (int i = 0; i < small.cardinality && from < large.cardinality; i++) {
+                    char target = small.values[i];
+                    int step = 1;
+                    while (from + step < large.cardinality && large.values[from + step] < target) {
+                        from += step;
+                        step <<= 1;
+                    }
+                    int index = Arrays.binarySearch(large.values, from, Math.min(from + step + 1, large.cardinality), target);
+                    if (index >= 0) {
+                        if (out != null) out[count] = small.values[i];
+                        count++;
+                        from = index + 1;
+                    } else {
+                        from = -index - 1;
+                    }
+                }
+                return count;
+            }
+            // 비슷한 크기면 큰 쪽을 임시 비트맵에 찍고 작은 쪽을 확인한다 (예측하기 어려운 병합 분기 회피)
+            long[] scratch = SCRATCH.get();
+            for (int j = 0; j < large.cardinality; j++) {
+                char v = large.values[j];
+                scratch[v >>> 6] |= 1L << v;
+            }
+            for (int i = 0; i < small.cardinality; i++) {
+                char v = small.values[i];
+                if ((scratch[v >>> 6] & (1L << v)) != 0) {
+                    if (out != null) out[count] = v;
+                    count++;
+                }
+            }
+            for (int j = 0; j < large.cardinality; j++) {
+                scratch[large.values[j] >>> 6] = 0;
+            }
+            return count;
+        }
+
+        static int andCardinality(Container a, Container b) {
+            int count = 0;
+            if (a.bits != null && b.bits != null) {
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    count += Long.bitCount(a.bits[i] & b.bits[i]);
+                }
+            } else if (a.bits != null || b.bits != null) {
+                Container array = a.bits != null ? b : a;
+                long[] bits = a.bits != null ? a.bits : b.bits;
+                for (int i = 0; i < array.cardinality; i++) {
+                    char v = array.values[i];
+                    if ((bits[v >>> 6] & (1L << v)) != 0) count++;
+                }
+            } else {
+                count = intersect(a, b, null);
+            }
+            return count;
+        }
+
+        // 합집합을 이 컨테이너에 반영
+        void or(Container other) {
+            if (other.bits != null && bits == null) toBitmap();
+            if (bits != null) {
+                if (other.bits != null) {
+                    int cardinality = 0;
+                    for (int i = 0; i < BITMAP_WORDS; i++) {
+                        bits[i] |= other.bits[i];
+                        cardinality += Long.bitCount(bits[i]);
+                    }
+                    this.cardinality = cardinality;
+                } else {
+                    for (int i = 0; i < other.cardinality; i++) add(other.values[i]);
+                }
+                return;
+            }
+            char[] merged = new char[cardinality + other.cardinality];
+            int n = 0, i = 0, j = 0;
+            while (i < cardinality || j < other.cardinality) {
+                if (j == other.cardinality || (i < cardinality && values[i] < other.values[j])) merged[n++] = values[i++];
+                else if (i == cardinality || values[i] > other.values[j]) merged[n++] = other.values[j++];
+                else {
+                    merged[n++] = values[i++];
+                    j++;
+                }
+            }
+            values = merged;
+            cardinality = n;
+            if (n > ARRAY_MAX) toBitmap();
+        }
+
+        boolean forEach(int high, IntPredicate visitor) {
+            if (bits != null) {
+                for (int word = 0; word < BITMAP_WORDS; word++) {
+                    for (long w = bits[word]; w != 0; w &= w - 1) {
+                        if (!visitor.test(high | (word << 6) + Long.numberOfTrailingZeros(w))) return false;
+                    }
+                }
+            } else {
+                for (int i = 0; i < cardinality; i++) {
+                    if (!visitor.test(high | values[i])) return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int size; // 컨테이너 수
+
+    private int indexOf(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    boolean contains(int value) {
+        int index = indexOf((char) (value >>> 16));
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    boolean add(int value) {
+        char key = (char) (value >>> 16);
+        int index = indexOf(key);
+        if (index < 0) {
+            index = -index - 1;
+            insertContainer(index, key, new Container());
+        }
+        return containers[index].add((char) value);
+    }
+
+    boolean remove(int value) {
+        int index = indexOf((char) (value >>> 16));
+        if (index < 0 || !containers[index].remove((char) value)) return false;
+        if (containers[index].cardinality == 0) {
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+            containers[--size] = null;
+        }
+        return true;
+    }
+
+    private void insertContainer(int index, char key, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = key;
+        containers[index] = container;
+        size++;
+    }
+
+    int cardinality() {
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            total += containers[i].cardinality;
+        }
+        return total;
+    }
+
+    boolean isEmpty() { return size == 0; }
+
+    RoaringBitmap copy() {
+        RoaringBitmap copy = new RoaringBitmap();
+        copy.keys = Arrays.copyOf(keys, Math.max(4, size));
+        copy.containers = new Container[copy.keys.length];
+        for (int i = 0; i < size; i++) {
+            copy.containers[i] = containers[i].copy();
+        }
+        copy.size = size;
+        return copy;
+    }
+
+    static RoaringBitmap and(RoaringBitmap a, RoaringBitmap b) {
+        RoaringBitmap result = new RoaringBitmap();
+        for (int i = 0, j = 0; i < a.size && j < b.size; ) {
+            if (a.keys[i] < b.keys[j]) i++;
+            else if (a.keys[i] > b.keys[j]) j++;
+            else {
+                Container container = Container.and(a.containers[i], b.containers[j]);
+                if (container != null) result.insertContainer(result.size, a.keys[i], container);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    static int andCardinality(RoaringBitmap a, RoaringBitmap b) {
+        int count = 0;
+        for (int i = 0, j = 0; i < a.size && j < b.size; ) {
+            if (a.keys[i] < b.keys[j]) i++;
+            else if (a.keys[i] > b.keys[j]) j++;
+            else count += Container.andCardinality(a.containers[i++], b.containers[j++]);
+        }
+        return count;
+    }
+
+    // 합집합을 이 비트맵에 반영
+    void or(RoaringBitmap other) {
+        for (int j = 0; j < other.size; j++) {
+            int index = indexOf(other.keys[j]);
+            if (index >= 0) {
+                containers[index].or(other.containers[j]);
+            } else {
+                insertContainer(-index - 1, other.keys[j], other.containers[j].copy());
+            }
+        }
+    }
+
+    // 오름차순 순회 – visitor 가 false 를 돌려주면 중단
+    void forEach(IntPredicate visitor) {
+        for (int i = 0; i < size; i++) {
+            if (!containers[i].forEach(keys[i] << 16, visitor)) return;
+        }
+    }
+
+    // 메모리 사용량 추정 (바이트)
+    long sizeInBytes() {
+        long bytes = 16L + keys.length * 2L + containers.length * 4L;
+        for (int i = 0; i < size; i++) {
+            Container c = containers[i];
+            bytes += 24 + (c.bits != null ? BITMAP_WORDS * 8L : c.values.length * 2L);
+        }
+        return bytes;
+    }
+}
+
+// FacetIndex – 장르/출판사/가격대/재고/평점 조건 검색용 비트맵 색인
+// 도서마다 0부터 시작하는 번호를 주고, 패싯 값마다 그 값을 가진 도서 번호의 RoaringBitmap 을 유지한다.
+// 조건 검색은 비트맵 교집합이고, 가격/평점 범위는 구간(밴드) 비트맵의 합집합에 경계 구간만 실제 값으로 확인한다.
+// 도서/재고/리뷰/주문 이벤트마다 해당 도서 한 권의 비트만 옮긴다. 색인은 첫 검색 때 만든다.
+class FacetIndex {
+    enum Sort { NONE, PRICE_ASC, PRICE_DESC, RATING_DESC }
+
+    private static final int[] PRICE_BOUNDS = priceBounds(); // 센트, 1-2-5 단계
+    private static final int RATING_BANDS = 6;               // 평균 평점의 정수 부분 0~5 (리뷰가 없으면 0)
+    private static final int TALLY_LIMIT = 1 << 16;          // 결과가 이보다 작으면 비트맵 대신 결과를 돌며 센다
+    private static final int FACET_TOP = 10;                 // 장르/출판사 패싯은 상위 몇 개만
+    private static final RoaringBitmap EMPTY = new RoaringBitmap();
+
+    // 검색 조건 – 지정하지 않은 항목은 제한 없음
+    static final class Query {
+        String genre;
+        String publisher;
+        int minPriceCents;
+        int maxPriceCents = Integer.MAX_VALUE;
+        boolean inStockOnly;
+        double minRating;
+        Sort sort = Sort.NONE;
+        int limit = 20;
+
+        Query genre(String genre) { this.genre = genre; return this; }
+        Query publisher(String publisher) { this.publisher = publisher; return this; }
+        Query minPrice(double price) { this.minPriceCents = Book.toCents(price); return this; }
+        Query maxPrice(double price) { this.maxPriceCents = Book.toCents(price); return this; }
+        Query inStockOnly() { this.inStockOnly = true; return this; }
+        Query minRating(double rating) { this.minRating = rating; return this; }
+        Query sort(Sort sort) { this.sort = sort; return this; }
+        Query limit(int limit) { this.limit = limit; return this; }
+    }
+
+    // 검색 결과 – 조건에 맞는 도서 수, 정렬된 앞부분, 결과 안에서의 패싯별 도서 수
+    static final class Result {
+        final int total;
+        final List<Book> books;
+        final Map<String, Integer> genres;
+        final Map<String, Integer> publishers;
+        final Map<String, Integer> priceBands;
+        final Map<String, Integer> ratings;
+        final int inStock;
+        final long elapsedNanos;
+
+        Result(int total, List<Book> books, Map<String, Integer> genres, Map<String, Integer> publishers,
+               Map<String, Integer> priceBands, Map<String, Integer> ratings, int inStock, long elapsedNanos) {
+            this.total = total;
+            this.books = books;
+            this.genres = genres;
+            this.publishers = publishers;
+            this.priceBands = priceBands;
+            this.ratings = ratings;
+            this.inStock = inStock;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+
+    private final Supplier<Map<String, Book>> catalog;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] isbns = new String[16];
+    private long[] valuesOf = new long[16];    // 도서별 패싯 값 (장르/출판사/가격대/평점대를 한 칸에, 집계 시 캐시 미스 절감)
+    private int[] priceOf = new int[16];       // 센트
+    private double[] ratingOf = new double[16];
+    private final RoaringBitmap all = new RoaringBitmap();
+    private final RoaringBitmap inStock = new RoaringBitmap();
+    private final List<RoaringBitmap> genres = new ArrayList<>();     // 장르 사전 id 별
+    private final List<RoaringBitmap> publishers = new ArrayList<>(); // 출판사 사전 id 별
+    private final RoaringBitmap[] priceBands = new RoaringBitmap[PRICE_BOUNDS.length];
+    private final RoaringBitmap[] ratingAtLeast = new RoaringBitmap[RATING_BANDS]; // [b] = 평점대가 b 이상 ([0] 은 전체)
+    private volatile boolean built;
+
+    FacetIndex(Supplier<Map<String, Book>> catalog) {
+        this.catalog = catalog;
+        for (int i = 0; i < priceBands.length; i++) priceBands[i] = new RoaringBitmap();
+        ratingAtLeast[0] = all;
+        for (int i = 1; i < ratingAtLeast.length; i++) ratingAtLeast[i] = new RoaringBitmap();
+    }
+
+    private static int[] priceBounds() {
+        List<Integer> bounds = new ArrayList<>(Collections.singletonList(0));
+        for (long base = 100; base <= 1_000_000_000L; base *= 10) {
+            for (int step : new int[]{1, 2, 5}) {
+                if (base * step <= 1_000_000_000L) bounds.add((int) (base * step));
+            }
+        }
+        return bounds.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int bandOfPrice(int cents) {
+        int index = Arrays.binarySearch(PRICE_BOUNDS, cents);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private static String priceBandLabel(int band) {
+        return band + 1 < PRICE_BOUNDS.length
+                ? String.format("$%,d~$%,d", PRICE_BOUNDS[band] / 100, PRICE_BOUNDS[band + 1] / 100)
+                : String.format("$%,d~", PRICE_BOUNDS[band] / 100);
+    }
+
+    // 이벤트 소비자에서 호출 – 현재 카탈로그 기준으로 도서 한 권의 색인을 맞춘다 (삭제되었으면 제외)
+    // 색인을 만드는 중에 온 변경도 놓치지 않도록 잠금을 잡은 뒤에 built 와 카탈로그를 읽는다
+    void refresh(String isbn) {
+        lock.writeLock().lock();
+        try {
+            if (!built) return; // 색인 전이면 만들 때 현재 상태를 읽는다
+            Book book = catalog.get().get(isbn);
+            if (book != null) {
+                index(idOf(isbn), book);
+            } else {
+                Integer id = ids.get(isbn);
+                if (id != null) unindex(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void ensureBuilt() {
+        if (built) return;
+        lock.writeLock().lock();
+        try {
+            if (built) return;
+            for (Book book : catalog.get().values()) {
+                index(idOf(book.getIsbn()), book);
+            }
+            built = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int idOf(String isbn) {
+        Integer id = ids.get(isbn);
+        if (id != null) return id;
+        int next = ids.size();
+        if (next == isbns.length) {
+            int capacity = next * 2;
+            isbns = Arrays.copyOf(isbns, capacity);
+            valuesOf = Arrays.copyOf(valuesOf, capacity);
+            priceOf = Arrays.copyOf(priceOf, capacity);
+            ratingOf = Arrays.copyOf(ratingOf, capacity);
+        }
+        isbns[next] = isbn;
+        ids.put(isbn, next);
+        return next;
+    }
+
+    private static RoaringBitmap valueBitmap(List<RoaringBitmap> bitmaps, int value) {
+        while (bitmaps.size() <= value) bitmaps.add(new RoaringBitmap());
+        return bitmaps.get(value);
+    }
+
+    private static long pack(int genre, int publisher, int priceBand, int ratingBand) {
+        return genre | (long) publisher << 24 | (long) priceBand << 48 | (long) ratingBand << 56;
+    }
+
+    private static int genreOf(long values) { return (int) (values & 0xFFFFFF); }
+    private static int publisherOf(long values) { return (int) (values >>> 24 & 0xFFFFFF); }
+    private static int priceBandOf(long values) { return (int) (values >>> 48 & 0xFF); }
+    private static int ratingBandOf(long values) { return (int) (values >>> 56); }
+
+    // 바뀐 패싯 값의 비트만 옮긴다
+    private void index(int id, Book book) {
+        boolean present = all.contains(id);
+        long old = valuesOf[id];
+        double rating = book.getAverageRating();
+        long values = pack(book.getGenreId(), book.getPublisherId(), bandOfPrice(book.getPriceCents()),
+                Math.min(RATING_BANDS - 1, (int) rating));
+        if (!present || genreOf(old) != genreOf(values)) {
+            if (present) genres.get(genreOf(old)).remove(id);
+            valueBitmap(genres, genreOf(values)).add(id);
+        }
+        if (!present || publisherOf(old) != publisherOf(values)) {
+            if (present) publishers.get(publisherOf(old)).remove(id);
+            valueBitmap(publishers, publisherOf(values)).add(id);
+        }
+        if (!present || priceBandOf(old) != priceBandOf(values)) {
+            if (present) priceBands[priceBandOf(old)].remove(id);
+            priceBands[priceBandOf(values)].add(id);
+        }
+        int oldRating = present ? ratingBandOf(old) : 0;
+        for (int band = 1; band < RATING_BANDS; band++) {
+            boolean before = oldRating >= band;
+            boolean after = ratingBandOf(values) >= band;
+            if (before != after) {
+                if (after) ratingAtLeast[band].add(id); else ratingAtLeast[band].remove(id);
+            }
+        }
+        valuesOf[id] = values;
+        priceOf[id] = book.getPriceCents();
+        ratingOf[id] = rating;
+        if (book.getQuantity() > 0) inStock.add(id); else inStock.remove(id);
+        all.add(id);
+    }
+
+    private void unindex(int id) {
+        if (!all.remove(id)) return;
+        long values = valuesOf[id];
+        genres.get(genreOf(values)).remove(id);
+        publishers.get(publisherOf(values)).remove(id);
+        priceBands[priceBandOf(values)].remove(id);
+        for (int band = 1; band <= ratingBandOf(values); band++) ratingAtLeast[band].remove(id);
+        inStock.remove(id);
+    }
+
+    Result query(Query query) {
+        ensureBuilt();
+        long begin = System.nanoTime();
+        int total;
+        List<String> page = new ArrayList<>();
+        Map<String, Integer> genreCounts, publisherCounts, priceCounts, ratingCounts;
+        int inStockCount;
+        lock.readLock().lock();
+        try {
+            RoaringBitmap matches = matches(query);
+            total = matches.cardinality();
+            collectPage(matches, query, total, page);
+            int[][] tallies = total <= TALLY_LIMIT ? tally(matches) : null;
+            genreCounts = topCounts(tallies != null ? tallies[0] : andCardinalities(matches, genres), Book.GENRES);
+            publisherCounts = topCounts(tallies != null ? tallies[1] : andCardinalities(matches, publishers), Book.PUBLISHERS);
+            int[] prices = tallies != null ? tallies[2] : andCardinalities(matches, Arrays.asList(priceBands));
+            priceCounts = new LinkedHashMap<>();
+            for (int band = 0; band < prices.length; band++) {
+                if (prices[band] > 0) priceCounts.put(priceBandLabel(band), prices[band]);
+            }
+            int[] ratings = tallies != null ? tallies[3] : ratingCounts(matches, total);
+            ratingCounts = new LinkedHashMap<>();
+            for (int band = RATING_BANDS - 1; band >= 0; band--) {
+                if (ratings[band] > 0) ratingCounts.put(band == 0 ? "1점 미만/없음" : band + "점대", ratings[band]);
+            }
+            inStockCount = RoaringBitmap.andCardinality(matches, inStock);
+        } finally {
+            lock.readLock().unlock();
+        }
+        Map<String, Book> books = catalog.get();
+        List<Book> results = new ArrayList<>(page.size());
+        for (String isbn : page) {
+            Book book = books.get(isbn);
+            if (book != null) results.add(book);
+        }
+        return new Result(total, results, genreCounts, publisherCounts, priceCounts, ratingCounts, inStockCount,
+                System.nanoTime() - begin);
+    }
+
+    // 조건에 맞는 도서 번호 – 작은 비트맵부터 교집합, 범위 조건은 밴드 합집합이 작을 때만 비트맵으로 쓰고
+    // 아니면(또는 경계 밴드에 걸치면) 후보마다 실제 값을 확인한다
+    private RoaringBitmap matches(Query query) {
+        List<RoaringBitmap> filters = new ArrayList<>();
+        if (query.genre != null) {
+            int genre = Book.GENRES.find(query.genre);
+            filters.add(genre >= 0 && genre < genres.size() ? genres.get(genre) : EMPTY);
+        }
+        if (query.publisher != null) {
+            int publisher = Book.PUBLISHERS.find(query.publisher);
+            filters.add(publisher >= 0 && publisher < publishers.size() ? publishers.get(publisher) : EMPTY);
+        }
+        if (query.inStockOnly) {
+            filters.add(inStock);
+        }
+        int smallest = filters.stream().mapToInt(RoaringBitmap::cardinality).min().orElse(Integer.MAX_VALUE);
+
+        boolean checkPrice = false;
+        if (query.minPriceCents > 0 || query.maxPriceCents < Integer.MAX_VALUE) {
+            int low = bandOfPrice(Math.max(0, query.minPriceCents));
+            int high = bandOfPrice(Math.max(0, query.maxPriceCents));
+            RoaringBitmap union = unionIfSmall(priceBands, low, high, smallest);
+            if (union != null) {
+                filters.add(union);
+                smallest = Math.min(smallest, union.cardinality());
+            }
+            boolean partial = PRICE_BOUNDS[low] < query.minPriceCents
+                    || (high + 1 < PRICE_BOUNDS.length && PRICE_BOUNDS[high + 1] - 1 > query.maxPriceCents);
+            checkPrice = union == null || partial;
+        }
+        boolean checkRating = false;
+        if (query.minRating > 0) {
+            int low = Math.min(RATING_BANDS - 1, (int) query.minRating);
+            if (low > 0) filters.add(ratingAtLeast[low]);
+            checkRating = low != query.minRating;
+        }
+
+        RoaringBitmap result;
+        if (filters.isEmpty()) {
+            result = all;
+        } else {
+            filters.sort(Comparator.comparingInt(RoaringBitmap::cardinality));
+            result = filters.get(0);
+            for (int i = 1; i < filters.size() && !result.isEmpty(); i++) {
+                result = RoaringBitmap.and(result, filters.get(i));
+            }
+        }
+        if (!checkPrice && !checkRating) return result;
+        RoaringBitmap checked = new RoaringBitmap();
+        boolean priceFilter = checkPrice;
+        boolean ratingFilter = checkRating;
+        result.forEach(id -> {
+            if ((!priceFilter || (priceOf[id] >= query.minPriceCents && priceOf[id] <= query.maxPriceCents))
+                    && (!ratingFilter || ratingOf[id] >= query.minRating)) {
+                checked.add(id);
+            }
+            return true;
+        });
+        return checked;
+    }
+
+    // 밴드 low~high 의 합집합 – 도서 수 합이 limit 을 넘으면 만들지 않고 null
+    private static RoaringBitmap unionIfSmall(RoaringBitmap[] bands, int low, int high, int limit) {
+        long sum = 0;
+        for (int band = low; band <= high; band++) sum += bands[band].cardinality();
+        if (sum > limit) return null;
+        RoaringBitmap union = new RoaringBitmap();
+        for (int band = low; band <= high; band++) union.or(bands[band]);
+        return union;
+    }
+
+    private void collectPage(RoaringBitmap matches, Query query, int total, List<String> page) {
+        int limit = Math.min(query.limit, total);
+        if (limit <= 0) return;
+        if (query.sort == Sort.NONE) {
+            matches.forEach(id -> {
+                page.add(isbns[id]);
+                return page.size() < limit;
+            });
+            return;
+        }
+        // 밴드 순서가 곧 정렬 순서이므로 필요한 만큼의 밴드만 꺼내 그 안에서 정렬한다
+        boolean byPrice = query.sort != Sort.RATING_DESC;
+        int bandCount = byPrice ? priceBands.length : RATING_BANDS;
+        boolean descending = query.sort != Sort.PRICE_ASC;
+        for (int i = 0; i < bandCount && page.size() < limit; i++) {
+            int band = descending ? bandCount - 1 - i : i;
+            RoaringBitmap candidates = RoaringBitmap.and(matches, byPrice ? priceBands[band] : ratingAtLeast[band]);
+            // 정렬 키(가격 센트 또는 평점×10^6)를 상위 32비트에 담아 기본형 배열로 정렬
+            long[] keyed = new long[candidates.cardinality()];
+            int[] n = {0};
+            candidates.forEach(id -> {
+                if (byPrice || ratingBandOf(valuesOf[id]) == band) {
+                    long key = byPrice ? priceOf[id] : Math.round(ratingOf[id] * 1_000_000);
+                    keyed[n[0]++] = key << 32 | id;
+                }
+                return true;
+            });
+            Arrays.sort(keyed, 0, n[0]);
+            for (int j = 0; j < n[0] && page.size() < limit; j++) {
+                page.add(isbns[(int) keyed[descending ? n[0] - 1 - j : j]]);
+            }
+        }
+    }
+
+    // 결과를 한 번 돌면서 장르/출판사/가격대/평점 수를 센다
+    private int[][] tally(RoaringBitmap matches) {
+        int[][] counts = {new int[genres.size()], new int[publishers.size()], new int[priceBands.length], new int[RATING_BANDS]};
+        matches.forEach(id -> {
+            long values = valuesOf[id];
+            counts[0][genreOf(values)]++;
+            counts[1][publisherOf(values)]++;
+            counts[2][priceBandOf(values)]++;
+            counts[3][ratingBandOf(values)]++;
+            return true;
+        });
+        return counts;
+    }
+
+    // 평점대별 수 – "b 이상" 비트맵끼리의 차
+    private int[] ratingCounts(RoaringBitmap matches, int total) {
+        int[] counts = new int[RATING_BANDS];
+        int above = 0;
+        for (int band = RATING_BANDS - 1; band >= 0; band--) {
+            int atLeast = band == 0 ? total : RoaringBitmap.andCardinality(matches, ratingAtLeast[band]);
+            counts[band] = atLeast - above;
+            above = atLeast;
+        }
+        return counts;
+    }
+
+    private static int[] andCardinalities(RoaringBitmap matches, List<RoaringBitmap> bitmaps) {
+        int[] counts = new int[bitmaps.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = RoaringBitmap.andCardinality(matches, bitmaps.get(i));
+        }
+        return counts;
+    }
+
+    private static Map<String, Integer> topCounts(int[] counts, NameDictionary names) {
+        Map<String, Integer> top = new LinkedHashMap<>();
+        IntStream.range(0, counts.length)
+                .filter(id -> counts[id] > 0)
+                .boxed()
+                .sorted((a, b) -> Integer.compare(counts[b], counts[a]))
+                .limit(FACET_TOP)
+                .forEach(id -> top.put(names.nameOf(id), counts[id]));
+        return top;
+    }
+
+    // 비트맵 전체의 메모리 사용량 추정 (바이트)
+    long bitmapBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = all.sizeInBytes() + inStock.sizeInBytes();
+            for (RoaringBitmap bitmap : genres) bytes += bitmap.sizeInBytes();
+            for (RoaringBitmap bitmap : publishers) bytes += bitmap.sizeInBytes();
+            for (RoaringBitmap bitmap : priceBands) bytes += bitmap.sizeInBytes();
+            for (int band = 1; band < RATING_BANDS; band++) bytes += ratingAtLeast[band].sizeInBytes();
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
+
+// LoyaltyLeaderboard – 포인트 순위표 (포인트 내림차순, 같으면 사용자명 오름차순)
+// 구간 폭(span)을 기록한 인덱스 스킵 리스트라서 순위 조회, N번째 사용자 찾기, 구간 조회가 모두 O(log n) 이고
+// 포인트가 바뀐 사용자만 빼고 다시 넣으면 되므로 전체 정렬이 필요 없다. 등급별 인원도 갱신할 때 함께 센다.
+class LoyaltyLeaderboard {
+    private static final int MAX_LEVEL = 32;
+
+    // 순위표 한 줄 (조회 시점의 값)
+    static final class Entry {
+        final int rank;
+        final String username;
+        final int points;
+
+        Entry(int rank, String username, int points) {
+            this.rank = rank;
+            this.username = username;
+            this.points = points;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d위 %s - %d점 (%s)", rank, username, points, MembershipLevel.forPoints(points));
+        }
+    }
+
+    private static final class Node {
+        final String username;
+        final int points;
+        final Node[] next;
+        final int[] span; // next[i] 까지 건너뛰는 순위 수 (next[i] 가 없으면 끝까지 남은 수)
+
+        Node(String username, int points, int level) {
+            this.username = username;
+            this.points = points;
+            this.next = new Node[level];
+            this.span = new int[level];
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final Node head = new Node(null, 0, MAX_LEVEL);
+    private final int[] tierCounts = new int[MembershipLevel.values().length];
+    private final Random random = new Random();
+    private int level = 1;
+    private int length; // 스킵 리스트의 노드 수 (옮기는 도중에는 nodes 크기와 다를 수 있다)
+
+    static LoyaltyLeaderboard build(Collection<User> users) {
+        LoyaltyLeaderboard board = new LoyaltyLeaderboard();
+        for (User user : users) {
+            board.update(user.getUsername(), user.getLoyaltyPoints());
+        }
+        return board;
+    }
+
+    // 사용자의 현재 포인트 반영 (처음이면 추가, 바뀌었으면 옮김)
+    void update(String username, int points) {
+        lock.writeLock().lock();
+        try {
+            Node node = nodes.get(username);
+            if (node != null) {
+                if (node.points == points) return;
+                delete(node);
+                tierCounts[MembershipLevel.forPoints(node.points).ordinal()]--;
+            }
+            nodes.put(username, insert(username, points));
+            tierCounts[MembershipLevel.forPoints(points).ordinal()]++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(String username) {
+        lock.writeLock().lock();
+        try {
+            Node node = nodes.remove(username);
+            if (node != null) {
+                delete(node);
+                tierCounts[MembershipLevel.forPoints(node.points).ordinal()]--;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // (points, username) 보다 앞 순위인 노드인가
+    private static boolean ahead(Node node, int points, String username) {
+        return node.points > points || (node.points == points && node.username.compareTo(username) < 0);
+    }
+
+    private Node insert(String username, int points) {
+        Node[] update = new Node[MAX_LEVEL];
+        int[] rank = new int[MAX_LEVEL];
+        Node x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            rank[i] = i == level - 1 ? 0 : rank[i + 1];
+            while (x.next[i] != null && ahead(x.next[i], points, username)) {
+                rank[i] += x.span[i];
+                x = x.next[i];
+            }
+            update[i] = x;
+        }
+        int nodeLevel = randomLevel();
+        if (nodeLevel > level) {
+            for (int i = level; i < nodeLevel; i++) {
+                rank[i] = 0;
+                update[i] = head;
+                head.span[i] = length;
+            }
+            level = nodeLevel;
+        }
+        Node node = new Node(username, points, nodeLevel);
+        for (int i = 0; i < nodeLevel; i++) {
+            node.next[i] = update[i].next[i];
+            update[i].next[i] = node;
+            node.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+            update[i].span[i] = rank[0] - rank[i] + 1;
+        }
+        for (int i = nodeLevel; i < level; i++) {
+            update[i].span[i]++;
+        }
+        length++;
+        return node;
+    }
+
+    private void delete(Node node) {
+        Node x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.next[i] != null && x.next[i] != node && ahead(x.next[i], node.points, node.username)) {
+                x = x.next[i];
+            }
+            if (x.next[i] == node) {
+                x.span[i] += node.span[i] - 1;
+                x.next[i] = node.next[i];
+            } else {
+                x.span[i]--;
+            }
+        }
+        while (level > 1 && head.next[level - 1] == null) {
+            level--;
+        }
+        length--;
+    }
+
+    // 레벨 k 일 확률 1/4^(k-1)
+    private int randomLevel() {
+        int nodeLevel = 1;
+        while (nodeLevel < MAX_LEVEL && (random.nextInt() & 3) == 0) {
+            nodeLevel++;
+        }
+        return nodeLevel;
+    }
+
+    // 사용자의 순위 (1부터, 순위표에 없으면 -1)
+    int rankOf(String username) {
+        lock.readLock().lock();
+        try {
+            Node node = nodes.get(username);
+            if (node == null) return -1;
+            int rank = 0;
+            Node x = head;
+            for (int i = level - 1; i >= 0; i--) {
+                while (x.next[i] != null && (x.next[i] == node || ahead(x.next[i], node.points, node.username))) {
+                    rank += x.span[i];
+                    x = x.next[i];
+                }
+                if (x == node) return rank;
+            }
+            return -1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // 순위 offset+1 부터 최대 count 명
+    List<Entry> range(int offset, int count) {
+        lock.readLock().lock();
+        try {
+            List<Entry> entries = new ArrayList<>(Math.max(0, Math.min(count, nodes.size() - offset)));
+            if (offset < 0 || offset >= nodes.size() || count <= 0) return entries;
+            int rank = offset + 1;
+            Node x = nodeAt(rank);
+            while (x != null && entries.size() < count) {
+                entries.add(new Entry(rank++, x.username, x.points));
+                x = x.next[0];
+            }
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    List<Entry> top(int count) {
+        return range(0, count);
+    }
+
+    private Node nodeAt(int rank) {
+        int traversed = 0;
+        Node x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.next[i] != null && traversed + x.span[i] <= rank) {
+                traversed += x.span[i];
+                x = x.next[i];
+            }
+            if (traversed == rank) return x;
+        }
+        return null;
+    }
+
+    // 포인트가 points 이상인 사용자 수 (= 그 점수대의 마지막 순위)
+    int countAtLeast(int points) {
+        lock.readLock().lock();
+        try {
+            int count = 0;
+            Node x = head;
+            for (int i = level - 1; i >= 0; i--) {
+                while (x.next[i] != null && x.next[i].points >= points) {
+                    count += x.span[i];
+                    x = x.next[i];
+                }
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // 등급별 인원 (갱신 때마다 함께 센 값)
+    Map<MembershipLevel, Integer> tierCounts() {
+        lock.readLock().lock();
+        try {
+            Map<MembershipLevel, Integer> counts = new EnumMap<>(MembershipLevel.class);
+            for (MembershipLevel tier : MembershipLevel.values()) {
+                counts.put(tier, tierCounts[tier.ordinal()]);
+            }
+            return counts;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return nodes.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
+
+// AutocompleteIndex – 제목/저자 자동완성 (판매량 순)
+// 압축 트라이(radix trie)의 각 노드가 자기 하위 트리의 판매량 상위 TOP_K 권을 미리 들고 있어서,
+// 조회는 접두어 길이만큼 내려간 뒤 그 노드의 목록을 읽기만 하면 된다.
+// 한글은 자모 단위(겹모음/겹받침도 분해)로 색인하므로 "잡" 이나 "ㅈㅏ" 처럼 입력 중인 글자로도 찾을 수 있다.
+class AutocompleteIndex {
+    static final int TOP_K = 10;
+
+    private static final char[] NO_CHARS = new char[0];
+    private static final int[] NO_IDS = new int[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static final class Node {
+        char[] label = NO_CHARS;       // 부모에서 이 노드로 오는 간선의 글자들
+        char[] firsts = NO_CHARS;      // 자식 간선의 첫 글자 (정렬)
+        Node[] children = NO_CHILDREN;
+        int[] terminals = NO_IDS;      // 이 위치에서 끝나는 키의 도서
+        int[] top = NO_IDS;            // 하위 트리의 판매량 상위 도서 (내림차순)
+    }
+
+    private final Supplier<Map<String, Book>> catalog;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] isbns = new String[16];
+    private String[] titles = new String[16];   // 색인할 때 쓴 제목/저자 (키 재계산용, 색인되지 않았으면 null)
+    private String[] authors = new String[16];
+    private int[] units = new int[16];          // 도서별 판매 수량
+    private Node root = new Node();
+    private volatile boolean built;
+
+    AutocompleteIndex(Supplier<Map<String, Book>> catalog) {
+        this.catalog = catalog;
+    }
+
+    // 접두어로 시작하는 제목/저자(또는 제목 중간 단어)의 도서를 판매량 순으로 최대 k 권
+    List<Book> suggest(String prefix, int k) {
+        ensureBuilt();
+        char[] key = normalize(prefix);
+        List<String> found = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            Node node = locate(key);
+            if (node != null) {
+                int[] top = node.top;
+                for (int i = 0; i < Math.min(k, top.length); i++) {
+                    found.add(isbns[top[i]]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Map<String, Book> books = catalog.get();
+        List<Book> results = new ArrayList<>(found.size());
+        for (String isbn : found) {
+            Book book = books.get(isbn);
+            if (book != null) results.add(book);
+        }
+        return results;
+    }
+
+    // 처음 조회할 때 현재 카탈로그 전체로 트라이를 만든다 (시작 시간에 영향을 주지 않도록)
+    private void ensureBuilt() {
+        if (built) return;
+        lock.writeLock().lock();
+        try {
+            if (built) return;
+            for (Book book : catalog.get().values()) {
+                int id = idOf(book.getIsbn());
+                titles[id] = book.getTitle();
+                authors[id] = book.getAuthor();
+                for (char[] key : keysOf(book.getTitle(), book.getAuthor())) {
+                    insert(key, id, false);
+                }
+            }
+            recomputeAll(root); // 상위 목록은 다 넣은 뒤 아래에서부터 한 번에 계산
+            built = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // 도서 추가/수정 – 제목이나 저자가 바뀌었으면 다시 색인 (이미 같은 내용이면 아무 것도 하지 않음)
+    void bookChanged(Book book) {
+        lock.writeLock().lock();
+        try {
+            if (!built) return;
+            int id = idOf(book.getIsbn());
+            if (book.getTitle().equals(titles[id]) && book.getAuthor().equals(authors[id])) return;
+            unindex(id);
+            index(book);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void bookRemoved(String isbn) {
+        lock.writeLock().lock();
+        try {
+            Integer id = ids.get(isbn);
+            if (built && id != null) unindex(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // 판매 수량 변경 (주문 +, 취소/반품 -) – 색인 전에도 수량은 계속 누적
+    void unitsSold(String isbn, int delta) {
+        lock.writeLock().lock();
+        try {
+            int id = idOf(isbn);
+            units[id] += delta;
+            if (titles[id] == null) return;
+            List<List<Node>> paths = pathsOf(id);
+            if (delta > 0) {
+                for (List<Node> path : paths) {
+                    for (Node node : path) offer(node, id);
+                }
+            } else {
+                refresh(paths, id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int idOf(String isbn) {
+        Integer existing = ids.get(isbn);
+        if (existing != null) return existing;
+        int id = ids.size();
+        if (id == isbns.length) {
+            int capacity = id * 2;
+            isbns = Arrays.copyOf(isbns, capacity);
+            titles = Arrays.copyOf(titles, capacity);
+            authors = Arrays.copyOf(authors, capacity);
+            units = Arrays.copyOf(units, capacity);
+        }
+        isbns[id] = isbn;
+        ids.put(isbn, id);
+        return id;
+    }
+
+    private void index(Book book) {
+        int id = idOf(book.getIsbn());
+        titles[id] = book.getTitle();
+        authors[id] = book.getAuthor();
+        for (char[] key : keysOf(book.getTitle(), book.getAuthor())) {
+            insert(key, id, true);
+        }
+    }
+
+    private void unindex(int id) {
+        if (titles[id] == null) return;
+        List<List<Node>> paths = pathsOf(id);
+        for (List<Node> path : paths) {
+            Node terminal = path.get(path.size() - 1);
+            terminal.terminals = without(terminal.terminals, id);
+        }
+        refresh(paths, id);
+        titles[id] = null;
+        authors[id] = null;
+    }
+
+    // 도서의 모든 색인 키까지의 경로
+    private List<List<Node>> pathsOf(int id) {
+        List<List<Node>> paths = new ArrayList<>(4);
+        for (char[] key : keysOf(titles[id], authors[id])) {
+            List<Node> path = pathTo(key);
+            if (path != null) paths.add(path);
+        }
+        return paths;
+    }
+
+    // 색인 키: 제목 전체, 저자, 제목의 두 번째 이후 단어부터 끝까지 (중복 제거)
+    private static List<char[]> keysOf(String title, String author) {
+        List<char[]> keys = new ArrayList<>(4);
+        char[] normalizedTitle = normalize(title);
+        addKey(keys, normalizedTitle);
+        addKey(keys, normalize(author));
+        for (int i = 0; i < normalizedTitle.length; i++) {
+            if (normalizedTitle[i] == ' ') {
+                addKey(keys, Arrays.copyOfRange(normalizedTitle, i + 1, normalizedTitle.length));
+            }
+        }
+        return keys;
+    }
+
+    private static void addKey(List<char[]> keys, char[] key) {
+        if (key.length == 0) return;
+        for (char[] existing : keys) {
+            if (Arrays.equals(existing, key)) return;
+        }
+        keys.add(key);
+    }
+
+    // ------ 트라이 연산 ------
+
+    private void insert(char[] key, int id, boolean updateTop) {
+        List<Node> path = updateTop ? new ArrayList<>() : null;
+        Node node = root;
+        if (updateTop) path.add(node);
+        int position = 0;
+        while (position < key.length) {
+            int slot = Arrays.binarySearch(node.firsts, key[position]);
+            if (slot < 0) {
+                Node leaf = new Node();
+                leaf.label = Arrays.copyOfRange(key, position, key.length);
+                addChild(node, -slot - 1, leaf);
+                node = leaf;
+                if (updateTop) path.add(node);
+                break;
+            }
+            Node child = node.children[slot];
+            int common = commonPrefix(child.label, key, position);
+            if (common < child.label.length) {
+                // 간선 중간에서 갈라지면 공통 부분까지를 새 노드로 분리
+                Node middle = new Node();
+                middle.label = Arrays.copyOf(child.label, common);
+                middle.top = child.top.clone();
+                child.label = Arrays.copyOfRange(child.label, common, child.label.length);
+                middle.firsts = new char[]{child.label[0]};
+                middle.children = new Node[]{child};
+                node.children[slot] = middle;
+                child = middle;
+            }
+            node = child;
+            if (updateTop) path.add(node);
+            position += common;
+        }
+        if (!contains(node.terminals, id)) {
+            node.terminals = Arrays.copyOf(node.terminals, node.terminals.length + 1);
+            node.terminals[node.terminals.length - 1] = id;
+        }
+        if (updateTop) {
+            for (Node visited : path) {
+                offer(visited, id);
+            }
+        }
+    }
+
+    private void recomputeAll(Node node) {
+        for (Node child : node.children) {
+            recomputeAll(child);
+        }
+        recompute(node);
+    }
+
+    // 접두어가 끝나는 노드 (간선 중간에서 끝나면 그 간선의 아래 노드)
+    private Node locate(char[] prefix) {
+        Node node = root;
+        int position = 0;
+        while (position < prefix.length) {
+            int slot = Arrays.binarySearch(node.firsts, prefix[position]);
+            if (slot < 0) return null;
+            node = node.children[slot];
+            int common = commonPrefix(node.label, prefix, position);
+            if (position + common < prefix.length && common < node.label.length) return null;
+            position += common;
+        }
+        return node;
+    }
+
+    // 키와 정확히 일치하는 노드까지의 경로 (없으면 null)
+    private List<Node> pathTo(char[] key) {
+        List<Node> path = new ArrayList<>();
+        Node node = root;
+        path.add(node);
+        int position = 0;
+        while (position < key.length) {
+            int slot = Arrays.binarySearch(node.firsts, key[position]);
+            if (slot < 0) return null;
+            node = node.children[slot];
+            if (commonPrefix(node.label, key, position) != node.label.length) return null;
+            path.add(node);
+            position += node.label.length;
+        }
+        return path;
+    }
+
+    // 판매량이 줄었거나 도서가 빠졌을 때 – 모든 키 경로의 노드를 깊이별로 모아 아래에서부터 한 번씩 다시 계산.
+    // 경로마다 따로 올라가면 공통 조상(루트, 공통 자모 노드)이 아직 갱신 전인 형제 경로의 목록으로 계산되므로
+    // 한 깊이의 노드를 모두 고친 뒤에 위 깊이로 올라간다. 경로마다 같은 노드는 같은 깊이에 있다.
+    private void refresh(List<List<Node>> paths, int id) {
+        int depth = 0;
+        for (List<Node> path : paths) depth = Math.max(depth, path.size());
+        Set<Node> done = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = depth - 1; i >= 0; i--) {
+            for (List<Node> path : paths) {
+                if (i >= path.size()) continue;
+                Node node = path.get(i);
+                if (!done.add(node)) continue;
+                if (i > 0 && node.terminals.length == 0 && node.children.length == 0) {
+                    removeChild(path.get(i - 1), node); // 빈 가지 제거
+                    continue;
+                }
+                // 이 노드의 목록에 없던 도서라면 하위가 바뀌어도 목록은 그대로다 (하위는 이미 고쳐졌으므로 건너뛰기만 함)
+                if (contains(node.top, id)) recompute(node);
+            }
+        }
+    }
+
+    private void recompute(Node node) {
+        int[] best = new int[TOP_K];
+        int size = 0;
+        for (int id : node.terminals) {
+            size = offerInto(best, size, id);
+        }
+        for (Node child : node.children) {
+            for (int id : child.top) {
+                size = offerInto(best, size, id);
+            }
+        }
+        node.top = Arrays.copyOf(best, size);
+    }
+
+    private void offer(Node node, int id) {
+        int[] top = node.top;
+        int current = indexOf(top, id);
+        if (current >= 0) {
+            // 이미 목록에 있으면 판매량이 늘어난 만큼 앞으로 이동
+            int[] moved = top.clone();
+            for (int i = current; i > 0 && ranksBefore(id, moved[i - 1]); i--) {
+                moved[i] = moved[i - 1];
+                moved[i - 1] = id;
+            }
+            node.top = moved;
+        } else if (top.length < TOP_K || ranksBefore(id, top[top.length - 1])) {
+            int[] grown = Arrays.copyOf(top, Math.min(top.length + 1, TOP_K));
+            node.top = Arrays.copyOf(grown, offerInto(grown, Math.min(top.length, TOP_K - 1), id));
+        }
+    }
+
+    // 정렬된 best[0..size) 에 후보를 넣고 새 크기 반환 (중복 무시, TOP_K 초과분은 버림)
+    private int offerInto(int[] best, int size, int id) {
+        if (contains(best, size, id)) return size;
+        int position = size;
+        while (position > 0 && ranksBefore(id, best[position - 1])) position--;
+        if (position >= best.length) return size;
+        int newSize = Math.min(size + 1, best.length);
+        System.arraycopy(best, position, best, position + 1, newSize - position - 1);
+        best[position] = id;
+        return newSize;
+    }
+
+    // 판매량 내림차순, 같으면 먼저 등록된 도서 우선
+    private boolean ranksBefore(int a, int b) {
+        return units[a] != units[b] ? units[a] > units[b] : a < b;
+    }
+
+    private static void addChild(Node parent, int slot, Node child) {
+        char[] firsts = new char[parent.firsts.length + 1];
+        Node[] children = new Node[parent.children.length + 1];
+        System.arraycopy(parent.firsts, 0, firsts, 0, slot);
+        System.arraycopy(parent.children, 0, children, 0, slot);
+        firsts[slot] = child.label[0];
+        children[slot] = child;
+        System.arraycopy(parent.firsts, slot, firsts, slot + 1, parent.firsts.length - slot);
+        System.arraycopy(parent.children, slot, children, slot + 1, parent.children.length - slot);
+        parent.firsts = firsts;
+        parent.children = children;
+    }
+
+    private static void removeChild(Node parent, Node child) {
+        int slot = Arrays.binarySearch(parent.firsts, child.label[0]);
+        char[] firsts = new char[parent.firsts.length - 1];
+        Node[] children = new Node[parent.children.length - 1];
+        System.arraycopy(parent.firsts, 0, firsts, 0, slot);
+        System.arraycopy(parent.children, 0, children, 0, slot);
+        System.arraycopy(parent.firsts, slot + 1, firsts, slot, firsts.length - slot);
+        System.arraycopy(parent.children, slot + 1, children, slot, children.length - slot);
+        parent.firsts = firsts;
+        parent.children = children;
+    }
+
+    private static int commonPrefix(char[] label, char[] key, int offset) {
+        int length = Math.min(label.length, key.length - offset);
+        int i = 0;
+        while (i < length && label[i] == key[offset + i]) i++;
+        return i;
+    }
+
+    private static boolean contains(int[] ids, int id) {
+        return indexOf(ids, id) >= 0;
+    }
+
+    private static boolean contains(int[] ids, int size, int id) {
+        for (int i = 0; i < size; i++) {
+            if (ids[i] == id) return true;
+        }
+        return false;
+    }
+
+    private static int indexOf(int[] ids, int id) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == id) return i;
+        }
+        return -1;
+    }
+
+    private static int[] without(int[] ids, int id) {
+        int index = indexOf(ids, id);
+        if (index < 0) return ids;
+        int[] result = new int[ids.length - 1];
+        System.arraycopy(ids, 0, result, 0, index);
+        System.arraycopy(ids, index + 1, result, index, result.length - index);
+        return result;
+    }
+
+    // ------ 한글 자모 분해 ------
+    private static final char[] CHOSEONG = "ㄱㄲㄴㄷㄸㄹㅁㅂㅃㅅㅆㅇㅈㅉㅊㅋㅌㅍㅎ".toCharArray();
+    private static final char[] JUNGSEONG = "ㅏㅐㅑㅒㅓㅔㅕㅖㅗㅘㅙㅚㅛㅜㅝㅞㅟㅠㅡㅢㅣ".toCharArray();
+    private static final char[] JONGSEONG = "\0ㄱㄲㄳㄴㄵㄶㄷㄹㄺㄻㄼㄽㄾㄿㅀㅁㅂㅄㅅㅆㅇㅈㅊㅋㅌㅍㅎ".toCharArray();
+    private static final char COMPAT_JAMO_FIRST = 'ㄱ';
+    private static final String[] COMPOUND_JAMO = new String['ㅣ' - COMPAT_JAMO_FIRST + 1]; // 겹자모 -> 분해 결과
+    static {
+        String[][] compounds = {
+            {"ㅘ", "ㅗㅏ"}, {"ㅙ", "ㅗㅐ"}, {"ㅚ", "ㅗㅣ"}, {"ㅝ", "ㅜㅓ"}, {"ㅞ", "ㅜㅔ"}, {"ㅟ", "ㅜㅣ"}, {"ㅢ", "ㅡㅣ"},
+            {"ㄳ", "ㄱㅅ"}, {"ㄵ", "ㄴㅈ"}, {"ㄶ", "ㄴㅎ"}, {"ㄺ", "ㄹㄱ"}, {"ㄻ", "ㄹㅁ"}, {"ㄼ", "ㄹㅂ"},
+            {"ㄽ", "ㄹㅅ"}, {"ㄾ", "ㄹㅌ"}, {"ㄿ", "ㄹㅍ"}, {"ㅀ", "ㄹㅎ"}, {"ㅄ", "ㅂㅅ"}
+        };
+        for (String[] compound : compounds) {
+            COMPOUND_JAMO[compound[0].charAt(0) - COMPAT_JAMO_FIRST] = compound[1];
+        }
+    }
+
+    // 소문자화 + 연속 공백 정리 + 한글 음절을 자모로 분해 (입력 중인 음절도 접두어로 일치하도록)
+    static char[] normalize(String text) {
+        StringBuilder out = new StringBuilder(text.length() * 3);
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            if (Character.isWhitespace(c)) {
+                space = out.length() > 0;
+                continue;
+            }
+            if (space) {
+                out.append(' ');
+                space = false;
+            }
+            if (c >= 0xAC00 && c <= 0xD7A3) {
+                int syllable = c - 0xAC00;
+                appendJamo(out, CHOSEONG[syllable / (21 * 28)]);
+                appendJamo(out, JUNGSEONG[syllable % (21 * 28) / 28]);
+                if (syllable % 28 != 0) appendJamo(out, JONGSEONG[syllable % 28]);
+            } else {
+                appendJamo(out, c);
+            }
+        }
+        char[] result = new char[out.length()];
+        out.getChars(0, out.length(), result, 0);
+        return result;
+    }
+
+    private static void appendJamo(StringBuilder out, char jamo) {
+        int index = jamo - COMPAT_JAMO_FIRST;
+        if (index >= 0 && index < COMPOUND_JAMO.length && COMPOUND_JAMO[index] != null) {
+            out.append(COMPOUND_JAMO[index]);
+        } else {
+            out.append(jamo);
+        }
+    }
+}
+
+// NotificationManager – 알림 전송 시뮬레이션
+class NotificationManager {
+    public static void sendNotification(String username, String message) {
+        System.out.println("알림 [To: " + username + "]: " + message);
+    }
+}
+
+// BookMarket 클래스 – 비즈니스 로직 및 데이터 영속성, 추가 기능 다수 포함
+class BookMarket implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = Logger.getLogger(BookMarket.class.getName());
+
+    private Catalog catalog;                 // ISBN -> Book (버전별 불변 스냅샷)
+    private Map<String, User> users;         // username -> User
+    private OrderLog orderLog;               // 모든 주문 내역 (열 지향 저장)
+    private transient SalesCube salesCube;   // 일자 × 도서 매출 롤업 (주문 내역에서 파생)
+    private transient List<MarketChangeListener> changeListeners; // CDC 구독자
+    private transient AtomicLong changeSequence;
+    private transient ReadReplica readReplica; // 보고서/내보내기를 처리하는 읽기 복제본
+    private transient DomainEventBus events; // 주문/재고/리뷰 이벤트 버스 (파생 상태는 소비자가 갱신)
+    private final boolean replica;           // 읽기 복제본이면 이벤트 소비자를 두지 않음
+    private transient Map<String, FlashSale> flashSales; // 플래시 세일 중인 도서 (ISBN -> 세일)
+    private transient AutocompleteIndex autocomplete;    // 제목/저자 자동완성 (복제본에는 없음)
+    private transient FacetIndex facets;                 // 장르/출판사/가격/재고/평점 조건 검색 (복제본에는 없음)
+    private int currentOrderIdCounter;
+    private final int orderIdStride;         // 샤드별 주문번호 간격 (단일 시장이면 1)
+    private Map<String, ShoppingCart> carts; // username -> ShoppingCart
+    private transient CartReservations cartReservations; // 장바구니 재고 확보 만료 관리
+    private transient BulkUpdate.Result lastBulkUpdate;  // 되돌리기 대상인 최근 일괄 변경
+    private transient volatile Checkpointer checkpoints; // 증분 체크포인트 (켜져 있을 때만)
+    private transient volatile PaymentSettlement settlement; // 일괄 정산 (없으면 주문/반품마다 PaymentGateway 왕복)
+    private transient LoyaltyLeaderboard leaderboard;        // 포인트 순위와 등급별 회원 수
+    private Map<String, List<String>> wishLists; // username -> [도서 ISBN 목록]
+
+    private static final int EVENT_RING_SIZE = 4096;
+
+    public BookMarket() {
+        this(1, 1);
+    }
+
+    // 샤드용 생성자 – 샤드마다 firstOrderId 를 달리하고 샤드 수만큼 건너뛰며 주문번호를 발급
+    BookMarket(int firstOrderId, int orderIdStride) {
+        this(firstOrderId, orderIdStride, false);
+    }
+
+    private BookMarket(int firstOrderId, int orderIdStride, boolean replica) {
+        this.orderIdStride = orderIdStride;
+        this.replica = replica;
+        catalog = new Catalog();
+        users = new ConcurrentHashMap<>();
+        orderLog = new OrderLog();
+        salesCube = SalesCube.build(orderLog);
+        currentOrderIdCounter = firstOrderId;
+        carts = new ConcurrentHashMap<>();
+        cartReservations = new CartReservations();
+        wishLists = new ConcurrentHashMap<>();
+        changeListeners = new CopyOnWriteArrayList<>();
+        changeSequence = new AtomicLong();
+        flashSales = new ConcurrentHashMap<>();
+        leaderboard = new LoyaltyLeaderboard();
+        startEventBus();
+    }
+
+    // 읽기 복제본용 인스턴스 – 변경은 applyChange 로만 반영
+    static BookMarket createReplica() {
+        return new BookMarket(1, 1, true);
+    }
+
+    // Getter – RecommendationEngine 사용을 위함
+    // 현재 카탈로그 스냅샷 – 반환된 Map 은 이후 변경과 무관하게 일관된 상태를 유지
+    public Map<String, Book> getBooks() { return catalog.current(); }
+    Catalog getCatalog() { return catalog; }
+
+    // 매핑 카탈로그 파일을 카탈로그로 사용 (시작 직후, 도서를 추가하기 전에만 가능)
+    void mountCatalog(MappedCatalog mapped) {
+        if (!catalog.current().isEmpty()) {
+            throw new IllegalStateException("이미 도서가 등록된 카탈로그에는 매핑 카탈로그를 연결할 수 없습니다.");
+        }
+        catalog = new Catalog(mapped);
+    }
+
+    // 현재 카탈로그를 매핑 카탈로그 파일로 저장
+    void exportCatalog(Path path) throws IOException {
+        MappedCatalog.write(path, catalog.current().values());
+    }
+
+    public List<Order> getOrders() { return orderLog.asList(); }
+    OrderLog getOrderLog() { return orderLog; }
+    SalesCube getSalesCube() { return salesCube; }
+
+    // 역직렬화 시 판매 큐브를 주문 내역으로부터 재구축
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        salesCube = SalesCube.build(orderLog);
+        changeListeners = new CopyOnWriteArrayList<>();
+        changeSequence = new AtomicLong();
+        flashSales = new ConcurrentHashMap<>();
+        carts = new ConcurrentHashMap<>(carts);
+        wishLists = new ConcurrentHashMap<>(wishLists);
+        cartReservations = new CartReservations();
+        leaderboard = LoyaltyLeaderboard.build(users.values());
+        startEventBus();
+        rearmCartReservations();
+    }
+
+    // ------ 도메인 이벤트 ------
+    // 주문 경로는 이벤트만 게시하고, 재고 복원/판매 큐브/포인트/알림/로그/CDC 는 아래 소비자가 처리한다.
+    // 알림은 포인트 적립 이후에, CDC 는 재고 복원과 포인트 적립 이후에 처리되도록 순서를 건다.
+    private void startEventBus() {
+        events = new DomainEventBus(EVENT_RING_SIZE);
+        if (replica) return;
+        autocomplete = new AutocompleteIndex(() -> catalog.current());
+        facets = new FacetIndex(() -> catalog.current());
+        for (int row = 0; row < orderLog.size(); row++) {
+            if (orderLog.isCompleted(row)) {
+                autocomplete.unitsSold(orderLog.book(orderLog.bookIndex(row)).getIsbn(), orderLog.quantity(row));
+            }
+        }
+        DomainEventBus.Subscriber inventory = events.subscribe("inventory", (event, seq, endOfBatch) -> onInventoryEvent(event));
+        events.subscribe("sales-cube", (event, seq, endOfBatch) -> onSalesCubeEvent(event));
+        DomainEventBus.Subscriber loyalty = events.subscribe("loyalty", (event, seq, endOfBatch) -> onLoyaltyEvent(event));
+        events.subscribe("notification", (event, seq, endOfBatch) -> onNotificationEvent(event), loyalty);
+        events.subscribe("audit-log", (event, seq, endOfBatch) -> onAuditLogEvent(event));
+        events.subscribe("autocomplete", (event, seq, endOfBatch) -> onAutocompleteEvent(event));
+        events.subscribe("facets", (event, seq, endOfBatch) -> onFacetEvent(event), inventory);
+        events.subscribe("change-capture", (event, seq, endOfBatch) -> onChangeCaptureEvent(event), inventory, loyalty);
+    }
+
+    DomainEventBus getEventBus() { return events; }
+
+    // 지금까지 게시된 이벤트가 모든 소비자에 반영될 때까지 대기
+    void awaitEventsProcessed() {
+        events.awaitDrained();
+    }
+
+    // 이벤트 소비자와 장바구니 만료 쓰레드 종료 – 게시된 이벤트는 모두 처리한 뒤 멈춘다
+    void close() {
+        events.awaitDrained();
+        events.shutdown();
+        cartReservations.close();
+    }
+
+    private void publishOrderEvent(DomainEvent.Type type, int row, byte previousStatus) {
+        events.publish(type, row, previousStatus, null, null, null, null);
+    }
+
+    private void publishBookEvent(DomainEvent.Type type, String isbn, Book book) {
+        events.publish(type, -1, OrderLog.STATUS_COMPLETED, isbn, book, null, null);
+    }
+
+    private void onInventoryEvent(DomainEvent event) {
+        if (event.type == DomainEvent.Type.ORDER_CANCELLED || event.type == DomainEvent.Type.ORDER_RETURNED) {
+            int row = event.orderRow;
+            orderLog.book(orderLog.bookIndex(row)).returnStock(orderLog.quantity(row));
+        }
+    }
+
+    private void onSalesCubeEvent(DomainEvent event) {
+        if (event.type == DomainEvent.Type.ORDER_PLACED) {
+            salesCube.recordOrder(event.orderRow);
+        } else if ((event.type == DomainEvent.Type.ORDER_CANCELLED || event.type == DomainEvent.Type.ORDER_RETURNED)
+                && event.previousStatus == OrderLog.STATUS_COMPLETED) {
+            salesCube.recordReversal(event.orderRow);
+        }
+    }
+
+    private void onLoyaltyEvent(DomainEvent event) {
+        if (event.type != DomainEvent.Type.ORDER_PLACED) return;
+        User user = users.get(orderLog.username(orderLog.userIndex(event.orderRow)));
+        if (user != null) {
+            synchronized (user) {
+                user.addLoyaltyPoints((int) (orderLog.totalCents(event.orderRow) / 1000)); // 10달러당 1포인트
+                leaderboard.update(user.getUsername(), user.getLoyaltyPoints());
+            }
+        }
+    }
+
+    private void onNotificationEvent(DomainEvent event) {
+        if (event.orderRow < 0) return;
+        String username = orderLog.username(orderLog.userIndex(event.orderRow));
+        int orderId = orderLog.orderId(event.orderRow);
+        if (event.type == DomainEvent.Type.ORDER_PLACED && users.containsKey(username)) {
+            NotificationManager.sendNotification(username, String.format("주문이 완료되었습니다! 주문번호: %d", orderId));
+        } else if (event.type == DomainEvent.Type.ORDER_CANCELLED) {
+            NotificationManager.sendNotification(username, String.format("주문이 취소되었습니다! 주문번호: %d", orderId));
+        } else if (event.type == DomainEvent.Type.ORDER_RETURNED) {
+            NotificationManager.sendNotification(username, String.format("주문이 반품되었습니다! 주문번호: %d", orderId));
+        }
+    }
+
+    private void onAuditLogEvent(DomainEvent event) {
+        if (event.orderRow < 0) return;
+        int row = event.orderRow;
+        Object[] params = {orderLog.orderId(row), orderLog.username(orderLog.userIndex(row)),
+                           orderLog.book(orderLog.bookIndex(row)).getTitle()};
+        if (event.type == DomainEvent.Type.ORDER_PLACED) {
+            logger.log(Level.INFO, "주문 생성: Order#{0} by {1} for {2}", params);
+        } else if (event.type == DomainEvent.Type.ORDER_CANCELLED) {
+            logger.log(Level.INFO, "주문 취소: Order#{0} by {1}", params);
+        } else if (event.type == DomainEvent.Type.ORDER_RETURNED) {
+            logger.log(Level.INFO, "주문 반품: Order#{0} by {1}", params);
+        }
+    }
+
+    // 재고/가격/평점이 바뀐 도서 한 권의 패싯 색인 갱신 (취소/반품은 재고 복원 이후)
+    private void onFacetEvent(DomainEvent event) {
+        if (event.orderRow >= 0) {
+            facets.refresh(orderLog.book(orderLog.bookIndex(event.orderRow)).getIsbn());
+        } else if (event.isbn != null) {
+            facets.refresh(event.isbn);
+        }
+    }
+
+    private void onAutocompleteEvent(DomainEvent event) {
+        switch (event.type) {
+            case ORDER_PLACED:
+                autocomplete.unitsSold(orderLog.book(orderLog.bookIndex(event.orderRow)).getIsbn(),
+                        orderLog.quantity(event.orderRow));
+                break;
+            case ORDER_CANCELLED:
+            case ORDER_RETURNED:
+                if (event.previousStatus == OrderLog.STATUS_COMPLETED) {
+                    autocomplete.unitsSold(orderLog.book(orderLog.bookIndex(event.orderRow)).getIsbn(),
+                            -orderLog.quantity(event.orderRow));
+                }
+                break;
+            case BOOK_ADDED:
+            case BOOK_UPDATED:
+                autocomplete.bookChanged(event.book);
+                break;
+            case BOOK_REMOVED:
+                autocomplete.bookRemoved(event.isbn);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // 도메인 이벤트를 CDC 레코드로 변환해 구독자(읽기 복제본 등)에 전달
+    private void onChangeCaptureEvent(DomainEvent event) {
+        if (changeListeners.isEmpty()) return;
+        switch (event.type) {
+            case ORDER_PLACED: {
+                int row = event.orderRow;
+                publishChange(MarketChange.orderPlaced(orderLog, row));
+                publishChange(MarketChange.stockChanged(orderLog.book(orderLog.bookIndex(row))));
+                User user = users.get(orderLog.username(orderLog.userIndex(row)));
+                if (user != null) {
+                    publishChange(MarketChange.userUpserted(user));
+                }
+                break;
+            }
+            case ORDER_CANCELLED:
+            case ORDER_RETURNED: {
+                int row = event.orderRow;
+                byte status = event.type == DomainEvent.Type.ORDER_CANCELLED ? OrderLog.STATUS_CANCELLED : OrderLog.STATUS_RETURNED;
+                publishChange(MarketChange.orderStatusChanged(orderLog.orderId(row), status));
+                publishChange(MarketChange.stockChanged(orderLog.book(orderLog.bookIndex(row))));
+                break;
+            }
+            case BOOK_ADDED:
+            case BOOK_UPDATED:
+                publishChange(MarketChange.bookUpserted(event.book));
+                break;
+            case BOOK_REMOVED:
+                publishChange(MarketChange.bookRemoved(event.isbn));
+                break;
+            case STOCK_CHANGED:
+                publishChange(MarketChange.stockChanged(event.book));
+                break;
+            case REVIEW_ADDED:
+                publishChange(MarketChange.reviewAdded(event.isbn, event.review));
+                break;
+            case USER_CHANGED:
+                publishChange(MarketChange.userUpserted(event.user));
+                break;
+        }
+    }
+
+    // ------ 변경 데이터 캡처(CDC) ------
+    void addChangeListener(MarketChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    private void publishChange(MarketChange change) {
+        if (changeListeners.isEmpty()) return;
+        change.sequence = changeSequence.incrementAndGet();
+        for (MarketChangeListener listener : changeListeners) {
+            listener.onChange(change);
+        }
+    }
+
+    // 읽기 복제본 연결 – 현재 상태를 초기 변경으로 먼저 보내고 이후 변경을 스트리밍
+    // (게시된 이벤트를 모두 반영한 뒤 스냅샷을 뜨므로, 쓰기 트래픽이 시작되기 전에 연결해야 한다)
+    ReadReplica attachReadReplica() {
+        events.awaitDrained();
+        ReadReplica replica = new ReadReplica();
+        MappedCatalog mapped = catalog.current().getBase();
+        if (mapped != null) {
+            // 복제본도 같은 파일을 (자신의 캐시/재고 상태로) 매핑하고, 파일 이후의 변경만 전달받는다
+            replica.run(target -> {
+                try {
+                    target.mountCatalog(mapped.reopen());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        for (MarketChange change : currentStateAsChanges()) {
+            change.sequence = changeSequence.incrementAndGet();
+            replica.onChange(change);
+        }
+        addChangeListener(replica);
+        readReplica = replica;
+        return replica;
+    }
+
+    ReadReplica getReadReplica() { return readReplica; }
+
+    // ------ 증분 체크포인트 ------
+    // 도서/사용자/주문 상태는 CDC 구독으로, 장바구니/위시리스트는 변경 경로에서 직접 표시하고 기록은 체크포인트 쓰레드가 한다.
+    Checkpointer startCheckpoints(Path directory, long intervalMillis) throws IOException {
+        if (replica) {
+            throw new IllegalStateException("읽기 복제본에서는 체크포인트를 켤 수 없습니다.");
+        }
+        if (checkpoints != null) {
+            throw new IllegalStateException("이미 체크포인트가 실행 중입니다: " + checkpoints.getDirectory());
+        }
+        Files.createDirectories(directory);
+        Checkpointer checkpointer = new Checkpointer(this, directory, intervalMillis);
+        checkpoints = checkpointer;
+        addChangeListener(checkpointer);
+        events.awaitDrained(); // 구독 이전에 게시된 변경이 모두 반영된 뒤 기준 스냅샷을 뜬다
+        checkpointer.start();
+        return checkpointer;
+    }
+
+    // 체크포인트 중지 – 처리 중인 이벤트까지 반영해 마지막 델타를 기록
+    void stopCheckpoints() throws InterruptedException {
+        Checkpointer checkpointer = checkpoints;
+        if (checkpointer == null) return;
+        events.awaitDrained();
+        checkpointer.stop();
+        changeListeners.remove(checkpointer);
+        checkpoints = null;
+    }
+
+    Checkpointer getCheckpoints() { return checkpoints; }
+
+    // ------ 일괄 정산 ------
+    // 켜면 주문은 즉시 승인만 하고, 매입/환불은 정산 창 단위로 모아 대행사에 보낸다
+    void enableSettlement(PaymentSettlement settlement) {
+        if (this.settlement != null) {
+            throw new IllegalStateException("이미 일괄 정산이 켜져 있습니다.");
+        }
+        this.settlement = settlement;
+    }
+
+    // 일괄 정산 중지 – 이후 주문은 다시 건별 결제, 남은 매입/환불은 마지막 묶음으로 보낸다
+    void disableSettlement() throws InterruptedException {
+        PaymentSettlement current = settlement;
+        if (current == null) return;
+        settlement = null;
+        current.close();
+    }
+
+    PaymentSettlement getSettlement() { return settlement; }
+
+    private void cartChanged(String username) {
+        Checkpointer checkpointer = checkpoints;
+        if (checkpointer != null) checkpointer.markCart(username);
+    }
+
+    private void wishListChanged(String username) {
+        Checkpointer checkpointer = checkpoints;
+        if (checkpointer != null) checkpointer.markWishList(username);
+    }
+
+    // 체크포인트 쓰레드에서 호출 – 표시된 키(기준 스냅샷이면 모든 키)의 현재 값과 주문 구간을 이미지에 담는다
+    // 도서/사용자는 기록 시점에 직렬화되는 값 객체로, 장바구니/위시리스트는 쓰기와 겹치지 않도록 복사본으로 담는다.
+    void captureCheckpoint(Checkpointer.Image image, Checkpointer.Changes changes) {
+        CatalogVersion books = catalog.current();
+        if (changes.full) {
+            for (Book book : books.values()) {
+                image.books.put(book.getIsbn(), book);
+            }
+            image.users.putAll(users);
+            carts.forEach((username, cart) -> image.carts.put(username, copyCart(cart, changes)));
+            wishLists.forEach((username, wishlist) -> image.wishLists.put(username, new ArrayList<>(wishlist)));
+        } else {
+            for (String isbn : changes.books) {
+                Book book = books.get(isbn);
+                image.books.put(isbn, book);
+                int bookIndex = book == null ? orderLog.bookIndexOf(isbn) : -1;
+                if (bookIndex >= 0) {
+                    image.retiredBooks.put(isbn, orderLog.book(bookIndex));
+                }
+            }
+            for (String username : changes.users) {
+                User user = users.get(username);
+                if (user != null) image.users.put(username, user);
+            }
+            for (String username : changes.carts) {
+                ShoppingCart cart = carts.get(username);
+                if (cart == null) continue;
+                ShoppingCart copy = copyCart(cart, changes);
+                image.carts.put(username, copy);
+                for (CartItem item : copy.getItems()) { // 확보한 재고가 도서 재고와 같은 델타에 실리도록
+                    Book book = books.get(item.getBook().getIsbn());
+                    if (book != null) image.books.put(book.getIsbn(), book);
+                }
+            }
+            for (String username : changes.wishLists) {
+                List<String> wishlist = wishLists.get(username);
+                image.wishLists.put(username, wishlist == null ? new ArrayList<>() : new ArrayList<>(wishlist));
+            }
+        }
+        // 도서의 재고 변경 표시는 CDC 로 늦게 도착하므로, 주문 행과 그 도서의 현재 재고를 같은 델타에 함께 담는다
+        // (주문 행이 실렸는데 재고는 다음 델타에야 실리면 그 사이에 멈췄을 때 같은 재고를 두 번 팔 수 있다)
+        for (int row = changes.orderFrom; row < changes.orderTo; row++) {
+            Book book = orderLog.book(orderLog.bookIndex(row));
+            image.addOrder(orderLog.orderId(row), orderLog.username(orderLog.userIndex(row)), book.getIsbn(),
+                    orderLog.quantity(row), orderLog.orderTime(row), orderLog.priceCents(row), orderLog.status(row));
+            Book current = books.get(book.getIsbn());
+            if (current != null) {
+                image.books.put(current.getIsbn(), current);
+            } else {
+                image.retiredBooks.putIfAbsent(book.getIsbn(), book);
+            }
+        }
+        for (int orderId : changes.orderIds) {
+            int row = orderLog.findRow(orderId);
+            if (row >= 0 && row < changes.orderFrom) { // 구간 안의 주문은 행에 현재 상태가 담긴다
+                image.statusChanges.put(orderId, orderLog.status(row));
+                Book current = books.get(orderLog.book(orderLog.bookIndex(row)).getIsbn());
+                if (current != null) image.books.put(current.getIsbn(), current);
+            }
+        }
+        image.nextOrderId = currentOrderIdCounter; // 주문 구간을 정한 뒤에 읽으므로 구간 안의 주문번호보다 크다
+    }
+
+    private static ShoppingCart copyCart(ShoppingCart cart, Checkpointer.Changes changes) {
+        ShoppingCart copy = new ShoppingCart();
+        long begin = System.nanoTime();
+        synchronized (cart) {
+            for (CartItem item : cart.getItems()) {
+                copy.addItem(item.getBook(), item.getQuantity()).setReserved(item.getReserved());
+            }
+        }
+        changes.lockHeld(System.nanoTime() - begin);
+        return copy;
+    }
+
+    // 체크포인트 디렉터리에서 복구 (체크포인트가 없으면 빈 시장)
+    static BookMarket recover(Path directory) throws IOException {
+        BookMarket market = new BookMarket();
+        Checkpointer.Image image = Checkpointer.load(directory);
+        if (image != null) {
+            market.restore(image);
+            logger.info(String.format("체크포인트 %d에서 복구: 도서 %d권, 사용자 %d명, 주문 %d건",
+                    image.number, image.books.size(), image.users.size(), image.orderCount));
+        }
+        return market;
+    }
+
+    // 빈 시장을 이미지 상태로 채운 뒤, 판매 큐브와 이벤트 소비자(자동완성/패싯 등)를 복구된 주문 내역 기준으로 다시 시작
+    private void restore(Checkpointer.Image image) {
+        catalog.update(builder -> {
+            builder.expect(image.books.size());
+            image.books.values().forEach(builder::put);
+        });
+        CatalogVersion books = catalog.current();
+        users.putAll(image.users);
+        image.users.values().forEach(user -> leaderboard.update(user.getUsername(), user.getLoyaltyPoints()));
+        for (int i = 0; i < image.orderCount; i++) {
+            Book book = books.get(image.orderIsbns[i]);
+            if (book == null) book = image.retiredBooks.get(image.orderIsbns[i]);
+            if (book == null) {
+                throw new IllegalStateException("주문 " + image.orderIds[i] + "의 도서를 체크포인트에서 찾을 수 없습니다: "
+                        + image.orderIsbns[i]);
+            }
+            int row = orderLog.append(image.orderIds[i], image.orderUsers[i], book, image.quantities[i],
+                    image.priceCents[i], image.orderTimes[i]);
+            orderLog.setStatus(row, image.statuses[i]);
+        }
+        currentOrderIdCounter = Math.max(currentOrderIdCounter, image.nextOrderId);
+        image.carts.forEach((username, saved) -> {
+            ShoppingCart cart = new ShoppingCart();
+            for (CartItem item : saved.getItems()) {
+                Book book = books.get(item.getBook().getIsbn()); // 카탈로그 도서와 재고 상태를 공유하도록 다시 연결
+                cart.addItem(book != null ? book : item.getBook(), item.getQuantity()).setReserved(item.getReserved());
+            }
+            carts.put(username, cart);
+        });
+        image.wishLists.forEach((username, wishlist) -> wishLists.put(username, new ArrayList<>(wishlist)));
+        salesCube = SalesCube.build(orderLog);
+        events.shutdown();
+        startEventBus();
+        rearmCartReservations();
+    }
+
+    private List<MarketChange> currentStateAsChanges() {
+        List<MarketChange> changes = new ArrayList<>();
+        CatalogVersion books = catalog.current();
+        for (User user : users.values()) {
+            changes.add(MarketChange.userUpserted(user));
+        }
+        for (int i = 0; i < orderLog.bookCount(); i++) {
+            changes.add(MarketChange.bookUpserted(orderLog.book(i))); // 삭제된 도서도 주문 조회를 위해 먼저 전달
+        }
+        for (int row = 0; row < orderLog.size(); row++) {
+            changes.add(MarketChange.orderPlaced(orderLog, row));
+        }
+        for (int i = 0; i < orderLog.bookCount(); i++) {
+            if (!books.containsKey(orderLog.book(i).getIsbn())) {
+                changes.add(MarketChange.bookRemoved(orderLog.book(i).getIsbn()));
+            }
+        }
+        MappedCatalog mapped = books.getBase();
+        for (Map.Entry<String, Book> entry : books.changedSinceBase().entrySet()) {
+            Book book = entry.getValue();
+            if (book == null) {
+                changes.add(MarketChange.bookRemoved(entry.getKey()));
+                continue;
+            }
+            changes.add(MarketChange.bookUpserted(book));
+            List<Review> reviews = book.getReviews();
+            int stored = mapped == null ? 0 : mapped.storedReviewCount(book.getIsbn()); // 파일에 있는 리뷰는 복제본도 갖고 있음
+            for (Review review : reviews.subList(Math.min(stored, reviews.size()), reviews.size())) {
+                changes.add(MarketChange.reviewAdded(book.getIsbn(), review));
+            }
+        }
+        return changes;
+    }
+
+    // 복제본 적용 – CDC 레코드를 출력/알림/로그 없이 그대로 반영 (ReadReplica 전용)
+    void applyChange(MarketChange change) {
+        Book book = change.isbn == null ? null : catalog.current().get(change.isbn);
+        switch (change.type) {
+            case BOOK_UPSERTED:
+                if (book == null) {
+                    int index = orderLog.bookIndexOf(change.isbn);
+                    book = index >= 0 ? orderLog.book(index)
+                            : new Book(change.isbn, change.title, change.author, change.price,
+                                       change.quantity, change.genre, change.publisher);
+                }
+                Book updated = book.withDetails(change.title, change.author, change.price, change.genre, change.publisher);
+                updated.setQuantity(change.quantity);
+                catalog.update(builder -> builder.put(updated));
+                orderLog.refreshBook(updated);
+                break;
+            case BOOK_REMOVED:
+                catalog.remove(change.isbn);
+                break;
+            case STOCK_CHANGED:
+                if (book != null) book.setQuantity(change.quantity);
+                break;
+            case REVIEW_ADDED:
+                if (book != null) book.addReview(new Review(change.username, change.rating, change.reviewText));
+                break;
+            case USER_UPSERTED:
+                User user = users.computeIfAbsent(change.username, name -> new User(name, "", change.role));
+                user.role = change.role;
+                user.setLoyaltyPoints(change.loyaltyPoints);
+                leaderboard.update(user.getUsername(), user.getLoyaltyPoints());
+                break;
+            case ORDER_PLACED:
+                if (book == null) {
+                    int index = orderLog.bookIndexOf(change.isbn);
+                    if (index < 0) break;
+                    book = orderLog.book(index);
+                }
+                int row = orderLog.append(change.orderId, change.username, book, change.quantity,
+                        change.priceCents, change.orderTime);
+                orderLog.setStatus(row, change.status);
+                if (orderLog.isCompleted(row)) {
+                    salesCube.recordOrder(row);
+                }
+                currentOrderIdCounter = change.orderId + orderIdStride;
+                break;
+            case ORDER_STATUS_CHANGED:
+                int statusRow = orderLog.findRow(change.orderId);
+                if (statusRow >= 0) {
+                    if (orderLog.isCompleted(statusRow) && change.status != OrderLog.STATUS_COMPLETED) {
+                        salesCube.recordReversal(statusRow);
+                    }
+                    orderLog.setStatus(statusRow, change.status);
+                }
+                break;
+        }
+    }
+
+    // 복제본이 연결되어 있으면 보고서를 복제본 쓰레드에서 실행 (주문 쓰기와 경합하지 않도록)
+    private boolean routeToReplica(Consumer<BookMarket> report) {
+        if (readReplica == null) return false;
+        readReplica.run(report);
+        return true;
+    }
+
+    // 사용자 등록
+    public boolean registerUser(String username, String password, UserRole role) {
+        if (users.containsKey(username)) {
+            System.out.println("이미 존재하는 사용자입니다.");
+            return false;
+        }
+        User newUser = new User(username, password, role);
+        users.put(username, newUser);
+        leaderboard.update(username, newUser.getLoyaltyPoints());
+        events.publish(DomainEvent.Type.USER_CHANGED, -1, OrderLog.STATUS_COMPLETED, null, null, newUser, null);
+        System.out.println("사용자 등록 완료: " + username);
+        logger.log(Level.INFO, "신규 사용자 등록: {0}", username);
+        return true;
+    }
+
+    // 로그인
+    public User loginUser(String username, String password) {
+        if (!users.containsKey(username)) {
+            System.out.println("존재하지 않는 사용자입니다.");
+            return null;
         }
         User user = users.get(username);
         if (user.checkPassword(password)) {
@@ -375,139 +5492,641 @@ class BookMarket implements Serializable {
 
     // 도서 관리
     public boolean addBook(Book book) {
-        if (books.containsKey(book.getIsbn())) {
+        if (!catalog.add(book)) {
             System.out.println("이미 등록된 도서입니다.");
             return false;
         }
-        books.put(book.getIsbn(), book);
+        publishBookEvent(DomainEvent.Type.BOOK_ADDED, book.getIsbn(), book);
         System.out.println("도서 추가됨: " + book);
         logger.log(Level.INFO, "도서 추가: {0}", book.getIsbn());
         return true;
     }
 
-    public boolean updateBook(String isbn, String title, String author, double price, int quantity, String genre, String publisher) {
-        if (!books.containsKey(isbn)) {
+    public boolean updateBook(String isbn, String title, String author, double price, int quantity, String genre, String publisher) {
+        Book current = catalog.current().get(isbn);
+        if (current == null) {
+            System.out.println("해당 ISBN의 도서가 존재하지 않습니다.");
+            return false;
+        }
+        // 모든 필드를 담은 새 버전을 한 번에 게시하므로 읽기 측은 절반만 바뀐 도서를 볼 수 없다
+        Book book = current.withDetails(title, author, price, genre, publisher);
+        if (catalog.replace(book) == null) {
+            System.out.println("해당 ISBN의 도서가 존재하지 않습니다.");
+            return false;
+        }
+        book.setQuantity(quantity);
+        orderLog.refreshBook(book);
+        publishBookEvent(DomainEvent.Type.BOOK_UPDATED, isbn, book);
+        System.out.println("도서 업데이트 완료: " + book);
+        logger.log(Level.INFO, "도서 업데이트: {0}", isbn);
+        return true;
+    }
+
+    public boolean removeBook(String isbn) {
+        Book removed = catalog.remove(isbn);
+        if (removed == null) {
+            System.out.println("해당 ISBN의 도서가 존재하지 않습니다.");
+            return false;
+        }
+        flashSales.remove(isbn);
+        publishBookEvent(DomainEvent.Type.BOOK_REMOVED, isbn, removed);
+        System.out.println("도서 제거됨: " + removed);
+        logger.log(Level.INFO, "도서 제거: {0}", isbn);
+        return true;
+    }
+
+    public void listBooks() {
+        printBookList(getSortedBooks());
+    }
+
+    // 제목순으로 정렬된 도서 목록 (샤드 라우터가 병합할 때도 사용)
+    List<Book> getSortedBooks() {
+        List<Book> bookList = new ArrayList<>(catalog.current().values());
+        bookList.sort(Comparator.comparing(Book::getTitle));
+        return bookList;
+    }
+
+    static void printBookList(List<Book> bookList) {
+        if (bookList.isEmpty()){
+            System.out.println("등록된 도서가 없습니다.");
+            return;
+        }
+        System.out.println("=== 도서 목록 ===");
+        for(Book book : bookList) {
+            System.out.println(book);
+        }
+    }
+
+    public void searchBooks(String query) {
+        printSearchResults(findBooks(query));
+    }
+
+    // ISBN/제목/장르/출판사 부분 일치 검색
+    List<Book> findBooks(String query) {
+        query = query.toLowerCase();
+        List<Book> results = new ArrayList<>();
+        for(Book book : catalog.current().values()) {
+            if(book.getIsbn().toLowerCase().contains(query) ||
+               book.getTitle().toLowerCase().contains(query) ||
+               book.getGenre().toLowerCase().contains(query) ||
+               book.getPublisher().toLowerCase().contains(query)) {
+                results.add(book);
+            }
+        }
+        return results;
+    }
+
+    static void printSearchResults(List<Book> results) {
+        System.out.println("=== 검색 결과 ===");
+        for (Book book : results) {
+            System.out.println(book);
+        }
+        if (results.isEmpty()) {
+            System.out.println("검색 결과가 없습니다.");
+        }
+    }
+
+    public Book getBook(String isbn) {
+        return catalog.current().get(isbn);
+    }
+
+    User getUser(String username) {
+        return users.get(username);
+    }
+
+    ShoppingCart getCart(String username) {
+        return carts.get(username);
+    }
+
+    // 자동완성 – 제목/저자 접두어(한글은 입력 중인 글자 포함)로 판매량 상위 도서 최대 k 권
+    public List<Book> suggest(String prefix, int k) {
+        if (autocomplete == null) return Collections.emptyList();
+        return autocomplete.suggest(prefix, Math.min(k, AutocompleteIndex.TOP_K));
+    }
+
+    // 조건 검색 – 장르/출판사/가격/재고/평점 조건의 교집합과 결과 안의 패싯별 도서 수
+    public FacetIndex.Result filterBooks(FacetIndex.Query query) {
+        if (facets == null) return null;
+        return facets.query(query);
+    }
+
+    public void viewFilteredBooks(FacetIndex.Query query) {
+        FacetIndex.Result result = filterBooks(query);
+        if (result == null) {
+            System.out.println("조건 검색을 사용할 수 없습니다.");
+            return;
+        }
+        System.out.printf("=== 조건 검색 결과: %d권 (%.0fµs) ===%n", result.total, result.elapsedNanos / 1e3);
+        result.books.forEach(System.out::println);
+        if (result.total > result.books.size()) {
+            System.out.println("... 외 " + (result.total - result.books.size()) + "권");
+        }
+        System.out.println("장르: " + result.genres);
+        System.out.println("출판사: " + result.publishers);
+        System.out.println("가격대: " + result.priceBands);
+        System.out.println("평점: " + result.ratings);
+        System.out.println("재고 있음: " + result.inStock + "권");
+    }
+
+    // 도서 리뷰 등록
+    public boolean addReview(String isbn, Review review) {
+        Book book = catalog.current().get(isbn);
+        if (book == null) {
+            System.out.println("해당 ISBN의 도서가 없습니다.");
+            return false;
+        }
+        book.addReview(review);
+        events.publish(DomainEvent.Type.REVIEW_ADDED, -1, OrderLog.STATUS_COMPLETED, isbn, book, null, review);
+        return true;
+    }
+
+    // 주문 처리 (즉시 주문)
+    public boolean placeOrder(String username, String isbn, int orderQuantity) {
+        Book book = catalog.current().get(isbn);
+        if (book == null) {
+            System.out.println("해당 ISBN의 도서가 존재하지 않습니다.");
+            return false;
+        }
+        // 결제 전에 재고를 원자적으로 확보하고, 결제 실패 시 되돌린다
+        FlashSale sale = flashSales.get(isbn);
+        if (sale != null) {
+            if (!reserveFlashSaleStock(sale, orderQuantity)) {
+                return false;
+            }
+        } else if (!book.tryTakeStock(orderQuantity)) {
+            System.out.println("재고가 부족합니다. 현재 재고: " + book.getQuantity());
+            return false;
+        }
+
+        // 결제 처리 (일괄 정산 중이면 승인만 하고 매입은 주문번호로 예약)
+        PaymentSettlement settlement = this.settlement;
+        long cents = (long) book.getPriceCents() * orderQuantity;
+        if (settlement != null ? !settlement.authorize(username, cents)
+                               : !PaymentGateway.processPayment(book.getPrice() * orderQuantity)) {
+            if (sale != null) {
+                sale.release(orderQuantity);
+            } else {
+                book.returnStock(orderQuantity);
+            }
+            System.out.println("결제에 실패했습니다. 주문이 처리되지 않았습니다.");
+            return false;
+        }
+
+        Order order;
+        try {
+            order = recordOrder(username, book, orderQuantity);
+        } catch (RuntimeException e) {
+            if (settlement != null) settlement.releaseAuthorization(username, cents);
+            throw e;
+        }
+        if (settlement != null) {
+            settlement.capture(order.orderId, username, cents);
+        }
+        return true;
+    }
+
+    // 플래시 세일 재고 예약 – 결합자가 배정한 결과를 안내 메시지로 변환
+    private boolean reserveFlashSaleStock(FlashSale sale, int orderQuantity) {
+        FlashSale.Outcome outcome;
+        try {
+            outcome = sale.reserve(orderQuantity);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            outcome = FlashSale.Outcome.BUSY;
+        }
+        if (outcome == FlashSale.Outcome.SOLD_OUT) {
+            System.out.println("품절되었습니다.");
+        } else if (outcome == FlashSale.Outcome.BUSY) {
+            System.out.println("주문이 몰려 처리하지 못했습니다. 잠시 후 다시 시도해 주세요.");
+        }
+        return outcome == FlashSale.Outcome.RESERVED;
+    }
+
+    // ------ 플래시 세일 ------
+    // 세일 중인 도서의 주문은 도서별 대기열을 거쳐 결합자가 한 번에 재고를 배정한다
+    public boolean startFlashSale(String isbn, int queueCapacity, long admissionTimeoutMillis) {
+        Book book = catalog.current().get(isbn);
+        if (book == null) {
+            System.out.println("해당 ISBN의 도서가 존재하지 않습니다.");
+            return false;
+        }
+        if (flashSales.putIfAbsent(isbn, new FlashSale(book, queueCapacity, admissionTimeoutMillis)) != null) {
+            System.out.println("이미 플래시 세일 중인 도서입니다.");
+            return false;
+        }
+        System.out.println("플래시 세일 시작: " + book.getTitle());
+        logger.log(Level.INFO, "플래시 세일 시작: {0}", isbn);
+        return true;
+    }
+
+    public boolean endFlashSale(String isbn) {
+        FlashSale sale = flashSales.remove(isbn);
+        if (sale == null) {
+            System.out.println("플래시 세일 중인 도서가 아닙니다.");
+            return false;
+        }
+        System.out.println("플래시 세일 종료: " + sale);
+        logger.log(Level.INFO, "플래시 세일 종료: {0}", isbn);
+        return true;
+    }
+
+    FlashSale getFlashSale(String isbn) {
+        return flashSales.get(isbn);
+    }
+
+    public void viewFlashSales() {
+        if (flashSales.isEmpty()) {
+            System.out.println("진행 중인 플래시 세일이 없습니다.");
+            return;
+        }
+        System.out.println("\n=== 플래시 세일 현황 ===");
+        for (FlashSale sale : flashSales.values()) {
+            System.out.println(sale);
+        }
+    }
+
+    // ------ 일괄 변경 ------
+    // 변경 계산은 스냅샷 위에서 병렬로 하고, 도서 정보는 카탈로그 버전 하나로 게시한다.
+    // 계산 이후 다른 수정이 먼저 반영된 도서는 게시 시점의 버전으로 다시 계산한다. 로그는 작업당 한 줄만 남긴다.
+    public BulkUpdate.Result runBulkUpdate(BulkUpdate job, boolean dryRun) {
+        BulkUpdate.Result result = job.compute(catalog.current(), dryRun);
+        if (dryRun) {
+            System.out.println(result);
+            result.changes.stream().limit(10).forEach(change -> System.out.println("  " + change));
+            return result;
+        }
+        List<BulkUpdate.Change> applied = new ArrayList<>(result.changes.size());
+        CatalogVersion version = catalog.update(builder -> {
+            for (BulkUpdate.Change change : result.changes) {
+                Book current = builder.get(change.before.getIsbn());
+                if (current != change.before) {
+                    result.conflicts++;
+                    change = job.changeFor(current);
+                    if (change == null) continue;
+                }
+                if (change.after != change.before) {
+                    builder.put(change.after);
+                }
+                applied.add(change);
+            }
+        });
+        result.changes = applied;
+        result.catalogVersion = version.getVersion();
+        lastBulkUpdate = result;
+        publishBulkChanges(applied);
+        System.out.println("일괄 변경 완료: " + result);
+        logger.log(Level.INFO, "일괄 변경: {0}", result);
+        return result;
+    }
+
+    // 최근 일괄 변경 되돌리기 – 그 뒤 다시 수정된 도서는 건너뛰고, 재입고분은 아직 남은 만큼만 회수한다
+    public boolean rollbackBulkUpdate() {
+        BulkUpdate.Result result = lastBulkUpdate;
+        if (result == null || result.rolledBack) {
+            System.out.println("되돌릴 일괄 변경이 없습니다.");
+            return false;
+        }
+        List<BulkUpdate.Change> restored = new ArrayList<>(result.changes.size());
+        catalog.update(builder -> {
+            for (BulkUpdate.Change change : result.changes) {
+                if (change.after != change.before && builder.get(change.before.getIsbn()) != change.after) continue;
+                if (change.after != change.before) {
+                    builder.put(change.before);
+                }
+                restored.add(new BulkUpdate.Change(change.after, change.before, -change.restock));
+            }
+        });
+        result.rolledBack = true;
+        publishBulkChanges(restored);
+        String message = String.format("일괄 변경 되돌림: %s (복원 %d권, 이후 수정되어 건너뜀 %d권)", result.name,
+                restored.size(), result.changes.size() - restored.size());
+        System.out.println(message);
+        logger.info(message);
+        return true;
+    }
+
+    // 게시된 일괄 변경의 재고 반영, 주문 내역의 도서 참조 갱신, 이벤트 게시
+    private void publishBulkChanges(List<BulkUpdate.Change> changes) {
+        for (BulkUpdate.Change change : changes) {
+            if (change.restock > 0) {
+                change.after.returnStock(change.restock);
+            } else if (change.restock < 0) {
+                int take;
+                do {
+                    take = Math.min(-change.restock, change.after.getQuantity());
+                } while (take > 0 && !change.after.tryTakeStock(take));
+            }
+        }
+        synchronized (orderLog) {
+            for (BulkUpdate.Change change : changes) {
+                if (change.after != change.before) orderLog.refreshBook(change.after);
+            }
+        }
+        for (BulkUpdate.Change change : changes) {
+            publishBookEvent(change.after != change.before ? DomainEvent.Type.BOOK_UPDATED : DomainEvent.Type.STOCK_CHANGED,
+                    change.after.getIsbn(), change.after);
+        }
+    }
+
+    // ------ 장바구니 ------
+    // 담는 순간 재고를 확보하고, TTL 동안 주문하지 않으면 타이밍 휠이 확보를 풀어 재고를 돌려준다.
+    // 만료된 항목은 장바구니에 남아 있다가 주문할 때 재고를 다시 확보한다.
+    public boolean addToCart(String username, String isbn, int quantity) {
+        Book book = catalog.current().get(isbn);
+        if (book == null) {
             System.out.println("해당 ISBN의 도서가 존재하지 않습니다.");
             return false;
         }
-        Book book = books.get(isbn);
-        book.setTitle(title);
-        book.setAuthor(author);
-        book.setPrice(price);
-        book.setQuantity(quantity);
-        book.setGenre(genre);
-        book.setPublisher(publisher);
-        System.out.println("도서 업데이트 완료: " + book);
-        logger.log(Level.INFO, "도서 업데이트: {0}", isbn);
+        if (quantity <= 0) {
+            System.out.println("수량은 1 이상이어야 합니다.");
+            return false;
+        }
+        if (flashSales.containsKey(isbn)) {
+            System.out.println("플래시 세일 중인 도서는 장바구니에 담을 수 없습니다. 바로 주문해 주세요.");
+            return false;
+        }
+        ShoppingCart cart = carts.computeIfAbsent(username, name -> new ShoppingCart());
+        synchronized (cart) {
+            if (!book.tryTakeStock(quantity)) {
+                System.out.println("재고가 부족합니다. 현재 재고: " + book.getQuantity());
+                return false;
+            }
+            CartItem item = cart.addItem(book, quantity);
+            holdCartItem(username, cart, item, item.getReserved() + quantity);
+        }
+        cartChanged(username);
+        publishBookEvent(DomainEvent.Type.STOCK_CHANGED, isbn, book);
         return true;
     }
 
-    public boolean removeBook(String isbn) {
-        if (!books.containsKey(isbn)) {
-            System.out.println("해당 ISBN의 도서가 존재하지 않습니다.");
+    public boolean removeFromCart(String username, String isbn) {
+        ShoppingCart cart = carts.get(username);
+        CartItem item;
+        if (cart != null) {
+            synchronized (cart) {
+                item = cart.getItem(isbn);
+                if (item != null) {
+                    cart.removeItem(isbn);
+                    releaseCartItem(item);
+                }
+            }
+        } else {
+            item = null;
+        }
+        if (item == null) {
+            System.out.println("장바구니에 없는 도서입니다.");
             return false;
         }
-        Book removed = books.remove(isbn);
-        System.out.println("도서 제거됨: " + removed);
-        logger.log(Level.INFO, "도서 제거: {0}", isbn);
+        cartChanged(username);
+        publishStockChanged(isbn);
         return true;
     }
 
-    public void listBooks() {
-        if (books.isEmpty()){
-            System.out.println("등록된 도서가 없습니다.");
+    public void viewCart(String username) {
+        ShoppingCart cart = carts.get(username);
+        if (cart == null) {
+            System.out.println("장바구니가 비어 있습니다.");
             return;
         }
-        System.out.println("=== 도서 목록 ===");
-        List<Book> bookList = new ArrayList<>(books.values());
-        bookList.sort(Comparator.comparing(Book::getTitle));
-        for(Book book : bookList) {
-            System.out.println(book);
+        synchronized (cart) {
+            cart.viewCart();
         }
+        System.out.println("담은 도서의 재고는 " + cartReservations.getTtlMillis() / 60_000 + "분 동안 확보됩니다.");
     }
 
-    public void searchBooks(String query) {
-        query = query.toLowerCase();
-        boolean found = false;
-        System.out.println("=== 검색 결과 ===");
-        for(Book book : books.values()) {
-            if(book.getIsbn().toLowerCase().contains(query) ||
-               book.getTitle().toLowerCase().contains(query) ||
-               book.getGenre().toLowerCase().contains(query) ||
-               book.getPublisher().toLowerCase().contains(query)) {
-                System.out.println(book);
-                found = true;
+    // 장바구니 전체 주문 – 만료로 풀린 재고는 다시 확보하고, 결제에 실패하면 확보 상태를 그대로 둔다
+    public boolean checkoutCart(String username) {
+        ShoppingCart cart = carts.computeIfAbsent(username, name -> new ShoppingCart());
+        List<String> toppedUp = new ArrayList<>();
+        List<Book> current = new ArrayList<>();
+        int orders;
+        try {
+            synchronized (cart) {
+                List<CartItem> items = cart.getItems();
+                if (items.isEmpty()) {
+                    System.out.println("장바구니가 비어 있습니다.");
+                    return false;
+                }
+                long totalCents = 0;
+                for (CartItem item : items) {
+                    String isbn = item.getBook().getIsbn();
+                    Book book = catalog.current().get(isbn);
+                    if (book == null) {
+                        System.out.println("판매가 중지된 도서가 있어 주문하지 못했습니다: " + item.getBook().getTitle());
+                        return false;
+                    }
+                    int missing = item.getQuantity() - item.getReserved();
+                    if (missing > 0) {
+                        if (!book.tryTakeStock(missing)) {
+                            System.out.println("재고가 부족한 도서가 있어 주문하지 못했습니다: " + book.getTitle()
+                                    + " (현재 재고: " + book.getQuantity() + ")");
+                            return false;
+                        }
+                        holdCartItem(username, cart, item, item.getQuantity());
+                        toppedUp.add(isbn);
+                    }
+                    current.add(book);
+                    totalCents += (long) book.getPriceCents() * item.getQuantity();
+                }
+                PaymentSettlement settlement = this.settlement;
+                if (settlement != null ? !settlement.authorize(username, totalCents)
+                                       : !PaymentGateway.processPayment(totalCents / 100.0)) {
+                    System.out.println("결제에 실패했습니다. 장바구니의 재고 확보는 유지됩니다.");
+                    return false;
+                }
+                long capturedCents = 0;
+                try {
+                    for (int i = 0; i < items.size(); i++) {
+                        CartItem item = items.get(i);
+                        if (item.getExpiry() != null) {
+                            item.getExpiry().cancel();
+                            item.setExpiry(null);
+                        }
+                        cartReservations.checkedOut(item.getReserved());
+                        item.setReserved(0);
+                        Order order = recordOrder(username, current.get(i), item.getQuantity());
+                        long itemCents = (long) current.get(i).getPriceCents() * item.getQuantity();
+                        if (settlement != null) {
+                            settlement.capture(order.orderId, username, itemCents);
+                        }
+                        capturedCents += itemCents;
+                    }
+                } finally {
+                    if (settlement != null && capturedCents < totalCents) {
+                        settlement.releaseAuthorization(username, totalCents - capturedCents); // 기록되지 못한 주문의 승인분
+                    }
+                }
+                orders = items.size();
+                cart.clear();
+                toppedUp.clear(); // 주문 이벤트가 재고 변경을 함께 전달
             }
+        } finally {
+            cartChanged(username); // 결제 실패로 끝나도 새로 확보한 수량은 남는다
+            toppedUp.forEach(this::publishStockChanged);
         }
-        if (!found) {
-            System.out.println("검색 결과가 없습니다.");
+        System.out.println("장바구니 주문이 완료되었습니다. (" + orders + "건)");
+        return true;
+    }
+
+    // 항목의 확보 수량을 갱신하고 만료 시각을 TTL 만큼 뒤로 미룬다 (장바구니 잠금 안에서 호출)
+    private void holdCartItem(String username, ShoppingCart cart, CartItem item, int reserved) {
+        cartReservations.reserved(item.getReserved(), reserved);
+        item.setReserved(reserved);
+        if (item.getExpiry() != null) {
+            item.getExpiry().cancel();
         }
+        TimingWheel.Timeout[] armed = new TimingWheel.Timeout[1];
+        armed[0] = cartReservations.arm(() -> expireCartItem(username, cart, item, armed[0]));
+        item.setExpiry(armed[0]);
     }
 
-    public Book getBook(String isbn) {
-        return books.get(isbn);
+    // 장바구니에서 빠진 항목의 확보 재고 반환 (장바구니 잠금 안에서 호출)
+    private void releaseCartItem(CartItem item) {
+        if (item.getExpiry() != null) {
+            item.getExpiry().cancel();
+            item.setExpiry(null);
+        }
+        if (item.getReserved() > 0) {
+            item.getBook().returnStock(item.getReserved());
+            cartReservations.released(item.getReserved());
+            item.setReserved(0);
+        }
     }
 
-    // 주문 처리 (즉시 주문)
-    public boolean placeOrder(String username, String isbn, int orderQuantity) {
-        if (!books.containsKey(isbn)) {
-            System.out.println("해당 ISBN의 도서가 존재하지 않습니다.");
-            return false;
+    // 타이밍 휠 쓰레드에서 호출 – 그사이 연장/주문/삭제되었다면 해당 만료 작업은 무시
+    private void expireCartItem(String username, ShoppingCart cart, CartItem item, TimingWheel.Timeout timeout) {
+        synchronized (cart) {
+            if (item.getExpiry() != timeout || item.getReserved() == 0) return;
+            item.getBook().returnStock(item.getReserved());
+            cartReservations.expired(item.getReserved());
+            item.setExpiry(null);
+            item.setReserved(0);
         }
-        Book book = books.get(isbn);
-        if (book.getQuantity() < orderQuantity) {
-            System.out.println("재고가 부족합니다. 현재 재고: " + book.getQuantity());
-            return false;
+        cartChanged(username);
+        publishStockChanged(item.getBook().getIsbn());
+    }
+
+    private void publishStockChanged(String isbn) {
+        Book book = catalog.current().get(isbn);
+        if (book != null) {
+            publishBookEvent(DomainEvent.Type.STOCK_CHANGED, isbn, book);
         }
+    }
 
-        // 결제 처리
-        if (!PaymentGateway.processPayment(book.getPrice() * orderQuantity)) {
-            System.out.println("결제에 실패했습니다. 주문이 처리되지 않았습니다.");
-            return false;
+    // 저장된 장바구니의 확보 재고는 불러온 시점부터 다시 TTL 을 센다
+    private void rearmCartReservations() {
+        for (Map.Entry<String, ShoppingCart> entry : carts.entrySet()) {
+            ShoppingCart cart = entry.getValue();
+            synchronized (cart) {
+                for (CartItem item : cart.getItems()) {
+                    int reserved = item.getReserved();
+                    if (reserved > 0) {
+                        item.setReserved(0);
+                        holdCartItem(entry.getKey(), cart, item, reserved);
+                    }
+                }
+            }
         }
+    }
 
-        book.setQuantity(book.getQuantity() - orderQuantity);
-        Order order = new Order(currentOrderIdCounter++, username, book, orderQuantity); // 수정된 부분
-        orders.add(order);
-        User user = users.get(username);
-        if (user != null) {
-            user.addLoyaltyPoints((int) (order.getTotalPrice() / 10)); // 10달러당 1포인트
-            NotificationManager.sendNotification(username, String.format("주문이 완료되었습니다! 주문번호: %d", order.orderId));
+    void setCartReservationTtl(long ttlMillis) {
+        cartReservations.setTtlMillis(ttlMillis);
+    }
+
+    CartReservations getCartReservations() { return cartReservations; }
+
+    // 재고 예약 – 다중 도서/다중 샤드 주문에서 결제 전에 재고를 먼저 확보 (실패 시 null)
+    Book reserveStock(String isbn, int quantity) {
+        Book book = catalog.current().get(isbn);
+        if (book == null || !book.tryTakeStock(quantity)) {
+            return null;
+        }
+        publishBookEvent(DomainEvent.Type.STOCK_CHANGED, isbn, book);
+        return book;
+    }
+
+    // 예약 취소 – 결제 실패 또는 다른 샤드의 예약 실패 시 재고 반환
+    void releaseStock(String isbn, int quantity) {
+        Book book = catalog.current().get(isbn);
+        if (book != null) {
+            book.returnStock(quantity);
+            publishBookEvent(DomainEvent.Type.STOCK_CHANGED, isbn, book);
+        }
+    }
+
+    // 예약된 재고로 주문 확정 (결제는 호출 측에서 완료된 상태)
+    Order commitReservedOrder(String username, String isbn, int quantity) {
+        Book book = catalog.current().get(isbn);
+        return book == null ? null : recordOrder(username, book, quantity);
+    }
+
+    // 재고 차감과 결제가 끝난 주문을 기록하고 ORDER_PLACED 이벤트 게시 (포인트/알림/로그는 소비자가 처리)
+    // 주문 로그는 단일 쓰기 구조이므로 추가와 게시를 같은 잠금 아래에서 수행해 이벤트 순서 = 로그 순서를 보장
+    private Order recordOrder(String username, Book book, int orderQuantity) {
+        int row;
+        synchronized (orderLog) {
+            int orderId = currentOrderIdCounter;
+            currentOrderIdCounter += orderIdStride;
+            row = orderLog.append(orderId, username, book, orderQuantity,
+                    book.getPriceCents(), System.currentTimeMillis());
+            publishOrderEvent(DomainEvent.Type.ORDER_PLACED, row, OrderLog.STATUS_COMPLETED);
         }
+        Order order = orderLog.materialize(row);
         System.out.println("주문 완료: " + order);
-        logger.log(Level.INFO, "주문 생성: Order#{0} by {1} for {2}", new Object[]{order.orderId, username, book.getTitle()});
-        return true;
+        return order;
     }
 
     // 주문 취소: 주문번호를 통해 주문 취소(재고 복원)
     public boolean cancelOrder(String username, int orderId) {
-        for(Order order : orders) {
-            if(order.orderId == orderId && order.getUsername().equals(username) && !order.isCancelled()){
-                order.setCancelled(true);
-                // 재고 복원
-                order.book.setQuantity(order.book.getQuantity() + order.orderQuantity);
-                NotificationManager.sendNotification(username, String.format("주문이 취소되었습니다! 주문번호: %d", order.orderId));
-                System.out.println("주문이 취소되었습니다: " + order);
-                logger.log(Level.INFO, "주문 취소: Order#{0} by {1}", new Object[]{order.orderId, username});
-                return true;
+        int row;
+        boolean completed;
+        synchronized (orderLog) { // 취소 직전 상태 – 반품된 주문은 이미 환불되었으므로 다시 환불하지 않는다
+            int found = orderLog.findRow(orderId);
+            completed = found >= 0 && orderLog.isCompleted(found);
+            row = changeOrderStatus(username, orderId, OrderLog.STATUS_CANCELLED);
+        }
+        if (row >= 0) {
+            // 재고 복원, 알림, 로그는 ORDER_CANCELLED 소비자가 처리
+            PaymentSettlement settlement = this.settlement;
+            if (settlement != null && completed) {
+                settlement.refund(orderId, username, orderLog.totalCents(row)); // 보내기 전의 매입이면 매입 자체를 취소
             }
+            System.out.println("주문이 취소되었습니다: " + orderLog.materialize(row));
+            return true;
         }
         System.out.println("해당 주문을 찾지 못했거나 이미 취소되었습니다.");
         return false;
     }
 
+    // 주문 상태 변경과 이벤트 게시 (취소: 취소되지 않은 주문, 반품: 완료된 주문만 대상) – 변경된 행 또는 -1
+    private int changeOrderStatus(String username, int orderId, byte newStatus) {
+        synchronized (orderLog) {
+            int row = orderLog.findRow(orderId);
+            if (row < 0 || !orderLog.username(orderLog.userIndex(row)).equals(username)) return -1;
+            byte previous = orderLog.status(row);
+            boolean allowed = newStatus == OrderLog.STATUS_CANCELLED ? previous != OrderLog.STATUS_CANCELLED
+                                                                     : previous == OrderLog.STATUS_COMPLETED;
+            if (!allowed) return -1;
+            orderLog.setStatus(row, newStatus);
+            publishOrderEvent(newStatus == OrderLog.STATUS_CANCELLED ? DomainEvent.Type.ORDER_CANCELLED
+                                                                     : DomainEvent.Type.ORDER_RETURNED, row, previous);
+            return row;
+        }
+    }
+
     // 주문 반품: 사용자 요청에 의해 반품(재고 복원)
     public boolean returnOrder(String username, int orderId) {
-        for(Order order : orders) {
-            if(order.orderId == orderId && order.getUsername().equals(username) && !order.isReturned() && !order.isCancelled()){
-                order.setReturned(true);
-                order.book.setQuantity(order.book.getQuantity() + order.orderQuantity);
+        int row = changeOrderStatus(username, orderId, OrderLog.STATUS_RETURNED);
+        if (row >= 0) {
+            Order order = orderLog.materialize(row);
+            PaymentSettlement settlement = this.settlement;
+            if (settlement != null) {
+                settlement.refund(orderId, username, orderLog.totalCents(row)); // 다음 정산 창에서 매입과 상계
+            } else {
                 PaymentGateway.processRefund(order.getTotalPrice()); // 환불 처리
-                NotificationManager.sendNotification(username, String.format("주문이 반품되었습니다! 주문번호: %d", order.orderId));
-                System.out.println("주문이 반품되었습니다: " + order);
-                logger.log(Level.INFO, "주문 반품: Order#{0} by {1}", new Object[]{order.orderId, username});
-                return true;
             }
+            System.out.println("주문이 반품되었습니다: " + order);
+            return true;
         }
         System.out.println("반품 가능한 주문이 없습니다.");
         return false;
@@ -517,9 +6136,11 @@ class BookMarket implements Serializable {
     public void viewOrders(String username) {
         boolean found = false;
         System.out.println("=== 주문 목록 ===");
-        for(Order order : orders) {
-            if(order.getUsername().equals(username)) {
-                System.out.println(order);
+        int userIndex = orderLog.userIndexOf(username);
+        int size = orderLog.size();
+        for (int row = 0; userIndex >= 0 && row < size; row++) {
+            if (orderLog.userIndex(row) == userIndex) {
+                System.out.println(orderLog.materialize(row));
                 found = true;
             }
         }
@@ -530,6 +6151,7 @@ class BookMarket implements Serializable {
 
     // 위시리스트에 도서 추가
     public void addToWishlist(String username, String isbn) {
+        CatalogVersion books = catalog.current();
         if (!books.containsKey(isbn)) {
             System.out.println("해당 도서는 존재하지 않습니다.");
             return;
@@ -538,6 +6160,7 @@ class BookMarket implements Serializable {
         List<String> wishlist = wishLists.get(username);
         if (!wishlist.contains(isbn)) {
             wishlist.add(isbn);
+            wishListChanged(username);
             System.out.println("위시리스트에 추가되었습니다: " + books.get(isbn).getTitle());
             logger.log(Level.INFO, "위시리스트 추가: {0} by {1}", new Object[]{isbn, username});
         } else {
@@ -547,6 +6170,7 @@ class BookMarket implements Serializable {
 
     // 위시리스트 조회
     public void viewWishlist(String username) {
+        CatalogVersion books = catalog.current();
         if (!wishLists.containsKey(username) || wishLists.get(username).isEmpty()) {
             System.out.println("위시리스트가 비어 있습니다.");
             return;
@@ -559,21 +6183,26 @@ class BookMarket implements Serializable {
 
     // 위시리스트에서 도서 제거
     public void removeFromWishlist(String username, String isbn) {
+        CatalogVersion books = catalog.current();
         if (!wishLists.containsKey(username) || !wishLists.get(username).contains(isbn)) {
             System.out.println("위시리스트에 해당 도서가 존재하지 않습니다.");
             return;
         }
         wishLists.get(username).remove(isbn);
+        wishListChanged(username);
         System.out.println("위시리스트에서 제거되었습니다: " + books.get(isbn).getTitle());
         logger.log(Level.INFO, "위시리스트 제거: {0} by {1}", new Object[]{isbn, username});
     }
 
     // 사용자의 구매 내역 및 선호 장르 기반 추천
     public List<Book> getRecommendedBooks(String username) {
+        CatalogVersion books = catalog.current();
         Set<String> likedGenres = new HashSet<>();
-        for (Order order : orders) {
-            if (order.getUsername().equals(username) && !order.isCancelled() && !order.isReturned()) {
-                likedGenres.add(order.book.getGenre());
+        int userIndex = orderLog.userIndexOf(username);
+        int size = orderLog.size();
+        for (int row = 0; userIndex >= 0 && row < size; row++) {
+            if (orderLog.userIndex(row) == userIndex && orderLog.isCompleted(row)) {
+                likedGenres.add(orderLog.book(orderLog.bookIndex(row)).getGenre());
             }
         }
 
@@ -605,20 +6234,27 @@ class BookMarket implements Serializable {
 
     // 전체 매출 보고서
     public void viewSalesReport() {
-        if (orders.isEmpty()) {
+        if (routeToReplica(BookMarket::viewSalesReport)) return;
+        int totalOrders = orderLog.size();
+        if (totalOrders == 0) {
             System.out.println("현재까지 판매 기록이 없습니다.");
             return;
         }
 
-        double totalRevenue = 0;
-        int totalOrders = orders.size();
+        // 컬럼을 직접 스캔: 금액은 센트 단위 long 으로 합산하고, 판매량은 도서 인덱스별 배열에 누적
+        long totalRevenueCents = 0;
+        int[] unitsByBook = new int[orderLog.bookCount()];
+        for (int row = 0; row < totalOrders; row++) {
+            if (orderLog.isCompleted(row)) {
+                totalRevenueCents += orderLog.totalCents(row);
+                unitsByBook[orderLog.bookIndex(row)] += orderLog.quantity(row);
+            }
+        }
+        double totalRevenue = totalRevenueCents / 100.0;
         Map<String, Integer> bookSales = new HashMap<>();
-
-        for (Order order : orders) {
-            if (!order.isCancelled() && !order.isReturned()) {
-                totalRevenue += order.getTotalPrice();
-                String title = order.book.getTitle();
-                bookSales.put(title, bookSales.getOrDefault(title, 0) + order.orderQuantity);
+        for (int i = 0; i < unitsByBook.length; i++) {
+            if (unitsByBook[i] > 0) {
+                bookSales.merge(orderLog.book(i).getTitle(), unitsByBook[i], Integer::sum);
             }
         }
 
@@ -632,69 +6268,76 @@ class BookMarket implements Serializable {
                 .forEach(entry -> System.out.println(entry.getKey() + " : " + entry.getValue() + "권 판매"));
     }
 
-    // 월별 매출 보고서
+    // 월별 매출 보고서 – 판매 큐브의 일자 버킷을 월 단위로 합산
     public void viewMonthlySalesReport() {
-        if (orders.isEmpty()) {
+        if (routeToReplica(BookMarket::viewMonthlySalesReport)) return;
+        if (salesCube.firstDay() == null) { // 큐브에는 완료된 주문만 있으므로 모두 취소/반품되었으면 비어 있다
             System.out.println("현재까지 판매 기록이 없습니다.");
             return;
         }
 
-        Map<String, Double> monthlyRevenue = new HashMap<>();
-
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM");
-        for (Order order : orders) {
-            if (!order.isCancelled() && !order.isReturned()) {
-                String month = sdf.format(order.orderDate);
-                monthlyRevenue.put(month, monthlyRevenue.getOrDefault(month, 0.0) + order.getTotalPrice());
-            }
-        }
-
         System.out.println("=== 월별 매출 보고서 ===");
         // 월별 매출을 날짜 순으로 정렬
-        monthlyRevenue.entrySet().stream()
-                .sorted(Map.Entry.comparingByKey())
-                .forEach(entry -> System.out.printf("%s : $%.2f%n", entry.getKey(), entry.getValue()));
+        for (SalesCube.Row row : salesCube.query(salesCube.firstDay(), salesCube.lastDay(),
+                SalesCube.Dimension.MONTH, null, null, 0)) {
+            System.out.printf("%s : $%.2f%n", row.getKey(), row.getRevenue());
+        }
+    }
+
+    // 기간별 매출 분석 – 기간, 그룹 기준(일/월/장르/출판사/ISBN), 장르·출판사 필터, Top-N
+    public void viewSalesAnalysis(LocalDate from, LocalDate to, SalesCube.Dimension groupBy,
+                                  String genre, String publisher, int topN) {
+        if (routeToReplica(m -> m.viewSalesAnalysis(from, to, groupBy, genre, publisher, topN))) return;
+        List<SalesCube.Row> rows = salesCube.query(from, to, groupBy, genre, publisher, topN);
+        System.out.println("=== 매출 분석 (" + from + " ~ " + to + ", 기준: " + groupBy + ") ===");
+        if (rows.isEmpty()) {
+            System.out.println("해당 조건의 판매 기록이 없습니다.");
+            return;
+        }
+        long totalCents = 0;
+        for (SalesCube.Row row : rows) {
+            System.out.printf("%s : $%.2f (%d권)%n", row.getLabel(), row.getRevenue(), row.getUnits());
+            totalCents += row.getRevenueCents();
+        }
+        System.out.printf("합계: $%.2f%n", totalCents / 100.0);
     }
 
     // 베스트셀러 도서 목록
     public void viewBestSellers() {
-        if (orders.isEmpty()) {
+        if (routeToReplica(BookMarket::viewBestSellers)) return;
+        if (orderLog.size() == 0) {
             System.out.println("판매된 도서가 없습니다.");
             return;
         }
 
-        Map<String, Integer> bookSales = new HashMap<>();
-        for (Order order : orders) {
-            if (!order.isCancelled() && !order.isReturned()) {
-                String isbn = order.book.getIsbn();
-                bookSales.put(isbn, bookSales.getOrDefault(isbn, 0) + order.orderQuantity);
-            }
-        }
-
-        List<Map.Entry<String, Integer>> sortedSales = new ArrayList<>(bookSales.entrySet());
-        sortedSales.sort((a, b) -> b.getValue().compareTo(a.getValue()));
+        int[] unitsByBook = unitsSoldByBookIndex();
+        List<Integer> ranked = rankBookIndexes(unitsByBook);
 
         System.out.println("=== 베스트셀러 도서 (Top 5) ===");
-        int count = Math.min(5, sortedSales.size());
+        int count = Math.min(5, ranked.size());
         for (int i = 0; i < count; i++) {
-            String isbn = sortedSales.get(i).getKey();
-            Book book = books.get(isbn);
-            int sold = sortedSales.get(i).getValue();
-            System.out.println(String.format("%d위: %s - 판매량: %d권", i + 1, book.getTitle(), sold));
+            int bookIndex = ranked.get(i);
+            Book book = orderLog.book(bookIndex);
+            System.out.println(String.format("%d위: %s - 판매량: %d권", i + 1, book.getTitle(), unitsByBook[bookIndex]));
         }
     }
 
     // 매출 데이터를 CSV 파일로 저장
     public void exportSalesDataToCSV(String filename) {
+        if (routeToReplica(m -> m.exportSalesDataToCSV(filename))) return;
         try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
             writer.println("Order ID,Username,Book Title,Quantity,Total Price,Date,Status");
 
-            for (Order order : orders) {
-                String status = order.isCancelled() ? "Cancelled" : order.isReturned() ? "Returned" : "Completed";
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+            int size = orderLog.size();
+            for (int row = 0; row < size; row++) {
+                byte s = orderLog.status(row);
+                String status = s == OrderLog.STATUS_CANCELLED ? "Cancelled" : s == OrderLog.STATUS_RETURNED ? "Returned" : "Completed";
                 writer.printf("%d,%s,%s,%d,%.2f,%s,%s%n",
-                        order.orderId, order.getUsername(), order.book.getTitle(),
-                        order.orderQuantity, order.getTotalPrice(),
-                        new SimpleDateFormat("yyyy-MM-dd").format(order.orderDate), status);
+                        orderLog.orderId(row), orderLog.username(orderLog.userIndex(row)),
+                        orderLog.book(orderLog.bookIndex(row)).getTitle(),
+                        orderLog.quantity(row), orderLog.totalCents(row) / 100.0,
+                        sdf.format(new Date(orderLog.orderTime(row))), status);
             }
 
             System.out.println("매출 데이터가 CSV 파일로 저장되었습니다: " + filename);
@@ -707,10 +6350,11 @@ class BookMarket implements Serializable {
 
     // 사용자 데이터를 CSV 파일로 저장
     public void exportUserDataToCSV(String filename) {
+        if (routeToReplica(m -> m.exportUserDataToCSV(filename))) return;
         try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
             writer.println("Username,Role,Membership Level,Loyalty Points");
 
-            for (User user : users.values()) {
+            for (User user : usersByRank()) {
                 writer.printf("%s,%s,%s,%d%n",
                         user.getUsername(), user.getRole(), user.getMembershipLevel(), user.getLoyaltyPoints());
             }
@@ -725,6 +6369,7 @@ class BookMarket implements Serializable {
 
     // 특정 임계값 이하인 도서 목록 출력 (재고 부족 예상)
     public void viewLowStockBooks(int threshold) {
+        CatalogVersion books = catalog.current();
         System.out.println("=== 재고 부족 예상 도서 목록 (임계값: " + threshold + ") ===");
         boolean found = false;
         for (Book book : books.values()) {
@@ -740,23 +6385,15 @@ class BookMarket implements Serializable {
 
     // 빠르게 소진되는 도서 목록 (최근 많이 주문된 도서)
     public void viewFastSellingBooks(int orderThreshold) {
-        Map<String, Integer> bookSales = new HashMap<>();
-
-        for (Order order : orders) {
-            if (!order.isCancelled() && !order.isReturned()) {
-                String isbn = order.book.getIsbn();
-                bookSales.put(isbn, bookSales.getOrDefault(isbn, 0) + order.orderQuantity);
-            }
-        }
-
-        List<Map.Entry<String, Integer>> sortedSales = new ArrayList<>(bookSales.entrySet());
-        sortedSales.sort((a, b) -> b.getValue().compareTo(a.getValue()));
+        if (routeToReplica(m -> m.viewFastSellingBooks(orderThreshold))) return;
+        int[] unitsByBook = unitsSoldByBookIndex();
+        List<Integer> ranked = rankBookIndexes(unitsByBook);
 
         System.out.println("=== 빠르게 소진되는 도서 목록 (최근 주문량 기준: " + orderThreshold + ") ===");
         boolean found = false;
-        for (Map.Entry<String, Integer> entry : sortedSales) {
-            if (entry.getValue() >= orderThreshold) {
-                System.out.println(books.get(entry.getKey()) + " - 판매량: " + entry.getValue());
+        for (int bookIndex : ranked) {
+            if (unitsByBook[bookIndex] >= orderThreshold) {
+                System.out.println(orderLog.book(bookIndex) + " - 판매량: " + unitsByBook[bookIndex]);
                 found = true;
             }
         }
@@ -765,8 +6402,31 @@ class BookMarket implements Serializable {
         }
     }
 
+    // 도서 인덱스별 판매량 (취소/반품 제외) – 주문 로그 컬럼 스캔
+    private int[] unitsSoldByBookIndex() {
+        int[] unitsByBook = new int[orderLog.bookCount()];
+        int size = orderLog.size();
+        for (int row = 0; row < size; row++) {
+            if (orderLog.isCompleted(row)) {
+                unitsByBook[orderLog.bookIndex(row)] += orderLog.quantity(row);
+            }
+        }
+        return unitsByBook;
+    }
+
+    // 판매량이 있는 도서 인덱스를 판매량 내림차순으로 정렬
+    private static List<Integer> rankBookIndexes(int[] unitsByBook) {
+        List<Integer> ranked = new ArrayList<>();
+        for (int i = 0; i < unitsByBook.length; i++) {
+            if (unitsByBook[i] > 0) ranked.add(i);
+        }
+        ranked.sort((a, b) -> Integer.compare(unitsByBook[b], unitsByBook[a]));
+        return ranked;
+    }
+
     // 시스템 기본 상태 점검
     public void checkSystemHealth() {
+        CatalogVersion books = catalog.current();
         System.out.println("=== 시스템 건강 상태 점검 ===");
 
         // 데이터 저장 검사
@@ -781,18 +6441,47 @@ class BookMarket implements Serializable {
         System.out.println("✅ 등록된 사용자 수: " + users.size());
 
         // 도서 수 검사
-        System.out.println("✅ 등록된 도서 수: " + books.size());
+        System.out.println("✅ 등록된 도서 수: " + books.size() + " (카탈로그 버전 " + books.getVersion() + ")");
+        if (books.getBase() != null) {
+            System.out.println("✅ 매핑 카탈로그: " + books.getBase());
+        }
 
         // 주문 수 검사
-        int activeOrders = (int) orders.stream().filter(o -> !o.isCancelled() && !o.isReturned()).count();
+        int activeOrders = 0;
+        int orderCount = orderLog.size();
+        for (int row = 0; row < orderCount; row++) {
+            if (orderLog.isCompleted(row)) activeOrders++;
+        }
         System.out.println("✅ 활성 주문 수: " + activeOrders);
 
         // 장바구니 데이터 검사
         System.out.println("✅ 사용자 장바구니 수: " + carts.size());
+        System.out.println("✅ 장바구니 재고 확보: " + cartReservations);
 
         // 위시리스트 데이터 검사
         System.out.println("✅ 위시리스트 등록된 사용자 수: " + wishLists.size());
 
+        // 이벤트 버스 적체 검사
+        System.out.println("✅ 이벤트 버스 미처리 이벤트 수: " + events.getBacklog());
+
+        // 읽기 복제본 지연 검사
+        if (readReplica != null) {
+            System.out.println("✅ 읽기 복제본 지연: " + readReplica.getLagChanges() + "건 / "
+                    + readReplica.getLagMillis() + "ms (최근 적용 지연 " + readReplica.getLastApplyDelayMillis() + "ms)");
+        }
+
+        // 일괄 정산 검사
+        PaymentSettlement currentSettlement = settlement;
+        if (currentSettlement != null) {
+            System.out.println((currentSettlement.getStalledBatches() == 0 ? "✅" : "❌") + " 일괄 정산: " + currentSettlement);
+        }
+
+        // 증분 체크포인트 검사
+        Checkpointer checkpointer = checkpoints;
+        if (checkpointer != null) {
+            System.out.println((checkpointer.getFailureCount() == 0 ? "✅" : "❌") + " 증분 체크포인트: " + checkpointer);
+        }
+
         // 시스템 전체 검사 완료
         System.out.println("🚀 시스템 상태 확인 완료!");
     }
@@ -808,19 +6497,47 @@ class BookMarket implements Serializable {
             return false;
         }
         users.get(targetUsername).role = newRole;
+        events.publish(DomainEvent.Type.USER_CHANGED, -1, OrderLog.STATUS_COMPLETED, null, null, users.get(targetUsername), null);
         System.out.println("사용자 권한이 변경되었습니다: " + targetUsername + " -> " + newRole);
         logger.log(Level.INFO, "사용자 권한 변경: {0} -> {1}", new Object[]{targetUsername, newRole});
         return true;
     }
 
-    // 사용자 목록 조회 (관리자 전용)
+    // 사용자 목록 조회 (관리자 전용, 포인트 순)
     public void listUsers() {
         System.out.println("=== 사용자 목록 ===");
-        for (User user : users.values()) {
+        for (User user : usersByRank()) {
             System.out.println(user);
         }
     }
 
+    // 순위표 순서의 사용자 – 한 번의 읽기 잠금으로 전체 순서를 떠서 정렬 없이 사용
+    private List<User> usersByRank() {
+        List<User> ranked = new ArrayList<>(users.size());
+        for (LoyaltyLeaderboard.Entry entry : leaderboard.range(0, Integer.MAX_VALUE)) {
+            User user = users.get(entry.username);
+            if (user != null) ranked.add(user);
+        }
+        return ranked;
+    }
+
+    // ------ 포인트 순위 ------
+    // 순위/상위 N명/등급별 인원은 포인트가 바뀔 때마다 갱신되는 순위표에서 O(log n) 으로 읽는다
+    int getLoyaltyRank(String username) { return leaderboard.rankOf(username); }
+    List<LoyaltyLeaderboard.Entry> getTopMembers(int count) { return leaderboard.top(count); }
+    Map<MembershipLevel, Integer> getTierCounts() { return leaderboard.tierCounts(); }
+    LoyaltyLeaderboard getLeaderboard() { return leaderboard; }
+
+    public void viewLoyaltyLeaderboard(int count) {
+        System.out.println("=== 포인트 순위 (상위 " + count + "명) ===");
+        for (LoyaltyLeaderboard.Entry entry : leaderboard.top(count)) {
+            System.out.println(entry);
+        }
+        System.out.println("=== 등급별 회원 수 ===");
+        leaderboard.tierCounts().forEach((tier, members) ->
+                System.out.printf("%s (%d점 이상): %d명%n", tier, tier.minPoints, members));
+    }
+
     // 시스템 로그 조회 (관리자 전용)
     public void viewSystemLogs() {
         try {
@@ -853,17 +6570,338 @@ class BookMarket implements Serializable {
 }
 
 
-public class BookMarketApp {
+// MarketShard – ISBN 해시로 분할된 시장 파티션 하나에 대한 비동기 인터페이스
+// 현재는 같은 프로세스의 LocalMarketShard 만 있지만, 인자/결과가 모두 직렬화 가능하므로
+// 이후 별도 로컬 프로세스(소켓 등)로 분리한 구현으로 교체할 수 있다.
+interface MarketShard {
+    int getShardId();
+    CompletableFuture<Boolean> addBook(Book book);
+    CompletableFuture<Boolean> removeBook(String isbn);
+    CompletableFuture<Book> getBook(String isbn);
+    CompletableFuture<List<Book>> listBooks();
+    CompletableFuture<List<Book>> searchBooks(String query);
+    CompletableFuture<Book> reserveStock(String isbn, int quantity);      // 실패 시 null
+    CompletableFuture<Void> releaseStock(String isbn, int quantity);
+    CompletableFuture<Order> commitOrder(String username, String isbn, int quantity); // 예약된 재고로 주문 확정
+    CompletableFuture<Boolean> cancelOrder(String username, int orderId);
+    void close();
+}
+
+// LocalMarketShard – 전용 단일 쓰레드(single writer)에서만 BookMarket 을 다루는 프로세스 내 샤드
+class LocalMarketShard implements MarketShard {
+    private final int shardId;
+    private final BookMarket market;
+    private final ExecutorService writer;
+
+    LocalMarketShard(int shardId, BookMarket market) {
+        this.shardId = shardId;
+        this.market = market;
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "market-shard-" + shardId);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        writer.execute(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    @Override public int getShardId() { return shardId; }
+    @Override public CompletableFuture<Boolean> addBook(Book book) { return submit(() -> market.addBook(book)); }
+    @Override public CompletableFuture<Boolean> removeBook(String isbn) { return submit(() -> market.removeBook(isbn)); }
+    @Override public CompletableFuture<Book> getBook(String isbn) { return submit(() -> market.getBook(isbn)); }
+    @Override public CompletableFuture<List<Book>> listBooks() { return submit(market::getSortedBooks); }
+    @Override public CompletableFuture<List<Book>> searchBooks(String query) { return submit(() -> market.findBooks(query)); }
+    @Override public CompletableFuture<Book> reserveStock(String isbn, int quantity) { return submit(() -> market.reserveStock(isbn, quantity)); }
+
+    @Override
+    public CompletableFuture<Void> releaseStock(String isbn, int quantity) {
+        return submit(() -> {
+            market.releaseStock(isbn, quantity);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Order> commitOrder(String username, String isbn, int quantity) {
+        return submit(() -> market.commitReservedOrder(username, isbn, quantity));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> cancelOrder(String username, int orderId) {
+        return submit(() -> market.cancelOrder(username, orderId));
+    }
+
+    @Override
+    public void close() {
+        writer.execute(market::close); // 대기 중인 작업을 마친 뒤 BookMarket 의 쓰레드도 정리
+        writer.shutdown();
+    }
+}
+
+// ShardedBookMarket – 도서와 주문을 ISBN 해시로 N 개 샤드에 분할하는 라우터
+// 조회는 모든 샤드에 동시에 보내고 결과를 병합하며, 장바구니 주문은 샤드별 재고 예약 -> 결제 -> 확정 순으로 조율한다.
+// 사용자 정보는 샤드에 나누지 않고 라우터가 보관한다.
+class ShardedBookMarket {
+    private static final Logger logger = Logger.getLogger(ShardedBookMarket.class.getName());
+
+    private final List<MarketShard> shards;
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+
+    ShardedBookMarket(int shardCount) {
+        this(createLocalShards(shardCount));
+    }
+
+    ShardedBookMarket(List<MarketShard> shards) {
+        this.shards = new ArrayList<>(shards);
+    }
+
+    private static List<MarketShard> createLocalShards(int shardCount) {
+        List<MarketShard> shards = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            // 샤드 i 는 i+1, i+1+N, i+1+2N ... 의 주문번호를 발급
+            shards.add(new LocalMarketShard(i, new BookMarket(i + 1, shardCount)));
+        }
+        return shards;
+    }
+
+    int getShardCount() { return shards.size(); }
+
+    MarketShard shardFor(String isbn) {
+        return shards.get(Math.floorMod(isbn.hashCode(), shards.size()));
+    }
+
+    MarketShard shardForOrder(int orderId) {
+        return shards.get(Math.floorMod(orderId - 1, shards.size()));
+    }
+
+    public boolean registerUser(String username, String password, UserRole role) {
+        if (users.putIfAbsent(username, new User(username, password, role)) != null) {
+            System.out.println("이미 존재하는 사용자입니다.");
+            return false;
+        }
+        logger.log(Level.INFO, "신규 사용자 등록: {0}", username);
+        return true;
+    }
+
+    public User loginUser(String username, String password) {
+        User user = users.get(username);
+        return user != null && user.checkPassword(password) ? user : null;
+    }
+
+    public boolean addBook(Book book) {
+        return shardFor(book.getIsbn()).addBook(book).join();
+    }
+
+    public boolean removeBook(String isbn) {
+        return shardFor(isbn).removeBook(isbn).join();
+    }
+
+    public Book getBook(String isbn) {
+        return shardFor(isbn).getBook(isbn).join();
+    }
+
+    // 모든 샤드의 (제목순) 목록을 병합
+    public List<Book> getSortedBooks() {
+        List<CompletableFuture<List<Book>>> futures = new ArrayList<>();
+        for (MarketShard shard : shards) {
+            futures.add(shard.listBooks());
+        }
+        List<Book> merged = new ArrayList<>();
+        for (CompletableFuture<List<Book>> future : futures) {
+            merged.addAll(future.join());
+        }
+        merged.sort(Comparator.comparing(Book::getTitle));
+        return merged;
+    }
+
+    public void listBooks() {
+        BookMarket.printBookList(getSortedBooks());
+    }
+
+    public List<Book> findBooks(String query) {
+        List<CompletableFuture<List<Book>>> futures = new ArrayList<>();
+        for (MarketShard shard : shards) {
+            futures.add(shard.searchBooks(query));
+        }
+        List<Book> merged = new ArrayList<>();
+        for (CompletableFuture<List<Book>> future : futures) {
+            merged.addAll(future.join());
+        }
+        return merged;
+    }
+
+    public void searchBooks(String query) {
+        BookMarket.printSearchResults(findBooks(query));
+    }
+
+    // 단일 도서 주문 – 샤드에서 재고 예약 후 라우터 쓰레드에서 결제, 성공 시 확정 (실패 시 -1)
+    public int placeOrder(String username, String isbn, int quantity) {
+        MarketShard shard = shardFor(isbn);
+        Book book = shard.reserveStock(isbn, quantity).join();
+        if (book == null) {
+            System.out.println("재고가 부족하거나 존재하지 않는 도서입니다: " + isbn);
+            return -1;
+        }
+        if (!PaymentGateway.processPayment(book.getPrice() * quantity)) {
+            shard.releaseStock(isbn, quantity).join();
+            System.out.println("결제에 실패했습니다. 주문이 처리되지 않았습니다.");
+            return -1;
+        }
+        Order order = shard.commitOrder(username, isbn, quantity).join();
+        if (order == null) {
+            // 예약과 확정 사이에 도서가 삭제됨 – 예약 반환 후 결제 취소
+            shard.releaseStock(isbn, quantity).join();
+            PaymentGateway.processRefund(book.getPrice() * quantity);
+            System.out.println("주문 처리 중 도서가 삭제되어 결제를 취소했습니다: " + isbn);
+            return -1;
+        }
+        rewardUser(username, order);
+        return order.orderId;
+    }
+
+    // 장바구니 주문 – 관련 샤드 전체에 재고를 예약하고, 하나라도 실패하면 모두 반환(2단계 방식)
+    public List<Integer> placeCartOrder(String username, ShoppingCart cart) {
+        List<CartItem> items = new ArrayList<>(cart.getItems());
+        List<CompletableFuture<Book>> reservations = new ArrayList<>();
+        for (CartItem item : items) {
+            String isbn = item.getBook().getIsbn();
+            reservations.add(shardFor(isbn).reserveStock(isbn, item.getQuantity()));
+        }
+
+        boolean allReserved = true;
+        double total = 0;
+        for (int i = 0; i < items.size(); i++) {
+            Book book = reservations.get(i).join();
+            if (book == null) {
+                allReserved = false;
+            } else {
+                total += book.getPrice() * items.get(i).getQuantity();
+            }
+        }
+
+        if (!allReserved || !PaymentGateway.processPayment(total)) {
+            List<CompletableFuture<Void>> releases = new ArrayList<>();
+            for (int i = 0; i < items.size(); i++) {
+                if (reservations.get(i).join() != null) {
+                    String isbn = items.get(i).getBook().getIsbn();
+                    releases.add(shardFor(isbn).releaseStock(isbn, items.get(i).getQuantity()));
+                }
+            }
+            releases.forEach(CompletableFuture::join);
+            System.out.println(allReserved ? "결제에 실패했습니다. 주문이 처리되지 않았습니다."
+                                           : "재고가 부족한 도서가 있어 장바구니 주문이 취소되었습니다.");
+            return Collections.emptyList();
+        }
+
+        List<CompletableFuture<Order>> commits = new ArrayList<>();
+        for (CartItem item : items) {
+            String isbn = item.getBook().getIsbn();
+            commits.add(shardFor(isbn).commitOrder(username, isbn, item.getQuantity()));
+        }
+        List<Integer> orderIds = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            Order order = commits.get(i).join();
+            if (order == null) {
+                // 예약과 확정 사이에 도서가 삭제됨 – 그 항목만 예약 반환 후 해당 금액 환불
+                String isbn = items.get(i).getBook().getIsbn();
+                int quantity = items.get(i).getQuantity();
+                shardFor(isbn).releaseStock(isbn, quantity).join();
+                PaymentGateway.processRefund(reservations.get(i).join().getPrice() * quantity);
+                System.out.println("주문 처리 중 도서가 삭제되어 해당 항목을 환불했습니다: " + isbn);
+                continue;
+            }
+            rewardUser(username, order);
+            orderIds.add(order.orderId);
+        }
+        cart.clear();
+        return orderIds;
+    }
+
+    public boolean cancelOrder(String username, int orderId) {
+        return shardForOrder(orderId).cancelOrder(username, orderId).join();
+    }
+
+    // 사용자 정보는 라우터에만 있으므로 포인트 적립과 알림은 라우터에서 처리
+    private void rewardUser(String username, Order order) {
+        User user = users.get(username);
+        if (user != null) {
+            synchronized (user) {
+                user.addLoyaltyPoints((int) (order.getTotalPrice() / 10)); // 10달러당 1포인트
+            }
+            NotificationManager.sendNotification(username, String.format("주문이 완료되었습니다! 주문번호: %d", order.orderId));
+        }
+    }
+
+    public void shutdown() {
+        for (MarketShard shard : shards) {
+            shard.close();
+        }
+    }
+}
+
+public class BookMarketApp {
+    private static final int MAPPED_CATALOG_CACHE_SIZE = 10_000;
+
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 5_000;
+
+    private static final int SETTLEMENT_BATCH_SIZE = 100;
+    private static final int LEADERBOARD_SIZE = 10;
+
+    // 실행: java BookMarketApp [--mapped-catalog <파일>] [--checkpoint-dir <디렉터리>] [--settlement-window <밀리초>]
+    //   --mapped-catalog: 카탈로그를 파일에서 매핑해 필요한 도서만 읽는다 (파일이 없으면 샘플 도서로 생성)
+    //   --checkpoint-dir: 디렉터리의 체크포인트에서 복구하고, 실행 중 변경을 증분 체크포인트로 기록한다
+    //   --settlement-window: 결제를 즉시 승인하고 매입/환불은 이 간격(또는 100건)마다 모아 정산한다
     public static void main(String[] args) {
-        BookMarket market = new BookMarket();
+        Path mappedCatalog = null;
+        Path checkpointDir = null;
+        long settlementWindowMillis = 0;
+        for (int i = 0; i + 1 < args.length; i++) {
+            if ("--mapped-catalog".equals(args[i])) {
+                mappedCatalog = Paths.get(args[i + 1]);
+            } else if ("--checkpoint-dir".equals(args[i])) {
+                checkpointDir = Paths.get(args[i + 1]);
+            } else if ("--settlement-window".equals(args[i])) {
+                settlementWindowMillis = Long.parseLong(args[i + 1]);
+            }
+        }
+        BookMarket market = checkpointDir != null ? recoverMarket(checkpointDir) : new BookMarket();
+        boolean recovered = !market.getBooks().isEmpty();
+        if (!recovered && (mappedCatalog == null || !mountCatalog(market, mappedCatalog))) {
+            for (Book book : sampleBooks()) {
+                market.addBook(book);
+            }
+        }
         Scanner sc = new Scanner(System.in);
         User loggedInUser = null;
 
         // 샘플 데이터 등록
-        market.addBook(new Book("111", "자바의 정석", "남궁성", 33000, 10, "프로그래밍", "도우출판"));
-        market.addBook(new Book("222", "이펙티브 자바", "조슈아 블로크", 38000, 5, "프로그래밍", "인사이트"));
-        market.registerUser("admin", "admin", UserRole.ADMIN);
-        market.registerUser("user1", "1111", UserRole.CUSTOMER);
+        if (!recovered) {
+            market.registerUser("admin", "admin", UserRole.ADMIN);
+            market.registerUser("user1", "1111", UserRole.CUSTOMER);
+        }
+        market.attachReadReplica(); // 보고서/내보내기는 복제본에서 처리
+        if (checkpointDir != null) {
+            try {
+                market.startCheckpoints(checkpointDir, CHECKPOINT_INTERVAL_MILLIS);
+            } catch (IOException e) {
+                System.out.println("체크포인트 디렉터리를 사용할 수 없어 체크포인트 없이 실행합니다: " + e.getMessage());
+            }
+        }
+        if (settlementWindowMillis > 0) {
+            // 실제 대행사 연동 전까지는 PaymentGateway 와 같은 1초 지연의 스텁으로 정산
+            market.enableSettlement(new PaymentSettlement(new StubPaymentProcessor(1000, 0, 0, 0, System.nanoTime()),
+                    settlementWindowMillis, SETTLEMENT_BATCH_SIZE));
+        }
 
         while (true) {
             if (loggedInUser == null) {
@@ -876,6 +6914,7 @@ public class BookMarketApp {
                 } else if ("3".equals(sel)) {
                     market.listBooks();
                 } else if ("0".equals(sel)) {
+                    shutdown(market);
                     System.out.println("프로그램 종료");
                     break;
                 }
@@ -896,6 +6935,14 @@ public class BookMarketApp {
                     } else if ("6".equals(sel)) {
                         loggedInUser = null;
                         System.out.println("로그아웃 되었습니다.");
+                    } else if ("7".equals(sel)) {
+                        adminSalesAnalysis(market, sc);
+                    } else if ("8".equals(sel)) {
+                        adminFlashSale(market, sc);
+                    } else if ("9".equals(sel)) {
+                        adminBulkUpdate(market, sc);
+                    } else if ("10".equals(sel)) {
+                        market.viewLoyaltyLeaderboard(LEADERBOARD_SIZE);
                     }
                 } else {
                     showUserMenu();
@@ -905,7 +6952,7 @@ public class BookMarketApp {
                     } else if ("2".equals(sel)) {
                         userOrderBook(market, sc, loggedInUser);
                     } else if ("3".equals(sel)) {
-                        userViewMyInfo(loggedInUser);
+                        userViewMyInfo(market, loggedInUser);
                     } else if ("4".equals(sel)) {
                         userViewMyOrders(market, loggedInUser);
                     } else if ("5".equals(sel)) {
@@ -913,6 +6960,10 @@ public class BookMarketApp {
                     } else if ("6".equals(sel)) {
                         loggedInUser = null;
                         System.out.println("로그아웃 되었습니다.");
+                    } else if ("7".equals(sel)) {
+                        userCart(market, sc, loggedInUser);
+                    } else if ("8".equals(sel)) {
+                        userFilterBooks(market, sc);
                     }
                 }
             }
@@ -920,6 +6971,53 @@ public class BookMarketApp {
         sc.close();
     }
 
+    static List<Book> sampleBooks() {
+        return Arrays.asList(
+                new Book("111", "자바의 정석", "남궁성", 33000, 10, "프로그래밍", "도우출판"),
+                new Book("222", "이펙티브 자바", "조슈아 블로크", 38000, 5, "프로그래밍", "인사이트"));
+    }
+
+    // 매핑 카탈로그 연결 – 실패하면 false (메모리 카탈로그로 시작)
+    static boolean mountCatalog(BookMarket market, Path path) {
+        try {
+            if (!Files.exists(path)) {
+                MappedCatalog.write(path, sampleBooks());
+                System.out.println("카탈로그 파일 생성: " + path);
+            }
+            market.mountCatalog(MappedCatalog.open(path, MAPPED_CATALOG_CACHE_SIZE));
+            System.out.println("매핑 카탈로그 사용: " + path);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("매핑 카탈로그를 열 수 없어 메모리 카탈로그로 시작합니다: " + e.getMessage());
+            return false;
+        }
+    }
+
+    static BookMarket recoverMarket(Path directory) {
+        try {
+            BookMarket market = BookMarket.recover(directory);
+            if (!market.getBooks().isEmpty()) {
+                System.out.println("체크포인트에서 복구했습니다: " + directory + " (도서 " + market.getBooks().size()
+                        + "권, 주문 " + market.getOrderLog().size() + "건)");
+            }
+            return market;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("체크포인트에서 복구하지 못해 새로 시작합니다: " + e.getMessage());
+            return new BookMarket();
+        }
+    }
+
+    // 종료 전에 남은 매입/환불을 정산하고, 남은 변경을 마지막 델타로 기록한 뒤 쓰레드 정리
+    static void shutdown(BookMarket market) {
+        try {
+            market.disableSettlement();
+            market.stopCheckpoints();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        market.close();
+    }
+
     // ------ 메뉴 표시 ------
     static void showGuestMenu() {
         System.out.println("\n=== Book Market(비회원) ===");
@@ -938,6 +7036,10 @@ public class BookMarketApp {
         System.out.println("4. 매출보고서");
         System.out.println("5. 시스템 건강 점검");
         System.out.println("6. 로그아웃");
+        System.out.println("7. 기간별 매출 분석");
+        System.out.println("8. 플래시 세일 관리");
+        System.out.println("9. 일괄 가격/재고 변경");
+        System.out.println("10. 포인트 순위/등급 현황");
         System.out.print("선택> ");
     }
 
@@ -949,6 +7051,8 @@ public class BookMarketApp {
         System.out.println("4. 내 주문내역");
         System.out.println("5. 도서리뷰작성");
         System.out.println("6. 로그아웃");
+        System.out.println("7. 장바구니");
+        System.out.println("8. 조건 검색");
         System.out.print("선택> ");
     }
 
@@ -1000,18 +7104,156 @@ public class BookMarketApp {
         market.viewBestSellers();
     }
 
+    static void adminSalesAnalysis(BookMarket market, Scanner sc) {
+        System.out.print("시작일(yyyy-MM-dd, 빈칸=오늘): ");
+        String fromText = sc.nextLine().trim();
+        System.out.print("종료일(yyyy-MM-dd, 빈칸=오늘): ");
+        String toText = sc.nextLine().trim();
+        System.out.print("그룹 기준(DAY/MONTH/GENRE/PUBLISHER/ISBN): ");
+        String groupText = sc.nextLine().trim().toUpperCase();
+        System.out.print("장르 필터(빈칸=전체): ");
+        String genre = sc.nextLine().trim();
+        System.out.print("출판사 필터(빈칸=전체): ");
+        String publisher = sc.nextLine().trim();
+        System.out.print("상위 N개(0=전체): ");
+        String topText = sc.nextLine().trim();
+        try {
+            LocalDate from = fromText.isEmpty() ? LocalDate.now() : LocalDate.parse(fromText);
+            LocalDate to = toText.isEmpty() ? LocalDate.now() : LocalDate.parse(toText);
+            SalesCube.Dimension groupBy = groupText.isEmpty() ? SalesCube.Dimension.DAY : SalesCube.Dimension.valueOf(groupText);
+            int topN = topText.isEmpty() ? 0 : Integer.parseInt(topText);
+            market.viewSalesAnalysis(from, to, groupBy, genre, publisher, topN);
+        } catch (RuntimeException e) {
+            System.out.println("입력 형식이 올바르지 않습니다: " + e.getMessage());
+        }
+    }
+
+    static void adminFlashSale(BookMarket market, Scanner sc) {
+        market.viewFlashSales();
+        System.out.print("1. 시작  2. 종료  (기타=돌아가기)> ");
+        String sel = sc.nextLine().trim();
+        if (!"1".equals(sel) && !"2".equals(sel)) return;
+        System.out.print("ISBN: ");
+        String isbn = sc.nextLine().trim();
+        if ("1".equals(sel)) {
+            market.startFlashSale(isbn, 1024, 100);
+        } else {
+            market.endFlashSale(isbn);
+        }
+    }
+
+    static void adminBulkUpdate(BookMarket market, Scanner sc) {
+        System.out.print("1. 가격 조정  2. 재입고  3. 최근 일괄 변경 되돌리기  (기타=돌아가기)> ");
+        String sel = sc.nextLine().trim();
+        if ("3".equals(sel)) {
+            market.rollbackBulkUpdate();
+            return;
+        }
+        if (!"1".equals(sel) && !"2".equals(sel)) return;
+        System.out.print("대상 장르(빈칸=전체): ");
+        String genre = sc.nextLine().trim();
+        System.out.print("대상 출판사(빈칸=전체): ");
+        String publisher = sc.nextLine().trim();
+        System.out.print("1".equals(sel) ? "조정률(%, 할인은 음수): " : "재입고 수량: ");
+        String amountText = sc.nextLine().trim();
+        System.out.print("모의 실행만 할까요? (y/N): ");
+        boolean dryRun = "y".equalsIgnoreCase(sc.nextLine().trim());
+        try {
+            int amount = Integer.parseInt(amountText);
+            BulkUpdate.Transformation transformation = "1".equals(sel) ? BulkUpdate.reprice(amount) : BulkUpdate.restock(amount);
+            String name = ("1".equals(sel) ? "가격 " + amount + "%" : "재입고 " + amount + "권")
+                    + (genre.isEmpty() ? "" : " 장르=" + genre) + (publisher.isEmpty() ? "" : " 출판사=" + publisher);
+            market.runBulkUpdate(new BulkUpdate(name, BulkUpdate.matching(genre, publisher), transformation,
+                    (scanned, total) -> System.out.printf("진행률 %d%% (%d/%d)%n", scanned * 100 / total, scanned, total)), dryRun);
+        } catch (RuntimeException e) {
+            System.out.println("입력 형식이 올바르지 않습니다: " + e.getMessage());
+        }
+    }
+
     // ------ 회원 기능 ------
     static void userOrderBook(BookMarket market, Scanner sc, User user) {
-        market.listBooks();
-        System.out.print("주문할 도서 ISBN: ");
-        String isbn = sc.nextLine();
+        String isbn = chooseBook(market, sc);
+        if (isbn == null) return;
         System.out.print("수량: ");
         int qty = Integer.parseInt(sc.nextLine());
         market.placeOrder(user.getUsername(), isbn, qty);
     }
 
-    static void userViewMyInfo(User user) {
+    // 제목/저자 앞부분을 입력받아 자동완성 후보 중에서 선택 (빈칸=전체 목록에서 ISBN 입력)
+    static String chooseBook(BookMarket market, Scanner sc) {
+        System.out.print("제목/저자 검색(빈칸=전체 목록): ");
+        String prefix = sc.nextLine().trim();
+        if (prefix.isEmpty()) {
+            market.listBooks();
+            System.out.print("주문할 도서 ISBN: ");
+            return sc.nextLine().trim();
+        }
+        List<Book> suggestions = market.suggest(prefix, 10);
+        if (suggestions.isEmpty()) {
+            System.out.println("일치하는 도서가 없습니다.");
+            return null;
+        }
+        for (int i = 0; i < suggestions.size(); i++) {
+            System.out.println((i + 1) + ". " + suggestions.get(i));
+        }
+        System.out.print("번호 선택: ");
+        try {
+            return suggestions.get(Integer.parseInt(sc.nextLine().trim()) - 1).getIsbn();
+        } catch (RuntimeException e) {
+            System.out.println("잘못된 선택입니다.");
+            return null;
+        }
+    }
+
+    static void userCart(BookMarket market, Scanner sc, User user) {
+        market.viewCart(user.getUsername());
+        System.out.print("1. 담기  2. 빼기  3. 주문  (기타=돌아가기)> ");
+        String sel = sc.nextLine().trim();
+        if ("1".equals(sel)) {
+            String isbn = chooseBook(market, sc);
+            if (isbn == null) return;
+            System.out.print("수량: ");
+            market.addToCart(user.getUsername(), isbn, Integer.parseInt(sc.nextLine().trim()));
+        } else if ("2".equals(sel)) {
+            System.out.print("뺄 도서 ISBN: ");
+            market.removeFromCart(user.getUsername(), sc.nextLine().trim());
+        } else if ("3".equals(sel)) {
+            market.checkoutCart(user.getUsername());
+        }
+    }
+
+    static void userFilterBooks(BookMarket market, Scanner sc) {
+        FacetIndex.Query query = new FacetIndex.Query();
+        System.out.print("장르(빈칸=전체): ");
+        String genre = sc.nextLine().trim();
+        if (!genre.isEmpty()) query.genre(genre);
+        System.out.print("출판사(빈칸=전체): ");
+        String publisher = sc.nextLine().trim();
+        if (!publisher.isEmpty()) query.publisher(publisher);
+        System.out.print("최고 가격(빈칸=제한 없음): ");
+        String maxPrice = sc.nextLine().trim();
+        System.out.print("재고 있는 도서만? (y/N): ");
+        if ("y".equalsIgnoreCase(sc.nextLine().trim())) query.inStockOnly();
+        System.out.print("최소 평점(빈칸=제한 없음): ");
+        String minRating = sc.nextLine().trim();
+        System.out.print("정렬(NONE/PRICE_ASC/PRICE_DESC/RATING_DESC, 빈칸=NONE): ");
+        String sort = sc.nextLine().trim().toUpperCase();
+        try {
+            if (!maxPrice.isEmpty()) query.maxPrice(Double.parseDouble(maxPrice));
+            if (!minRating.isEmpty()) query.minRating(Double.parseDouble(minRating));
+            if (!sort.isEmpty()) query.sort(FacetIndex.Sort.valueOf(sort));
+            market.viewFilteredBooks(query);
+        } catch (RuntimeException e) {
+            System.out.println("입력 형식이 올바르지 않습니다: " + e.getMessage());
+        }
+    }
+
+    static void userViewMyInfo(BookMarket market, User user) {
         System.out.println("내 정보: " + user);
+        int rank = market.getLoyaltyRank(user.getUsername());
+        if (rank > 0) {
+            System.out.println("포인트 순위: " + rank + "위 / " + market.getLeaderboard().size() + "명");
+        }
     }
 
     static void userViewMyOrders(BookMarket market, User user) {
@@ -1031,7 +7273,895 @@ public class BookMarketApp {
         int rating = Integer.parseInt(sc.nextLine());
         System.out.print("리뷰 내용: ");
         String reviewText = sc.nextLine();
-        book.addReview(new Review(user.getUsername(), rating, reviewText));
-        System.out.println("리뷰가 등록되었습니다.");
+        if (market.addReview(isbn, new Review(user.getUsername(), rating, reviewText))) {
+            System.out.println("리뷰가 등록되었습니다.");
+        }
+    }
+}
+// 성능 측정용 벤치마크 – 실행: java BookMarketBenchmark <시나리오> [옵션...]
+class BookMarketBenchmark {
+    public static void main(String[] args) throws Exception {
+        String scenario = args.length > 0 ? args[0] : "shards";
+        PrintStream out = System.out;
+        quiet();
+        if ("shards".equals(scenario)) {
+            benchmarkShards(out, intArg(args, 1, 8), intArg(args, 2, 20_000), intArg(args, 3, 10_000));
+        } else if ("flash".equals(scenario)) {
+            benchmarkFlashSale(out, intArg(args, 1, 10_000), intArg(args, 2, 5_000), intArg(args, 3, 2));
+        } else if ("mapped".equals(scenario)) {
+            benchmarkMappedCatalog(out, intArg(args, 1, 1_000_000), intArg(args, 2, 10_000));
+        } else if ("suggest".equals(scenario)) {
+            benchmarkSuggest(out, intArg(args, 1, 1_000_000), intArg(args, 2, 100_000));
+        } else if ("footprint".equals(scenario)) {
+            benchmarkFootprint(out, intArg(args, 1, 1_000_000));
+        } else if ("cart".equals(scenario)) {
+            benchmarkCartReservations(out, intArg(args, 1, 1_000_000), intArg(args, 2, 3_000));
+        } else if ("bulk".equals(scenario)) {
+            benchmarkBulkUpdate(out, intArg(args, 1, 500_000));
+        } else if ("facets".equals(scenario)) {
+            benchmarkFacets(out, intArg(args, 1, 1_000_000), intArg(args, 2, 1_000));
+        } else if ("checkpoint".equals(scenario)) {
+            benchmarkCheckpoints(out, intArg(args, 1, 200_000), intArg(args, 2, 200_000), intArg(args, 3, 500));
+        } else if ("settlement".equals(scenario)) {
+            benchmarkSettlement(out, intArg(args, 1, 20_000), intArg(args, 2, 50), intArg(args, 3, 200), intArg(args, 4, 10));
+        } else if ("leaderboard".equals(scenario)) {
+            benchmarkLeaderboard(out, intArg(args, 1, 1_000_000), intArg(args, 2, 100_000));
+        } else {
+            out.println("알 수 없는 시나리오: " + scenario
+                    + " (사용 가능: shards, flash, mapped, suggest, footprint, cart, bulk, facets, checkpoint, settlement, leaderboard)");
+        }
+    }
+
+    private static int intArg(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+
+    // 콘솔 출력, 로그, 결제 지연을 모두 끄고 순수 처리 비용만 측정
+    static void quiet() {
+        PaymentGateway.setSimulatedLatency(0);
+        Logger.getLogger("").setLevel(Level.OFF);
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()) {
+            @Override public void write(int b) { }
+            @Override public void write(byte[] buf, int off, int len) { }
+            @Override public void print(String s) { }
+            @Override public void println(String s) { }
+            @Override public void println(Object o) { }
+            @Override public PrintStream printf(String format, Object... args) { return this; }
+            @Override public PrintStream format(String format, Object... args) { return this; }
+        });
+    }
+
+    // 샤드 수(1/2/4/8)별 주문 처리량 – 클라이언트 쓰레드들이 임의의 ISBN 으로 동시에 주문
+    static void benchmarkShards(PrintStream out, int threads, int ordersPerThread, int bookCount) throws Exception {
+        out.printf("=== 샤드 처리량 벤치마크 (쓰레드 %d, 쓰레드당 주문 %d, 도서 %d) ===%n", threads, ordersPerThread, bookCount);
+        for (int shardCount = 1; shardCount <= 8; shardCount *= 2) {
+            ShardedBookMarket market = new ShardedBookMarket(shardCount);
+            for (int i = 0; i < bookCount; i++) {
+                market.addBook(new Book("isbn-" + i, "도서 " + i, "저자 " + (i % 500), 10 + i % 50,
+                        Integer.MAX_VALUE / 2, "장르 " + (i % 20), "출판사 " + (i % 100)));
+            }
+            for (int t = 0; t < threads; t++) {
+                market.registerUser("user" + t, "pw", UserRole.CUSTOMER);
+            }
+            runOrders(market, threads, ordersPerThread / 10, bookCount); // 워밍업
+            long elapsed = runOrders(market, threads, ordersPerThread, bookCount);
+            double seconds = elapsed / 1e9;
+            out.printf("샤드 %d개: %,.0f 주문/초 (%.2f초)%n", shardCount, threads * (double) ordersPerThread / seconds, seconds);
+            market.shutdown();
+        }
+    }
+
+    // 인기 도서 한 권에 구매자 쓰레드들이 동시에 몰릴 때 – 일반 주문 경로와 플래시 세일 경로 비교
+    static void benchmarkFlashSale(PrintStream out, int buyers, int stock, int attemptsPerBuyer) throws Exception {
+        out.printf("=== 플래시 세일 벤치마크 (구매자 %d, 재고 %d, 구매자당 시도 %d) ===%n", buyers, stock, attemptsPerBuyer);
+        for (boolean flash : new boolean[]{false, true}) {
+            BookMarket market = new BookMarket();
+            market.addBook(new Book("hot", "인기 도서", "저자", 15.0, stock, "장르", "출판사"));
+            for (int b = 0; b < buyers; b++) {
+                market.registerUser("buyer" + b, "pw", UserRole.CUSTOMER);
+            }
+            if (flash) {
+                market.startFlashSale("hot", 4096, 1_000);
+            }
+            AtomicInteger succeeded = new AtomicInteger();
+            CountDownLatch ready = new CountDownLatch(buyers);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>(buyers);
+            for (int b = 0; b < buyers; b++) {
+                String username = "buyer" + b;
+                Thread thread = new Thread(() -> {
+                    ready.countDown();
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < attemptsPerBuyer; i++) {
+                        if (market.placeOrder(username, "hot", 1)) succeeded.incrementAndGet();
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            ready.await();
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            double seconds = (System.nanoTime() - begin) / 1e9;
+            market.awaitEventsProcessed();
+            int left = market.getBook("hot").getQuantity();
+            out.printf("%s: %,.0f 요청/초 (%.2f초), 성공 %d, 남은 재고 %d, 초과 판매 %s%n",
+                    flash ? "플래시 세일" : "일반 주문", (double) buyers * attemptsPerBuyer / seconds, seconds,
+                    succeeded.get(), left, succeeded.get() + left == stock ? "없음" : "발생!");
+            if (flash) {
+                out.println("  " + market.getFlashSale("hot"));
+            }
+        }
+    }
+
+    // 장바구니 재고 확보 – 장바구니 수만큼 담은 뒤 절반은 직접 빼고, 나머지는 TTL 만료로 풀리는지와 비용 측정
+    static void benchmarkCartReservations(PrintStream out, int carts, long ttlMillis) throws Exception {
+        out.printf("=== 장바구니 재고 확보 벤치마크 (장바구니 %d, TTL %dms) ===%n", carts, ttlMillis);
+        BookMarket market = new BookMarket();
+        int bookCount = 1000;
+        int stockPerBook = carts / bookCount + 10;
+        for (int i = 0; i < bookCount; i++) {
+            market.addBook(new Book("isbn-" + i, "도서 " + i, "저자", 12.5, stockPerBook, "장르", "출판사"));
+        }
+        market.setCartReservationTtl(ttlMillis);
+        CartReservations reservations = market.getCartReservations();
+
+        long begin = System.nanoTime();
+        for (int c = 0; c < carts; c++) {
+            market.addToCart("user" + c, "isbn-" + (c % bookCount), 1);
+        }
+        long addNanos = System.nanoTime() - begin;
+        out.printf("담기: 건당 %.2fµs, 확보 중 %d건%n", addNanos / 1e3 / carts, reservations.getHeld());
+
+        begin = System.nanoTime();
+        for (int c = 0; c < carts; c += 2) {
+            market.removeFromCart("user" + c, "isbn-" + (c % bookCount));
+        }
+        long removeNanos = System.nanoTime() - begin;
+        out.printf("빼기(만료 작업 취소): 건당 %.2fµs, 확보 중 %d건%n", removeNanos / 1e3 / ((carts + 1) / 2),
+                reservations.getHeld());
+
+        long expiring = reservations.getHeld();
+        long deadline = System.currentTimeMillis() + ttlMillis + 10_000;
+        while (reservations.getHeld() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        market.awaitEventsProcessed();
+        long stock = 0;
+        for (int i = 0; i < bookCount; i++) {
+            stock += market.getBook("isbn-" + i).getQuantity();
+        }
+        out.printf("만료: %d건 중 %d건, 재고 복원 %s%n", expiring, reservations.getExpired(),
+                stock == (long) stockPerBook * bookCount ? "정상" : "불일치!");
+        out.println(reservations);
+    }
+
+    // 일괄 가격 조정 – 장르 하나(전체의 1/5)를 20% 할인할 때 updateBook 반복과 일괄 작업 비교,
+    // 게시 중에 읽는 쪽이 일부만 할인된 카탈로그를 보는지도 확인
+    static void benchmarkBulkUpdate(PrintStream out, int bookCount) throws Exception {
+        out.printf("=== 일괄 변경 벤치마크 (도서 %d) ===%n", bookCount);
+        String[] genres = {"소설", "경제", "과학", "역사", "여행"};
+        BookMarket market = new BookMarket();
+        market.getCatalog().update(builder -> {
+            builder.expect(bookCount);
+            for (int i = 0; i < bookCount; i++) {
+                builder.put(new Book("isbn-" + i, "도서 " + i, "저자", 20.0, 100, genres[i % genres.length], "출판사"));
+            }
+        });
+
+        int sample = Math.min(bookCount / genres.length, 5_000);
+        long begin = System.nanoTime();
+        for (int i = 0; i < sample * genres.length; i += genres.length) {
+            market.updateBook("isbn-" + i, "도서 " + i, "저자", 20.0, 100, "소설", "출판사");
+        }
+        double perCallMicros = (System.nanoTime() - begin) / 1e3 / sample;
+        out.printf("updateBook 반복: 건당 %.1fµs -> %d권 환산 %.1f초%n", perCallMicros, bookCount / genres.length,
+                perCallMicros * (bookCount / genres.length) / 1e6);
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong snapshots = new AtomicLong();
+        AtomicLong torn = new AtomicLong();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                Map<String, Book> books = market.getBooks();
+                int first = books.get("isbn-0").getPriceCents();
+                for (int i = 0; i < bookCount; i += genres.length * 97) {
+                    if (books.get("isbn-" + i).getPriceCents() != first) {
+                        torn.incrementAndGet();
+                        break;
+                    }
+                }
+                snapshots.incrementAndGet();
+            }
+        });
+        reader.start();
+        BulkUpdate.Result dryRun = market.runBulkUpdate(new BulkUpdate("모의 -20%", BulkUpdate.matching("소설", ""),
+                BulkUpdate.reprice(-20), null), true);
+        begin = System.nanoTime();
+        BulkUpdate.Result result = market.runBulkUpdate(new BulkUpdate("소설 -20%", BulkUpdate.matching("소설", ""),
+                BulkUpdate.reprice(-20), null), false);
+        long applyNanos = System.nanoTime() - begin;
+        market.awaitEventsProcessed();
+        long totalNanos = System.nanoTime() - begin;
+        begin = System.nanoTime();
+        market.rollbackBulkUpdate();
+        market.awaitEventsProcessed();
+        long rollbackNanos = System.nanoTime() - begin;
+        done.set(true);
+        reader.join();
+
+        out.printf("모의 실행: %d권 변경 예정, %.1fms%n", dryRun.changes.size(), dryRun.elapsedNanos / 1e6);
+        out.printf("일괄 작업: %d권, 계산 %.1fms, 게시 포함 %.1fms, 이벤트 처리까지 %.1fms%n", result.changes.size(),
+                result.elapsedNanos / 1e6, applyNanos / 1e6, totalNanos / 1e6);
+        out.printf("되돌리기: %.1fms, 첫 도서 가격 $%.2f%n", rollbackNanos / 1e6, market.getBook("isbn-0").getPrice());
+        out.printf("읽기 스냅샷 %d회 중 일부만 할인된 경우 %d회%n", snapshots.get(), torn.get());
+    }
+
+    // 증분 체크포인트 – 주문/취소/장바구니/위시리스트 쓰기 지연을 체크포인트 없이/있을 때 비교하고,
+    // 쓰기 도중 복구해도 재고가 이중 판매되지 않는지, 멈춘 뒤 기준 스냅샷 + 델타로 복구한 상태가 원본과 같은지 확인
+    static void benchmarkCheckpoints(PrintStream out, int bookCount, int operations, long intervalMillis) throws Exception {
+        out.printf("=== 증분 체크포인트 벤치마크 (도서 %d, 쓰기 %d회씩, 주기 %dms) ===%n", bookCount, operations, intervalMillis);
+        int userCount = 10_000;
+        BookMarket market = new BookMarket();
+        market.getCatalog().update(builder -> {
+            builder.expect(bookCount);
+            for (int i = 0; i < bookCount; i++) {
+                builder.put(new Book("isbn-" + i, "도서 " + i, "저자 " + (i % 1000), 10 + i % 40, 1_000_000,
+                        "장르 " + (i % 20), "출판사 " + (i % 200)));
+            }
+        });
+        for (int u = 0; u < userCount; u++) {
+            market.registerUser("user" + u, "pw", UserRole.CUSTOMER);
+        }
+        Random random = new Random(5);
+        long[] without = runCheckpointWrites(market, random, bookCount, userCount, operations);
+
+        Path directory = Files.createTempDirectory("checkpoints");
+        Checkpointer checkpointer = market.startCheckpoints(directory, intervalMillis);
+        while (checkpointer.getCheckpointCount() == 0) {
+            Thread.sleep(10);
+        }
+        out.printf("기준 스냅샷 (전체를 멈추고 저장했다면 멈췄을 시간): %.0fms, %,d바이트%n",
+                checkpointer.getMaxNanos() / 1e6, checkpointer.getTotalBytes());
+        long baseBytes = checkpointer.getTotalBytes();
+        long begin = System.nanoTime();
+        long[] with = runCheckpointWrites(market, random, bookCount, userCount, operations);
+        double seconds = (System.nanoTime() - begin) / 1e9;
+
+        // 멈추지 않은 채 복구 – 쓰기가 계속되는 중에 디렉터리에서 복구해 (프로세스가 그 순간 죽은 경우)
+        // 도서마다 재고 + 완료 주문 수량 + 장바구니 확보 수량이 처음 재고를 넘지 않는지(이중 판매 없음) 확인
+        Thread writes = new Thread(() -> runCheckpointWrites(market, new Random(6), bookCount, userCount, operations));
+        writes.start();
+        for (int attempt = 0; attempt < 3 && writes.isAlive(); attempt++) {
+            long target = checkpointer.getCheckpointCount() + 2;
+            while (checkpointer.getCheckpointCount() < target && writes.isAlive()) {
+                Thread.sleep(10);
+            }
+            out.printf("쓰기 중 복구 %d: %s%n", attempt + 1, checkStockConservation(recoverWhileRunning(directory),
+                    bookCount, userCount, 1_000_000));
+        }
+        writes.join();
+        market.stopCheckpoints();
+        long deltas = checkpointer.getCheckpointCount() - 1;
+        out.printf("쓰기 지연 (체크포인트 없음): %s%n", latencySummary(without));
+        out.printf("쓰기 지연 (체크포인트 중):   %s%n", latencySummary(with));
+        out.printf("%.1f초 동안 델타 %d개, 평균 %,d바이트, 병합 %d회%n", seconds, deltas,
+                deltas == 0 ? 0 : (checkpointer.getTotalBytes() - baseBytes) / deltas, checkpointer.getCompactionCount());
+        out.println(checkpointer);
+
+        long loadBegin = System.nanoTime();
+        BookMarket recovered = BookMarket.recover(directory);
+        out.printf("복구: %.0fms, %s%n", (System.nanoTime() - loadBegin) / 1e6, compareRecovered(market, recovered, userCount));
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    // 주문 위주의 쓰기 혼합 (주문 80%, 취소 5%, 장바구니 10%, 위시리스트 5%) – 연산별 소요 시간(ns)
+    private static long[] runCheckpointWrites(BookMarket market, Random random, int bookCount, int userCount, int operations) {
+        long[] nanos = new long[operations];
+        for (int i = 0; i < operations; i++) {
+            String username = "user" + random.nextInt(userCount);
+            String isbn = "isbn-" + random.nextInt(bookCount);
+            int kind = random.nextInt(100);
+            long begin = System.nanoTime();
+            if (kind < 80) {
+                market.placeOrder(username, isbn, 1);
+            } else if (kind < 85) {
+                OrderLog log = market.getOrderLog();
+                if (log.size() > 0) {
+                    int row = random.nextInt(log.size());
+                    market.cancelOrder(log.username(log.userIndex(row)), log.orderId(row));
+                }
+            } else if (kind < 95) {
+                market.addToCart(username, isbn, 1);
+            } else {
+                market.addToWishlist(username, isbn);
+            }
+            nanos[i] = System.nanoTime() - begin;
+        }
+        return nanos;
+    }
+
+    private static String latencySummary(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return String.format("p50 %.1fµs, p99 %.1fµs, p99.9 %.1fµs, 최대 %.1fms",
+                sorted[sorted.length / 2] / 1e3, sorted[(int) (sorted.length * 0.99)] / 1e3,
+                sorted[(int) (sorted.length * 0.999)] / 1e3, sorted[sorted.length - 1] / 1e6);
+    }
+
+    // 병합이 파일을 지우는 중이면 다시 읽는다 (실제 장애에서는 쓰는 쪽이 멈춰 있으므로 생기지 않는 경합)
+    private static BookMarket recoverWhileRunning(Path directory) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return BookMarket.recover(directory);
+            } catch (IOException e) {
+                if (attempt == 5) throw e;
+            }
+        }
+    }
+
+    private static String checkStockConservation(BookMarket recovered, int bookCount, int userCount, int initialStock) {
+        long[] units = new long[bookCount];
+        OrderLog log = recovered.getOrderLog();
+        for (int row = 0; row < log.size(); row++) {
+            if (log.isCompleted(row)) {
+                units[Integer.parseInt(log.book(log.bookIndex(row)).getIsbn().substring("isbn-".length()))] += log.quantity(row);
+            }
+        }
+        for (int u = 0; u < userCount; u++) {
+            ShoppingCart cart = recovered.getCart("user" + u);
+            if (cart == null) continue;
+            for (CartItem item : cart.getItems()) {
+                units[Integer.parseInt(item.getBook().getIsbn().substring("isbn-".length()))] += item.getReserved();
+            }
+        }
+        int oversold = 0;
+        int shortfall = 0;
+        for (int i = 0; i < bookCount; i++) {
+            long total = units[i] + recovered.getBook("isbn-" + i).getQuantity();
+            if (total > initialStock) oversold++;
+            if (total < initialStock) shortfall++;
+        }
+        recovered.close();
+        return String.format("주문 %d건, 재고 초과(이중 판매 가능) %d권, 재고 부족(복원 대기) %d권", log.size(), oversold, shortfall);
+    }
+
+    private static String compareRecovered(BookMarket original, BookMarket recovered, int userCount) {
+        int mismatches = 0;
+        Map<String, Book> books = original.getBooks();
+        Map<String, Book> restored = recovered.getBooks();
+        for (Book book : books.values()) {
+            Book copy = restored.get(book.getIsbn());
+            if (copy == null || copy.getQuantity() != book.getQuantity() || copy.getPriceCents() != book.getPriceCents()) {
+                mismatches++;
+            }
+        }
+        for (int u = 0; u < userCount; u++) {
+            User user = original.getUser("user" + u);
+            User copy = recovered.getUser("user" + u);
+            if (copy == null || copy.getLoyaltyPoints() != user.getLoyaltyPoints()) mismatches++;
+        }
+        OrderLog log = original.getOrderLog();
+        OrderLog restoredLog = recovered.getOrderLog();
+        if (log.size() != restoredLog.size()) {
+            mismatches++;
+        } else {
+            for (int row = 0; row < log.size(); row++) {
+                if (log.orderId(row) != restoredLog.orderId(row) || log.status(row) != restoredLog.status(row)) {
+                    mismatches++;
+                }
+            }
+        }
+        return String.format("도서 %d권, 사용자 %d명, 주문 %d건 비교 – 불일치 %d건", restored.size(),
+                userCount, restoredLog.size(), mismatches);
+    }
+
+    // 순위표 유지 비용 vs 조회마다 전체 정렬 – 순위, 상위 100명, 등급별 인원, N점 이상 인원
+    static void benchmarkLeaderboard(PrintStream out, int userCount, int operations) {
+        out.printf("=== 포인트 순위표 벤치마크 (회원 %d, 조회/갱신 %d) ===%n", userCount, operations);
+        Random random = new Random(41);
+        int[] points = new int[userCount];
+        List<User> users = new ArrayList<>(userCount);
+        for (int u = 0; u < userCount; u++) {
+            points[u] = random.nextInt(1000);
+            User user = new User("user" + u, "pw", UserRole.CUSTOMER);
+            user.setLoyaltyPoints(points[u]);
+            users.add(user);
+        }
+        long begin = System.nanoTime();
+        LoyaltyLeaderboard board = LoyaltyLeaderboard.build(users);
+        out.printf("순위표 생성: %.2f초%n", (System.nanoTime() - begin) / 1e9);
+
+        double updateMicros = 0;
+        for (String pass : new String[]{"워밍업", "측정"}) {
+            begin = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                int u = random.nextInt(userCount);
+                points[u] += 1 + random.nextInt(10);
+                board.update("user" + u, points[u]);
+            }
+            updateMicros = (System.nanoTime() - begin) / 1e3 / operations;
+        }
+        out.printf("포인트 갱신: 건당 %.2fµs%n", updateMicros);
+
+        int queries = Math.min(operations, 10_000);
+        double rankMicros = 0;
+        double topMicros = 0;
+        double tierMicros = 0;
+        double countMicros = 0;
+        for (String pass : new String[]{"워밍업", "측정"}) {
+            begin = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                board.rankOf("user" + random.nextInt(userCount));
+            }
+            rankMicros = (System.nanoTime() - begin) / 1e3 / queries;
+            begin = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                board.top(100);
+            }
+            topMicros = (System.nanoTime() - begin) / 1e3 / queries;
+            begin = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                board.tierCounts();
+            }
+            tierMicros = (System.nanoTime() - begin) / 1e3 / queries;
+            begin = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                board.countAtLeast(random.nextInt(1500));
+            }
+            countMicros = (System.nanoTime() - begin) / 1e3 / queries;
+        }
+
+        // 비교: 순위표 없이 조회할 때마다 전체 회원을 정렬/집계
+        Integer[] order = new Integer[userCount];
+        begin = System.nanoTime();
+        for (int u = 0; u < userCount; u++) order[u] = u;
+        Arrays.sort(order, (a, b) -> points[a] != points[b] ? Integer.compare(points[b], points[a])
+                : ("user" + a).compareTo("user" + b));
+        double sortMillis = (System.nanoTime() - begin) / 1e6;
+        begin = System.nanoTime();
+        int[] scanTiers = new int[MembershipLevel.values().length];
+        for (int u = 0; u < userCount; u++) scanTiers[MembershipLevel.forPoints(points[u]).ordinal()]++;
+        double tierScanMillis = (System.nanoTime() - begin) / 1e6;
+        out.printf("순위 조회: %.2fµs / 전체 정렬 %.0fms%n", rankMicros, sortMillis);
+        out.printf("상위 100명: %.2fµs / 전체 정렬 %.0fms%n", topMicros, sortMillis);
+        out.printf("등급별 인원: %.2fµs / 전체 집계 %.1fms%n", tierMicros, tierScanMillis);
+        out.printf("N점 이상 인원: %.2fµs%n", countMicros);
+
+        // 검증: 정렬 결과와 순위/상위 목록/등급별 인원 비교
+        long mismatches = 0;
+        for (int r = 0; r < userCount; r += Math.max(1, userCount / 10_000)) {
+            if (board.rankOf("user" + order[r]) != r + 1) mismatches++;
+        }
+        List<LoyaltyLeaderboard.Entry> top = board.top(100);
+        for (int r = 0; r < top.size(); r++) {
+            if (!top.get(r).username.equals("user" + order[r])) mismatches++;
+        }
+        Map<MembershipLevel, Integer> tiers = board.tierCounts();
+        for (MembershipLevel tier : MembershipLevel.values()) {
+            if (tiers.get(tier) != scanTiers[tier.ordinal()]) mismatches++;
+        }
+        out.printf("정렬 결과와 불일치: %d건%n", mismatches);
+    }
+
+    // 일괄 정산 – 건별 결제 호출과 비교해 대행사 호출 수와 주문 경로 지연을 측정하고,
+    // 실패/응답 유실을 주입해도 대행사 쪽 사용자별 정산액이 주문 내역과 일치하는지 확인
+    static void benchmarkSettlement(PrintStream out, int operations, long latencyMillis, long windowMillis,
+                                    int failurePercent) throws Exception {
+        out.printf("=== 일괄 정산 벤치마크 (쓰기 %d회, 대행사 지연 %dms, 정산 창 %dms, 실패 %d%%) ===%n",
+                operations, latencyMillis, windowMillis, failurePercent);
+        int bookCount = 1000;
+        int userCount = 200;
+        BookMarket market = new BookMarket();
+        for (int i = 0; i < bookCount; i++) {
+            market.addBook(new Book("isbn-" + i, "도서 " + i, "저자", 10 + i % 40, 1_000_000, "장르", "출판사"));
+        }
+        for (int u = 0; u < userCount; u++) {
+            market.registerUser("user" + u, "pw", UserRole.CUSTOMER);
+        }
+
+        // 건별 호출 – 주문마다 대행사를 한 번씩 동기 호출 (일부만 실행해 건당 지연을 잰다)
+        StubPaymentProcessor direct = new StubPaymentProcessor(latencyMillis, 0, 0, 0, 1);
+        int sample = Math.min(operations, 50);
+        long begin = System.nanoTime();
+        for (int i = 0; i < sample; i++) {
+            direct.submit("order-" + i, Collections.singletonList(
+                    new PaymentSettlement.Entry("user" + (i % userCount), 1000, Collections.singletonList("capture-" + i))));
+        }
+        double directMillis = (System.nanoTime() - begin) / 1e6 / sample;
+        out.printf("건별 호출: 매입/환불마다 호출 1회, 건당 %.1fms 대기%n", directMillis);
+
+        // 일괄 정산 – 주문 85%, 이전 주문 반품 10%, 취소 5% (반품된 주문의 취소 포함)
+        double failureRate = failurePercent / 100.0;
+        StubPaymentProcessor processor = new StubPaymentProcessor(latencyMillis, failureRate, failureRate / 2, 0, 2);
+        PaymentSettlement settlement = new PaymentSettlement(processor, windowMillis, 500);
+        settlement.setRetryBackoffMillis(Math.max(1, latencyMillis / 2));
+        market.enableSettlement(settlement);
+        Random random = new Random(3);
+        long[] nanos = new long[operations];
+        begin = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            long opBegin = System.nanoTime();
+            OrderLog log = market.getOrderLog();
+            int kind = random.nextInt(100);
+            if (kind < 15 && log.size() > 0) {
+                int row = log.size() - 1 - random.nextInt(Math.min(log.size(), 2_000)); // 최근 주문 위주로 반품/취소
+                if (kind < 10 && log.isCompleted(row)) {
+                    market.returnOrder(log.username(log.userIndex(row)), log.orderId(row));
+                } else if (kind >= 10) {
+                    market.cancelOrder(log.username(log.userIndex(row)), log.orderId(row));
+                }
+            } else {
+                market.placeOrder("user" + random.nextInt(userCount), "isbn-" + random.nextInt(bookCount), 1);
+            }
+            nanos[i] = System.nanoTime() - opBegin;
+        }
+        double submitSeconds = (System.nanoTime() - begin) / 1e9;
+        boolean settled = settlement.awaitSettled(60_000);
+        market.disableSettlement();
+        out.printf("일괄 정산: %d회 쓰기에 %.1f초, 쓰기 지연 %s%n", operations, submitSeconds, latencySummary(nanos));
+        long perOperationCalls = settlement.getCallsSaved() + settlement.getCalls();
+        out.printf("대행사 호출 %d회 (건별이었다면 %d회, %.1f%% 절약), 실패 %d회, 중복 반영 차단 %d건, 정산 완료 %s%n",
+                processor.getCalls(), perOperationCalls, 100.0 * settlement.getCallsSaved() / perOperationCalls,
+                processor.getFailures(), processor.getDuplicates(), settled ? "예" : "아니오");
+        out.println(settlement);
+
+        long[] expected = new long[userCount];
+        OrderLog log = market.getOrderLog();
+        for (int row = 0; row < log.size(); row++) {
+            int user = Integer.parseInt(log.username(log.userIndex(row)).substring("user".length()));
+            if (log.status(row) == OrderLog.STATUS_COMPLETED) {
+                expected[user] += log.totalCents(row);
+            }
+        }
+        int mismatches = 0;
+        for (int u = 0; u < userCount; u++) {
+            if (processor.getBalance("user" + u) != expected[u]) mismatches++;
+        }
+        out.printf("대행사 정산액과 주문 내역 비교: 사용자 %d명 중 불일치 %d명%n", userCount, mismatches);
+    }
+
+    // 패싯 검색 – 도서 수만큼 색인한 뒤 여러 조건 조합의 조회 지연을 전체 스캔과 비교하고, 재고 변경 반영 비용 측정
+    static void benchmarkFacets(PrintStream out, int bookCount, int queries) {
+        out.printf("=== 패싯 검색 벤치마크 (도서 %d, 조회 %d) ===%n", bookCount, queries);
+        Random random = new Random(11);
+        Catalog catalog = new Catalog();
+        catalog.update(builder -> {
+            builder.expect(bookCount);
+            for (int i = 0; i < bookCount; i++) {
+                Book book = new Book("isbn-" + i, "도서 " + i, "저자", 1000 + random.nextInt(60_000),
+                        random.nextInt(5) == 0 ? 0 : 1 + random.nextInt(20), "장르 " + (i % 20), "출판사 " + (i % 300));
+                if (random.nextInt(10) == 0) {
+                    book.addReview(new Review("reader", 1 + random.nextInt(5), "리뷰"));
+                }
+                builder.put(book);
+            }
+        });
+        FacetIndex index = new FacetIndex(catalog::current);
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        long begin = System.nanoTime();
+        index.query(new FacetIndex.Query().limit(0)); // 첫 조회에서 색인 생성
+        long buildNanos = System.nanoTime() - begin;
+        System.gc();
+        long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+        out.printf("색인 생성: %.1f초, 힙 증가 %,d MB (비트맵 %,d MB)%n", buildNanos / 1e9, (heapAfter - heapBefore) >> 20,
+                index.bitmapBytes() >> 20);
+
+        Map<String, Supplier<FacetIndex.Query>> cases = new LinkedHashMap<>();
+        cases.put("장르", () -> new FacetIndex.Query().genre("장르 3"));
+        cases.put("장르+출판사+재고", () -> new FacetIndex.Query().genre("장르 3").publisher("출판사 43").inStockOnly());
+        cases.put("장르+가격≤40000+재고+평점≥4, 가격순",
+                () -> new FacetIndex.Query().genre("장르 3").maxPrice(40_000).inStockOnly().minRating(4).sort(FacetIndex.Sort.PRICE_ASC));
+        cases.put("가격≤5000+재고, 가격순", () -> new FacetIndex.Query().maxPrice(5_000).inStockOnly().sort(FacetIndex.Sort.PRICE_ASC));
+        for (Map.Entry<String, Supplier<FacetIndex.Query>> entry : cases.entrySet()) {
+            FacetIndex.Query query = entry.getValue().get();
+            FacetIndex.Result result = null;
+            for (String pass : new String[]{"워밍업", "측정"}) {
+                begin = System.nanoTime();
+                for (int i = 0; i < queries; i++) {
+                    result = index.query(query);
+                }
+            }
+            double indexedMicros = (System.nanoTime() - begin) / 1e3 / queries;
+            begin = System.nanoTime();
+            long scanned = catalog.current().values().stream().filter(book -> matchesByScan(book, query)).count();
+            double scanMicros = (System.nanoTime() - begin) / 1e3;
+            out.printf("%s: %d권, 색인 %.1fµs (패싯 수 포함) / 전체 스캔 %.0fµs%s%n", entry.getKey(), result.total,
+                    indexedMicros, scanMicros, scanned == result.total ? "" : " [결과 불일치!]");
+        }
+
+        begin = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            String isbn = "isbn-" + random.nextInt(bookCount);
+            Book book = catalog.current().get(isbn);
+            book.setQuantity(book.getQuantity() == 0 ? 5 : 0);
+            index.refresh(isbn);
+        }
+        out.printf("재고 변경 반영: 건당 %.1fµs%n", (System.nanoTime() - begin) / 1e3 / queries);
+    }
+
+    private static boolean matchesByScan(Book book, FacetIndex.Query query) {
+        return (query.genre == null || query.genre.equals(book.getGenre()))
+                && (query.publisher == null || query.publisher.equals(book.getPublisher()))
+                && book.getPriceCents() >= query.minPriceCents && book.getPriceCents() <= query.maxPriceCents
+                && (!query.inStockOnly || book.getQuantity() > 0)
+                && book.getAverageRating() >= query.minRating;
+    }
+
+    // 카탈로그 크기별 첫 요청까지의 시간 – 전체 적재 vs 매핑 후 지연 로딩, 그리고 캐시 cold/warm 조회 비용
+    static void benchmarkMappedCatalog(PrintStream out, int bookCount, int lookups) throws Exception {
+        out.printf("=== 매핑 카탈로그 벤치마크 (최대 도서 %d, 조회 %d) ===%n", bookCount, lookups);
+        Path file = Files.createTempFile("catalog", ".bkmc");
+        try {
+            for (int count = Math.max(bookCount / 100, 1); count <= bookCount; count *= 10) {
+                MappedCatalog.write(file, syntheticBooks(count));
+                String probe = "isbn-" + (count / 2);
+
+                long begin = System.nanoTime();
+                BookMarket eager = BookMarket.createReplica();
+                MappedCatalog source = MappedCatalog.open(file, 16);
+                eager.getCatalog().update(builder -> source.scan().forEachRemaining(builder.expect(source.size())::put)); // 전체 역직렬화에 해당
+                eager.getBook(probe);
+                long eagerNanos = System.nanoTime() - begin;
+
+                begin = System.nanoTime();
+                BookMarket lazy = BookMarket.createReplica();
+                lazy.mountCatalog(MappedCatalog.open(file, 10_000));
+                lazy.getBook(probe);
+                long lazyNanos = System.nanoTime() - begin;
+
+                out.printf("도서 %,d권 (파일 %,d KB): 전체 적재 후 첫 요청 %.1fms, 매핑 후 첫 요청 %.2fms%n",
+                        count, Files.size(file) / 1024, eagerNanos / 1e6, lazyNanos / 1e6);
+            }
+
+            MappedCatalog mapped = MappedCatalog.open(file, lookups);
+            Random random = new Random(42);
+            String[] isbns = new String[lookups];
+            for (int i = 0; i < lookups; i++) {
+                isbns[i] = "isbn-" + random.nextInt(bookCount);
+            }
+            for (String pass : new String[]{"cold", "warm"}) {
+                long begin = System.nanoTime();
+                for (String isbn : isbns) {
+                    mapped.get(isbn);
+                }
+                out.printf("%s 조회: %.2fµs/건%n", pass, (System.nanoTime() - begin) / 1e3 / lookups);
+            }
+            out.println("캐시 상태: " + mapped);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // 자동완성 – 도서 수만큼 색인한 뒤 임의 접두어(1~4글자) 조회 지연과 판매량 갱신 비용 측정
+    static void benchmarkSuggest(PrintStream out, int bookCount, int queries) {
+        out.printf("=== 자동완성 벤치마크 (도서 %d, 조회 %d) ===%n", bookCount, queries);
+        String[] words = {"자바", "파이썬", "알고리즘", "데이터", "과학", "역사", "소설", "여행", "요리", "경제",
+                          "심리학", "철학", "디자인", "클라우드", "보안", "네트워크", "java", "spring", "kotlin", "react"};
+        Random random = new Random(7);
+        Map<String, Book> books = new HashMap<>();
+        for (int i = 0; i < bookCount; i++) {
+            String title = words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)] + " " + i;
+            books.put("isbn-" + i, new Book("isbn-" + i, title, "저자" + random.nextInt(100_000), 10, 100, "장르", "출판사"));
+        }
+        AutocompleteIndex index = new AutocompleteIndex(() -> books);
+        for (int i = 0; i < bookCount; i++) {
+            index.unitsSold("isbn-" + i, random.nextInt(1000));
+        }
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        long begin = System.nanoTime();
+        index.suggest("", 1); // 첫 조회에서 색인 생성
+        long buildNanos = System.nanoTime() - begin;
+        System.gc();
+        long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+        out.printf("색인 생성: %.1f초, 힙 증가 %,d MB%n", buildNanos / 1e9, (heapAfter - heapBefore) >> 20);
+
+        String[] prefixes = new String[queries];
+        for (int i = 0; i < queries; i++) {
+            String word = words[random.nextInt(words.length)];
+            prefixes[i] = word.substring(0, 1 + random.nextInt(word.length()));
+        }
+        for (String pass : new String[]{"워밍업", "측정"}) {
+            long total = 0;
+            begin = System.nanoTime();
+            for (String prefix : prefixes) {
+                total += index.suggest(prefix, 10).size();
+            }
+            out.printf("%s: 조회당 %.2fµs (평균 %d건)%n", pass, (System.nanoTime() - begin) / 1e3 / queries, total / queries);
+        }
+        begin = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            index.unitsSold("isbn-" + random.nextInt(bookCount), 1);
+        }
+        out.printf("판매량 갱신: 건당 %.2fµs%n", (System.nanoTime() - begin) / 1e3 / queries);
+        out.printf("취소/반품 섞인 판매량 갱신 후 전수 정렬과 불일치: %d / 300회%n", suggestMismatches(300));
+    }
+
+    // 작은 색인에 판매(+)와 취소/반품(-)을 섞어 넣고 접두어별 상위 목록을 전수 정렬 결과와 비교
+    private static int suggestMismatches(int seeds) {
+        String[] words = {"자바", "자료", "파이썬", "java", "javascript", "데이터"};
+        int failed = 0;
+        for (int seed = 0; seed < seeds; seed++) {
+            Random random = new Random(seed);
+            Map<String, Book> books = new LinkedHashMap<>();
+            for (int i = 0; i < 40; i++) {
+                String title = words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)];
+                books.put("isbn-" + i, new Book("isbn-" + i, title, "저자" + random.nextInt(5), 10, 100, "장르", "출판사"));
+            }
+            AutocompleteIndex index = new AutocompleteIndex(() -> books);
+            Map<String, Integer> units = new HashMap<>();
+            for (String isbn : books.keySet()) {
+                index.unitsSold(isbn, 0); // 등록 순서 = 동률일 때의 순서
+                units.put(isbn, 0);
+            }
+            index.suggest("", 1);
+            for (int i = 0; i < 200; i++) {
+                String isbn = "isbn-" + random.nextInt(books.size());
+                int delta = random.nextInt(3) == 0 ? -random.nextInt(1 + units.get(isbn)) : 1 + random.nextInt(5);
+                index.unitsSold(isbn, delta);
+                units.merge(isbn, delta, Integer::sum);
+            }
+            boolean ok = true;
+            for (String prefix : new String[]{"", "자", "ㅈ", "자바", "j", "java", "데", "저자", "파이썬"}) {
+                char[] key = AutocompleteIndex.normalize(prefix);
+                List<Integer> expected = books.values().stream()
+                        .filter(book -> matchesPrefix(book, key))
+                        .map(book -> units.get(book.getIsbn()))
+                        .sorted(Comparator.reverseOrder())
+                        .limit(AutocompleteIndex.TOP_K)
+                        .collect(Collectors.toList());
+                List<Integer> actual = index.suggest(prefix, AutocompleteIndex.TOP_K).stream()
+                        .map(book -> units.get(book.getIsbn()))
+                        .collect(Collectors.toList());
+                ok &= expected.equals(actual);
+            }
+            if (!ok) failed++;
+        }
+        return failed;
+    }
+
+    private static boolean matchesPrefix(Book book, char[] prefix) {
+        String key = new String(prefix);
+        String title = new String(AutocompleteIndex.normalize(book.getTitle()));
+        if (title.startsWith(key) || new String(AutocompleteIndex.normalize(book.getAuthor())).startsWith(key)) return true;
+        for (int i = title.indexOf(' '); i >= 0; i = title.indexOf(' ', i + 1)) {
+            if (title.substring(i + 1).startsWith(key)) return true;
+        }
+        return false;
+    }
+
+    // 도서당 힙 사용량 – 이전 표현(문자열 장르/출판사, double 가격, 원자 변수+리뷰 목록, HashMap 세그먼트)과
+    // 현재 표현(사전 번호, 정수 센트, 지연 리뷰 목록, 개방 주소 세그먼트)을 같은 도서 수로 적재해 비교
+    static void benchmarkFootprint(PrintStream out, int bookCount) {
+        out.printf("=== 도서 메모리 벤치마크 (도서 %d) ===%n", bookCount);
+        long baseline = usedHeap();
+        Map<String, LegacyBook>[] legacy = legacyCatalog(bookCount);
+        long legacyBytes = usedHeap() - baseline;
+        out.printf("이전 표현: %,d MB, 도서당 %d 바이트 (세그먼트 %d개)%n", legacyBytes >> 20, legacyBytes / bookCount,
+                legacy.length);
+        legacy = null;
+
+        baseline = usedHeap();
+        Catalog catalog = new Catalog();
+        catalog.update(builder -> {
+            builder.expect(bookCount);
+            for (int i = 0; i < bookCount; i++) {
+                builder.put(new Book("isbn-" + i, "도서 " + i, "저자 " + (i % 5000), 10 + i % 50, 100,
+                        "장르 " + (i % 20), "출판사 " + (i % 300)));
+            }
+        });
+        long compactBytes = usedHeap() - baseline;
+        out.printf("현재 표현: %,d MB, 도서당 %d 바이트 (%d건 확인)%n", compactBytes >> 20, compactBytes / bookCount,
+                catalog.current().size());
+        out.printf("절감: %.0f%%%n", 100.0 * (legacyBytes - compactBytes) / legacyBytes);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // 비교용으로 재현한 이전 도서 표현 (재고/리뷰는 버전 간 공유되는 별도 객체)
+    private static final class LegacyBook {
+        final String isbn, title, author, genre, publisher;
+        final double price;
+        final LegacyLiveState live;
+
+        LegacyBook(String isbn, String title, String author, double price, int quantity, String genre, String publisher) {
+            this.isbn = isbn;
+            this.title = title;
+            this.author = author;
+            this.price = price;
+            this.genre = genre;
+            this.publisher = publisher;
+            this.live = new LegacyLiveState(quantity);
+        }
+    }
+
+    private static final class LegacyLiveState {
+        final AtomicInteger quantity;
+        final List<Review> reviews;
+        volatile Runnable pinOnChange;
+
+        LegacyLiveState(int quantity) {
+            this.quantity = new AtomicInteger(quantity);
+            this.reviews = new CopyOnWriteArrayList<>(Collections.emptyList());
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Map<String, LegacyBook>[] legacyCatalog(int bookCount) {
+        Map<String, LegacyBook>[] segments = new Map[CatalogVersion.SEGMENT_COUNT];
+        for (int s = 0; s < segments.length; s++) {
+            segments[s] = new HashMap<>();
+        }
+        for (int i = 0; i < bookCount; i++) {
+            String isbn = "isbn-" + i;
+            int hash = isbn.hashCode();
+            segments[(hash ^ (hash >>> 16)) & (segments.length - 1)].put(isbn, new LegacyBook(isbn,
+                    "도서 " + i, "저자 " + (i % 5000), 10 + i % 50, 100, "장르 " + (i % 20), "출판사 " + (i % 300)));
+        }
+        return segments;
+    }
+
+    // 파일 작성용 도서 – 한꺼번에 만들어 두지 않고 순회하면서 생성
+    private static Collection<Book> syntheticBooks(int count) {
+        return new AbstractCollection<Book>() {
+            @Override public int size() { return count; }
+            @Override public Iterator<Book> iterator() {
+                return IntStream.range(0, count).mapToObj(i -> {
+                    Book book = new Book("isbn-" + i, "도서 " + i, "저자 " + (i % 5000), 10 + i % 50, 100,
+                            "장르 " + (i % 20), "출판사 " + (i % 300));
+                    if (i % 10 == 0) {
+                        book.addReview(new Review("reader" + (i % 1000), 1 + i % 5, "리뷰 " + i));
+                    }
+                    return book;
+                }).iterator();
+            }
+        };
+    }
+
+    private static long runOrders(ShardedBookMarket market, int threads, int ordersPerThread, int bookCount) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String username = "user" + t;
+            futures.add(pool.submit(() -> {
+                start.await();
+                Random random = new Random(username.hashCode());
+                for (int i = 0; i < ordersPerThread; i++) {
+                    market.placeOrder(username, "isbn-" + random.nextInt(bookCount), 1);
+                }
+                return null;
+            }));
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - begin;
+        pool.shutdown();
+        return elapsed;
     }
 }
\ No newline at end of file